@@ -0,0 +1,198 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Keeps the state of the trains of a fleet in a small file, so that the
+ *  controllers can be restarted without restarting the simulation. The
+ *  state of a train is its speed and direction, the sections it holds,
+ *  its flags and the sensor event it is handling, packed into one long.
+ *
+ *  The file is mapped into memory and each train has a slot of its own,
+ *  so saving a state is a single store that no other train waits for.
+ *  The operating system writes the file out by itself, which is enough if
+ *  only the controller stops; it is also forced to disk at a fixed
+ *  interval by a thread of its own, which limits what a crash of the
+ *  whole machine loses.
+ *
+ *  The file holds the magic number, the number of slots and then a slot
+ *  of 16 bytes for each train: its id, four unused bytes and its state.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class Checkpoint implements Closeable {
+
+	/** A train controller whose state can be saved and restored.
+	 */
+	public interface Restorable {
+
+		int getTrainId();
+
+		/** Takes up a saved state. Called before the train is started, in
+		 *  place of placing it at a station.
+		 *
+		 *  @throws IllegalStateException if a section the train held is
+		 *  		taken.
+		 */
+		void restore(long state);
+
+		/** Saves the state of the train to a checkpoint whenever it
+		 *  changes, starting now.
+		 */
+		void checkpointTo(Checkpoint checkpoint);
+	}
+
+	/** The train is on its way into a station. */
+	public static final int ENTERING = 1 << 16;
+	/** The train is inside a critical section. */
+	public static final int IN_CRITICAL = 1 << 17;
+	/** The train is backing off from a section it may not wait for. */
+	public static final int BACKING_OFF = 1 << 18;
+
+	private static final int MAGIC = 0x54434b31;	// "TCK1"
+	private static final int HEADER = 8, SLOT = 16;
+	private static final long VALID = 1L << 31;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final Map<Integer, Integer> slots = new HashMap<Integer, Integer>();
+	private final Map<Integer, Long> restored = new HashMap<Integer, Long>();
+	private final ScheduledExecutorService forcer;
+
+	/** Opens a checkpoint file for some trains, reading the states saved
+	 *  in it by an earlier run, if any.
+	 *
+	 *  @param trainIds the trains, which get a slot each.
+	 *  @param forceMillis how often the file is forced to disk.
+	 *  @throws IOException if the file cannot be read or written.
+	 */
+	public Checkpoint(File file, int[] trainIds, long forceMillis)
+			throws IOException {
+		if (file.exists()) read(file);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		channel.truncate(HEADER + trainIds.length * SLOT);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+				HEADER + trainIds.length * SLOT);
+		buffer.putInt(0, MAGIC);
+		buffer.putInt(4, trainIds.length);
+		for (int i = 0; i < trainIds.length; i++) {
+			slots.put(trainIds[i], i);
+			Long state = restored.get(trainIds[i]);
+			buffer.putInt(HEADER + i * SLOT, trainIds[i]);
+			buffer.putInt(HEADER + i * SLOT + 4, 0);
+			buffer.putLong(HEADER + i * SLOT + 8, state == null ? 0 : state);
+		}
+		buffer.force();
+		forcer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "checkpoint");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		forcer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				buffer.force();
+			}
+		}, forceMillis, forceMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Reads the states of an earlier run. A file that is not a checkpoint
+	 *  is overwritten.
+	 */
+	private void read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			if (file.length() < HEADER || in.readInt() != MAGIC) return;
+			int n = in.readInt();
+			if (file.length() < HEADER + (long) n * SLOT) return;
+			for (int i = 0; i < n; i++) {
+				int id = in.readInt();
+				in.readInt();
+				long state = in.readLong();
+				if ((state & VALID) != 0) restored.put(id, state);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Returns true if the earlier run saved a state for every train.
+	 */
+	public boolean isComplete() {
+		return restored.keySet().containsAll(slots.keySet());
+	}
+
+	/** Returns the state an earlier run saved for a train.
+	 *
+	 *  @throws IllegalArgumentException if there is none.
+	 */
+	public long restored(int trainId) {
+		Long state = restored.get(trainId);
+		if (state == null)
+			throw new IllegalArgumentException("no saved state for train "
+					+ trainId);
+		return state;
+	}
+
+	/** Returns the slot of a train, to save its state to.
+	 *
+	 *  @throws IllegalArgumentException if the train has no slot.
+	 */
+	public int slot(int trainId) {
+		Integer slot = slots.get(trainId);
+		if (slot == null)
+			throw new IllegalArgumentException("train " + trainId
+					+ " has no slot");
+		return slot;
+	}
+
+	/** Saves the state of the train with a slot. Each slot is only to be
+	 *  written by one thread.
+	 */
+	public void save(int slot, long state) {
+		buffer.putLong(HEADER + slot * SLOT + 8, state | VALID);
+	}
+
+	/** Forces the file to disk and closes it.
+	 */
+	public void close() throws IOException {
+		forcer.shutdownNow();
+		buffer.force();
+		channel.close();
+	}
+
+	/** Packs the state of a train.
+	 *
+	 *  @param speed the speed, whose sign is the direction.
+	 *  @param held the sections held, one bit for each section in the
+	 *  	   order of the section table.
+	 *  @param flags ENTERING, IN_CRITICAL and BACKING_OFF.
+	 *  @param pending the index of the sensor being handled, counting the
+	 *  	   stations before the criticals, or -1.
+	 */
+	public static long pack(int speed, int held, int flags, int pending) {
+		return (long) speed << 32 | (pending + 1) << 19 | flags
+				| held & 0xffff;
+	}
+
+	public static int speed(long state) {
+		return (int) (state >> 32);
+	}
+
+	public static int held(long state) {
+		return (int) state & 0xffff;
+	}
+
+	public static int flags(long state) {
+		return (int) state & (ENTERING | IN_CRITICAL | BACKING_OFF);
+	}
+
+	public static int pending(long state) {
+		return ((int) state >> 19 & 0x1f) - 1;
+	}
+}
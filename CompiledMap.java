@@ -0,0 +1,375 @@
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import TSim.*;
+import static TSim.SensorEvent.*;
+
+/** A map compiled to a binary file that is mapped into memory rather than
+ *  read, so that a large layout is ready as soon as the file is opened,
+ *  and processes running on the same map share its pages. Nothing is
+ *  parsed or allocated per tile: the tiles, sensors, switches, layouts
+ *  and trains are flat arrays of ints in the file, read where they lie.
+ *
+ *  A layout is the topology of the trains of one part of the map, such as
+ *  one copy of a map generated by MapGenerator, with the sensors and
+ *  switches given by their number in the file. The layouts are found when
+ *  the map is compiled, so opening a compiled map does not search for
+ *  sensors as SensorPlacer does.
+ *
+ *  Usage: java CompiledMap in.map out.tmb
+ *  	   java CompiledMap template copies trains out.tmb
+ *
+ *  The first compiles a map with one layout, found by SensorPlacer. The
+ *  second compiles a map generated as by MapGenerator, with a layout for
+ *  each copy, without writing the map as text.
+ *
+ *  The file holds a header of ints: the magic number, the width, the
+ *  height, the numbers of sensors, switches, layouts, trains and
+ *  pictures, the numbers of station sensors, critical sensors and switches
+ *  in a layout, and the room of the layouts as the two halves of a
+ *  double. Then come, as ints:
+ *
+ *  	a word for each tile, by column: the left and right rail types in
+ *  	bits 0-3 and 4-7, the sensor in bit 8 and the picture plus one in
+ *  	bits 16-31;
+ *  	the tile number, x * height + y, of each sensor and then of each
+ *  	switch, in increasing order;
+ *  	for each layout, the numbers of its station sensors, critical
+ *  	sensors and switches, ordered as in Topology;
+ *  	for each train, its x, y, cars and direction.
+ *
+ *  The names of the pictures end the file, as Java UTF strings.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class CompiledMap {
+
+	private static final int MAGIC = 0x544d4231;	// "TMB1"
+	private static final int HEADER = 14 * 4;
+	private static final int SENSOR = 1 << 8;
+
+	public final int width;
+	public final int height;
+
+	private final IntBuffer tiles, sensors, switches, layouts, trains;
+	private final int stationCount, criticalCount, switchCount;
+	private final int record;
+	private final double room;
+	private final String[] pictures;
+
+	private CompiledMap(ByteBuffer file) throws IOException {
+		if (file.capacity() < HEADER || file.getInt(0) != MAGIC)
+			throw new IOException("not a compiled map");
+		width = file.getInt(4);
+		height = file.getInt(8);
+		int sensorCount = file.getInt(12), switchesInMap = file.getInt(16);
+		int layoutCount = file.getInt(20), trainCount = file.getInt(24);
+		int pictureCount = file.getInt(28);
+		stationCount = file.getInt(32);
+		criticalCount = file.getInt(36);
+		switchCount = file.getInt(40);
+		room = Double.longBitsToDouble((long) file.getInt(44) << 32
+				| file.getInt(48) & 0xffffffffL);
+		record = stationCount + criticalCount + switchCount;
+
+		int at = HEADER;
+		tiles = ints(file, at, width * height);
+		at += 4 * width * height;
+		sensors = ints(file, at, sensorCount);
+		at += 4 * sensorCount;
+		switches = ints(file, at, switchesInMap);
+		at += 4 * switchesInMap;
+		layouts = ints(file, at, layoutCount * record);
+		at += 4 * layoutCount * record;
+		trains = ints(file, at, trainCount * 4);
+		at += 16 * trainCount;
+
+		pictures = new String[pictureCount];
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes(file, at, file.capacity() - at)));
+		for (int i = 0; i < pictureCount; i++) pictures[i] = in.readUTF();
+	}
+
+	/** Returns a view of some ints of the file, without copying them.
+	 *
+	 *  @throws IOException if the file is too short.
+	 */
+	private static IntBuffer ints(ByteBuffer file, int at, int count)
+			throws IOException {
+		if (at < 0 || count < 0 || (long) at + 4L * count > file.capacity())
+			throw new IOException("compiled map is cut short");
+		ByteBuffer b = file.duplicate();
+		b.position(at);
+		b.limit(at + 4 * count);
+		return b.slice().asIntBuffer();
+	}
+
+	private static byte[] bytes(ByteBuffer file, int at, int count)
+			throws IOException {
+		if (at > file.capacity())
+			throw new IOException("compiled map is cut short");
+		byte[] b = new byte[count];
+		ByteBuffer d = file.duplicate();
+		d.position(at);
+		d.get(b);
+		return b;
+	}
+
+	/** Maps a compiled map into memory.
+	 *
+	 *  @throws IOException if the file could not be read or is not a
+	 *  		compiled map.
+	 */
+	public static CompiledMap open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			// The mapping stays valid after the channel is closed.
+			return new CompiledMap(channel.map(FileChannel.MapMode.READ_ONLY,
+					0, channel.size()));
+		} finally {
+			channel.close();
+		}
+	}
+
+	/** Returns true if a file is a compiled map rather than a text one.
+	 */
+	public static boolean isCompiled(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return file.length() >= HEADER && in.readInt() == MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Writes a map with its layouts to a file.
+	 *
+	 *  @throws IOException if the file could not be written.
+	 *  @throws IllegalArgumentException if a sensor or switch of a layout
+	 *  		is not on the map.
+	 */
+	public static void compile(TrainLineMap map, List<Topology> layouts,
+			File file) throws IOException {
+		List<Integer> sensorTiles = new ArrayList<Integer>();
+		List<Integer> switchTiles = new ArrayList<Integer>();
+		List<String> pictures = new ArrayList<String>();
+		int[] words = new int[map.width * map.height];
+		for (int x = 0; x < map.width; x++) {
+			for (int y = 0; y < map.height; y++) {
+				int tile = x * map.height + y;
+				int word = map.railType(x, y, TrainLineMap.LEFT_SWITCH)
+						| map.railType(x, y, TrainLineMap.RIGHT_SWITCH) << 4;
+				if (map.isSensor(x, y)) {
+					word |= SENSOR;
+					sensorTiles.add(tile);
+				}
+				if (map.isSwitch(x, y)) switchTiles.add(tile);
+				String picture = map.getCustom(x, y);
+				if (picture != null) {
+					if (!pictures.contains(picture)) pictures.add(picture);
+					word |= (pictures.indexOf(picture) + 1) << 16;
+				}
+				words[tile] = word;
+			}
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file)));
+		try {
+			double room = layouts.isEmpty() ? 0 : layouts.get(0).room;
+			long roomBits = Double.doubleToLongBits(room);
+			out.writeInt(MAGIC);
+			out.writeInt(map.width);
+			out.writeInt(map.height);
+			out.writeInt(sensorTiles.size());
+			out.writeInt(switchTiles.size());
+			out.writeInt(layouts.size());
+			out.writeInt(map.getTrains().size());
+			out.writeInt(pictures.size());
+			out.writeInt(Train.defaultStations.length);
+			out.writeInt(Train.defaultCriticals.length);
+			out.writeInt(Train.defaultSwitches.length);
+			out.writeInt((int) (roomBits >>> 32));
+			out.writeInt((int) roomBits);
+			out.writeInt(0);
+			for (int w : words) out.writeInt(w);
+			for (int t : sensorTiles) out.writeInt(t);
+			for (int t : switchTiles) out.writeInt(t);
+			for (Topology layout : layouts) {
+				if (layout.room != room)
+					throw new IllegalArgumentException("the layouts differ in room");
+				for (SensorEvent s : layout.stations)
+					out.writeInt(number(sensorTiles, map, s.getXpos(), s.getYpos()));
+				for (SensorEvent s : layout.criticals)
+					out.writeInt(number(sensorTiles, map, s.getXpos(), s.getYpos()));
+				for (Dimension d : layout.switches)
+					out.writeInt(number(switchTiles, map, d.width, d.height));
+			}
+			for (TrainLineMap.TrainSpec t : map.getTrains()) {
+				out.writeInt(t.x);
+				out.writeInt(t.y);
+				out.writeInt(t.cars);
+				out.writeInt(t.direction);
+			}
+			for (String p : pictures) out.writeUTF(p);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static int number(List<Integer> tiles, TrainLineMap map, int x,
+			int y) {
+		int i = map.isInside(x, y)
+				? Collections.binarySearch(tiles, x * map.height + y) : -1;
+		if (i < 0)
+			throw new IllegalArgumentException("no sensor or switch at "
+					+ x + "," + y);
+		return i;
+	}
+
+	public int railType(int x, int y, int sw) {
+		return tiles.get(x * height + y) >> 4 * sw & 0xf;
+	}
+
+	public boolean isSensor(int x, int y) {
+		return (tiles.get(x * height + y) & SENSOR) != 0;
+	}
+
+	public boolean isInside(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height;
+	}
+
+	/** Returns the name of the picture on a tile, or null.
+	 */
+	public String getCustom(int x, int y) {
+		int p = tiles.get(x * height + y) >>> 16;
+		return p == 0 ? null : pictures[p - 1];
+	}
+
+	/** Returns the number of a sensor, or -1 if there is none on the tile.
+	 */
+	public int sensorNumber(int x, int y) {
+		if (!isInside(x, y) || !isSensor(x, y)) return -1;
+		return find(sensors, x * height + y);
+	}
+
+	public int sensorCount() {
+		return sensors.limit();
+	}
+
+	public int switchCount() {
+		return switches.limit();
+	}
+
+	public int layoutCount() {
+		return record == 0 ? 0 : layouts.limit() / record;
+	}
+
+	/** Returns the topology of a layout.
+	 */
+	public Topology topology(int layout) {
+		int at = layout * record;
+		SensorEvent[] stations = new SensorEvent[stationCount];
+		for (int i = 0; i < stationCount; i++)
+			stations[i] = sensor(layouts.get(at++));
+		SensorEvent[] criticals = new SensorEvent[criticalCount];
+		for (int i = 0; i < criticalCount; i++)
+			criticals[i] = sensor(layouts.get(at++));
+		Dimension[] sw = new Dimension[switchCount];
+		for (int i = 0; i < switchCount; i++) {
+			int tile = switches.get(layouts.get(at++));
+			sw[i] = new Dimension(tile / height, tile % height);
+		}
+		return new Topology(stations, criticals, sw, room);
+	}
+
+	private SensorEvent sensor(int number) {
+		int tile = sensors.get(number);
+		return new SensorEvent(0, tile / height, tile % height, INACTIVE);
+	}
+
+	/** Returns the trains, in the order tsim numbers them from 1.
+	 */
+	public List<TrainLineMap.TrainSpec> getTrains() {
+		List<TrainLineMap.TrainSpec> list =
+				new ArrayList<TrainLineMap.TrainSpec>();
+		for (int i = 0; i < trains.limit(); i += 4) {
+			list.add(new TrainLineMap.TrainSpec(trains.get(i),
+					trains.get(i + 1), trains.get(i + 2), trains.get(i + 3)));
+		}
+		return list;
+	}
+
+	/** Returns the map as a TrainLineMap, for a simulator or to be
+	 *  changed. This reads every tile.
+	 */
+	public TrainLineMap toTrainLineMap() {
+		TrainLineMap map = new TrainLineMap(width, height);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				String picture = getCustom(x, y);
+				if (picture != null) {
+					map.setCustom(x, y, picture);
+					continue;
+				}
+				for (int sw = TrainLineMap.LEFT_SWITCH;
+						sw <= TrainLineMap.RIGHT_SWITCH; sw++) {
+					int type = railType(x, y, sw);
+					if (type != TrainLineMap.NO_RAIL) map.setRailType(x, y, type);
+				}
+				map.setSensor(x, y, isSensor(x, y));
+			}
+		}
+		for (TrainLineMap.TrainSpec t : getTrains()) map.addTrain(t);
+		return map;
+	}
+
+	/** Returns the index of a value in an increasing buffer, or -1.
+	 */
+	private static int find(IntBuffer b, int value) {
+		int lo = 0, hi = b.limit() - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int v = b.get(mid);
+			if (v < value) lo = mid + 1;
+			else if (v > value) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 2 && args.length != 4) {
+			System.err.println("usage: java CompiledMap in.map out.tmb\n"
+					+ "       java CompiledMap template copies trains out.tmb");
+			System.exit(1);
+		}
+		try {
+			TrainLineMap template = TrainLineMap.load(new File(args[0]));
+			Topology base = Topology.of(template);
+			List<Topology> layouts = new ArrayList<Topology>();
+			TrainLineMap map = template;
+			if (args.length == 4) {
+				int copies = Integer.parseInt(args[1]);
+				map = MapGenerator.generate(template, copies,
+						Integer.parseInt(args[2]));
+				for (int copy = 0; copy < copies; copy++) {
+					layouts.add(base.translate(
+							MapGenerator.offsetX(template, copies, copy),
+							MapGenerator.offsetY(template, copies, copy)));
+				}
+			} else {
+				layouts.add(base);
+			}
+			compile(map, layouts, new File(args[args.length - 1]));
+		} catch (IllegalArgumentException e) {
+			System.err.println(args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+}
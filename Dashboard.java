@@ -0,0 +1,302 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+import TSim.*;
+
+/** Serves the state of the trains to a browser over HTTP on the local
+ *  machine: which train holds and waits for each section, where each
+ *  train was at its latest sensor, how many sensor events each train has
+ *  not yet taken, how many commands wait for tsim and how long the last
+ *  commands took.
+ *
+ *  The state is gathered into a snapshot at a fixed rate by a thread of
+ *  its own, and each client is sent the latest snapshot by a thread of
+ *  its own, so the trains and the simulator reader never wait for a
+ *  client. Sensor events cost the reader one map update.
+ *
+ *  	/			a page showing the snapshots as they come
+ *  	/events		the snapshots as Server-Sent Events, in JSON
+ *  	/snapshot	the latest snapshot, in JSON
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class Dashboard implements SensorListener {
+
+	private static final String PAGE = "<!DOCTYPE html>\n"
+			+ "<html><head><meta charset=\"utf-8\"><title>Trains</title>\n"
+			+ "<style>body{font-family:sans-serif}td,th{padding:2px 8px;"
+			+ "text-align:left}</style></head><body>\n"
+			+ "<h3>Sections</h3><table id=\"s\"></table>\n"
+			+ "<h3>Trains</h3><table id=\"t\"></table>\n"
+			+ "<h3>Commands</h3><p id=\"c\"></p>\n<script>\n"
+			+ "function rows(id, head, list, f) {\n"
+			+ "  var h = '<tr><th>' + head.join('</th><th>') + '</th></tr>';\n"
+			+ "  list.forEach(function(x) {\n"
+			+ "    h += '<tr><td>' + f(x).join('</td><td>') + '</td></tr>'; });\n"
+			+ "  document.getElementById(id).innerHTML = h;\n"
+			+ "}\n"
+			+ "new EventSource('events').onmessage = function(m) {\n"
+			+ "  var s = JSON.parse(m.data);\n"
+			+ "  rows('s', ['section', 'held by', 'waited for by'], s.sections,\n"
+			+ "    function(x) { return [x.name, x.owner || '', x.waiting.join(' ')]; });\n"
+			+ "  rows('t', ['train', 'speed', 'sensor', 'at', 'queued'], s.trains,\n"
+			+ "    function(x) { return [x.id, x.speed, x.x + ',' + x.y,\n"
+			+ "      x.age_ms + ' ms ago', x.queued]; });\n"
+			+ "  var c = s.commands;\n"
+			+ "  document.getElementById('c').textContent = c.pending + ' pending, '\n"
+			+ "    + 'p50 ' + c.p50_us + ' us, p99 ' + c.p99_us + ' us, max '\n"
+			+ "    + c.max_us + ' us over the last ' + c.count;\n"
+			+ "};\n</script></body></html>\n";
+
+	private final TSimInterface tsi;
+	private final List<SectionTable> layouts;
+	private final long periodMillis;
+
+	private final List<WatchedTrain> trains =
+			new CopyOnWriteArrayList<WatchedTrain>();
+	/** The latest sensor event of each train and when it came. */
+	private final Map<Integer, SensorEvent> latest =
+			new ConcurrentHashMap<Integer, SensorEvent>();
+	private final Map<Integer, Long> latestAt =
+			new ConcurrentHashMap<Integer, Long>();
+
+	/** The latest snapshot and its number, guarded by this. */
+	private String snapshot = "{}";
+	private long published = 0;
+
+	private HttpServer server;
+	private ScheduledExecutorService timer;
+	private ExecutorService clients;
+
+	/** Creates a dashboard.
+	 *
+	 *  @param sections the section table of the trains' layout.
+	 *  @param periodMillis how often a snapshot is taken.
+	 */
+	public Dashboard(TSimInterface tsi, SectionTable sections,
+			long periodMillis) {
+		this(tsi, Collections.singletonList(sections), periodMillis);
+	}
+
+	/** Creates a dashboard for trains on several layouts. The sections
+	 *  are shown one layout after the other, named after their layout
+	 *  numbered from 1.
+	 *
+	 *  @param layouts the section tables of the layouts.
+	 *  @param periodMillis how often a snapshot is taken.
+	 */
+	public Dashboard(TSimInterface tsi, List<SectionTable> layouts,
+			long periodMillis) {
+		if (periodMillis <= 0) throw new IllegalArgumentException();
+		this.tsi = tsi;
+		this.layouts = new ArrayList<SectionTable>(layouts);
+		this.periodMillis = periodMillis;
+	}
+
+	/** Adds a train to be shown.
+	 */
+	public void watch(WatchedTrain train) {
+		trains.add(train);
+	}
+
+	/** Starts taking snapshots and serving them on a port of the loopback
+	 *  address.
+	 *
+	 *  @param port the port, or 0 for any free one.
+	 *  @return the address served on.
+	 *  @throws IOException if the port could not be bound.
+	 */
+	public synchronized InetSocketAddress start(int port) throws IOException {
+		if (server != null) return server.getAddress();
+		ThreadFactory daemons = new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "dashboard");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				if (!ex.getRequestURI().getPath().equals("/")) {
+					send(ex, 404, "text/plain", "not found\n");
+				} else {
+					send(ex, 200, "text/html; charset=utf-8", PAGE);
+				}
+			}
+		});
+		server.createContext("/snapshot", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				String s;
+				synchronized (Dashboard.this) {
+					s = snapshot;
+				}
+				send(ex, 200, "application/json", s + "\n");
+			}
+		});
+		server.createContext("/events", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				stream(ex);
+			}
+		});
+		clients = Executors.newCachedThreadPool(daemons);
+		server.setExecutor(clients);
+		server.start();
+
+		tsi.addSensorListener(this);
+		timer = Executors.newSingleThreadScheduledExecutor(daemons);
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				publish(takeSnapshot(System.nanoTime()));
+			}
+		}, 0, periodMillis, TimeUnit.MILLISECONDS);
+		return server.getAddress();
+	}
+
+	/** Stops serving and taking snapshots.
+	 */
+	public synchronized void stop() {
+		if (server == null) return;
+		tsi.removeSensorListener(this);
+		timer.shutdownNow();
+		server.stop(0);
+		clients.shutdownNow();
+		server = null;
+		notifyAll();
+	}
+
+	public void sensorEvent(SensorEvent e, long time) {
+		latest.put(e.getTrainId(), e);
+		latestAt.put(e.getTrainId(), time);
+	}
+
+	private synchronized void publish(String s) {
+		snapshot = s;
+		published++;
+		notifyAll();
+	}
+
+	/** Sends each snapshot to a client until it goes away.
+	 */
+	private void stream(HttpExchange ex) throws IOException {
+		ex.getResponseHeaders().set("Content-Type", "text/event-stream");
+		ex.getResponseHeaders().set("Cache-Control", "no-cache");
+		ex.sendResponseHeaders(200, 0);
+		OutputStream out = ex.getResponseBody();
+		long seen = -1;
+		try {
+			while (true) {
+				String s;
+				synchronized (this) {
+					while (published == seen && server != null) wait();
+					if (server == null) return;
+					s = snapshot;
+					seen = published;
+				}
+				out.write(("data: " + s + "\n\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			}
+		} catch (InterruptedException | IOException e) {
+			// The client has gone, or the dashboard stopped.
+		} finally {
+			ex.close();
+		}
+	}
+
+	private static void send(HttpExchange ex, int status, String type,
+			String body) throws IOException {
+		byte[] b = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", type);
+		ex.sendResponseHeaders(status, b.length);
+		ex.getResponseBody().write(b);
+		ex.close();
+	}
+
+	/** Returns the state of the trains as JSON.
+	 *
+	 *  @param now the current time, from System.nanoTime().
+	 */
+	String takeSnapshot(long now) {
+		StringBuilder sb = new StringBuilder("{\"sections\":[");
+		for (int l = 0; l < layouts.size(); l++) {
+			SectionTable sections = layouts.get(l);
+			int[] owners = sections.owners();
+			Map<Integer, List<Integer>> waiting =
+					new HashMap<Integer, List<Integer>>();
+			for (WatchedTrain t : trains) {
+				int w = sections.waitingFor(t.getTrainId());
+				if (w < 0) continue;
+				if (!waiting.containsKey(w))
+					waiting.put(w, new ArrayList<Integer>());
+				waiting.get(w).add(t.getTrainId());
+			}
+			for (int i = 0; i < owners.length; i++) {
+				if (l > 0 || i > 0) sb.append(',');
+				sb.append("{\"name\":");
+				quote(sb, layouts.size() == 1 ? sections.name(i)
+						: "layout " + (l + 1) + " " + sections.name(i));
+				sb.append(",\"owner\":").append(owners[i])
+						.append(",\"waiting\":");
+				List<Integer> w = waiting.get(i);
+				sb.append(w == null ? "[]" : w.toString().replace(" ", ""));
+				sb.append('}');
+			}
+		}
+
+		sb.append("],\"trains\":[");
+		boolean first = true;
+		for (WatchedTrain t : trains) {
+			int id = t.getTrainId();
+			if (!first) sb.append(',');
+			first = false;
+			sb.append("{\"id\":").append(id)
+					.append(",\"speed\":").append(t.getCurrentSpeed())
+					.append(",\"crashed\":").append(tsi.isCrashed(id))
+					.append(",\"queued\":").append(tsi.queuedSensorEvents(id));
+			SensorEvent e = latest.get(id);
+			Long at = latestAt.get(id);
+			if (e != null && at != null) {
+				sb.append(",\"x\":").append(e.getXpos())
+						.append(",\"y\":").append(e.getYpos())
+						.append(",\"active\":")
+						.append(e.getStatus() == SensorEvent.ACTIVE)
+						.append(",\"age_ms\":")
+						.append(TimeUnit.NANOSECONDS.toMillis(now - at));
+			} else {
+				sb.append(",\"x\":null,\"y\":null,\"active\":null,\"age_ms\":null");
+			}
+			sb.append('}');
+		}
+
+		long[] l = tsi.recentCommandLatencies();
+		Arrays.sort(l);
+		sb.append("],\"commands\":{\"pending\":").append(tsi.pendingCommands())
+				.append(",\"count\":").append(l.length)
+				.append(",\"p50_us\":").append(percentile(l, 0.50) / 1000)
+				.append(",\"p99_us\":").append(percentile(l, 0.99) / 1000)
+				.append(",\"max_us\":").append(l.length == 0 ? 0 : l[l.length - 1] / 1000)
+				.append("}}");
+		return sb.toString();
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) return 0;
+		return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)];
+	}
+
+	private static void quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') sb.append('\\').append(c);
+			else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+			else sb.append(c);
+		}
+		sb.append('"');
+	}
+}
@@ -0,0 +1,85 @@
+import java.io.*;
+import java.nio.channels.*;
+
+import TSim.*;
+
+/** A stand-in for tsim that answers every command with SuccessStatus
+ *  without simulating anything. It is connected to its own TSimInterface
+ *  through in-memory pipes, and other messages, such as sensor events, can
+ *  be sent to the interface through it.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class EchoSimulator implements Runnable {
+
+	private final TSimInterface tsi;
+	private final BufferedReader commands;
+	private final PrintStream messages;
+
+	/** Creates the simulator and its interface, and starts the simulator
+	 *  on a daemon thread.
+	 *
+	 *  @throws IOException if the pipes could not be opened.
+	 */
+	public EchoSimulator() throws IOException {
+		this(null);
+	}
+
+	/** Creates the simulator, with an interface served by the given
+	 *  multiplexer, or with one of its own if it is null, and starts the
+	 *  simulator on a daemon thread.
+	 *
+	 *  @throws IOException if the pipes could not be opened.
+	 */
+	public EchoSimulator(TSimMultiplexer mux) throws IOException {
+		Pipe toSim = Pipe.open();
+		Pipe fromSim = Pipe.open();
+		tsi = mux != null ? mux.connect(fromSim.source(), toSim.sink())
+				: TSimInterface.connect(
+						Channels.newInputStream(fromSim.source()),
+						Channels.newOutputStream(toSim.sink()));
+		commands = new BufferedReader(new InputStreamReader(
+				Channels.newInputStream(toSim.source())));
+		messages = new PrintStream(Channels.newOutputStream(fromSim.sink()),
+				true);
+		Thread t = new Thread(this, "echo simulator");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/** Returns the interface connected to this simulator.
+	 */
+	public TSimInterface getInterface() {
+		return tsi;
+	}
+
+	/** Sends a message, in the TSim protocol, to the interface.
+	 *
+	 *  @param message e.g. "Sensor 1 14 7 active".
+	 */
+	public void send(String message) {
+		messages.println(message);
+	}
+
+	/** Answers commands until the interface side is closed.
+	 */
+	public void run() {
+		try {
+			String command;
+			while ((command = commands.readLine()) != null) {
+				send(reply(command));
+			}
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/** Returns the reply to a command. Always "SuccessStatus" unless
+	 *  overridden.
+	 *
+	 *  @param command the command, e.g. "SetSpeed 1 20".
+	 */
+	protected String reply(String command) {
+		return "SuccessStatus";
+	}
+}
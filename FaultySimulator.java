@@ -0,0 +1,284 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import TSim.*;
+
+/** A HeadlessSimulator behind a slow and unreliable link, to see how the
+ *  controllers cope with what tsim on another machine, or a loaded one,
+ *  would do to them: replies and sensor events arrive late and with
+ *  jitter, events come in bursts and inactive events are lost. Replies
+ *  stay in the order of the commands, and events in the order they
+ *  happened, as over a socket.
+ *
+ *  Usage: java FaultySimulator map seconds simSpeed t1speed t2speed
+ *  [faults ...]
+ *
+ *  Each set of faults is run with two Train controllers for the given
+ *  number of simulated seconds, after a run without faults. Faults are
+ *  given as e.g. "reply=10,sensor=30,jitter=10,storm=300,drop=0.5", see
+ *  Faults; by default a few of each kind are run. One line is printed per
+ *  run with the round trips per simulated hour and what the faults cost
+ *  of them, how far in pixels a train went from a sensor to the stop that
+ *  followed it, as a median and a maximum, the extra braking margin that
+ *  maximum needs compared to the run without faults, and the numbers of
+ *  collisions, other failed commands and dropped events.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class FaultySimulator extends HeadlessSimulator {
+
+	/** What the link does to the messages from the simulator. Times are in
+	 *  milliseconds of real time.
+	 */
+	public static class Faults {
+		/** "none", or the text the faults were parsed from. */
+		public final String name;
+		/** reply=: the delay of each reply. */
+		public int replyDelay;
+		/** sensor=: the delay of each sensor and crash event. */
+		public int sensorDelay;
+		/** jitter=: the most that is added at random to each delay. */
+		public int jitter;
+		/** storm=: events are held back and sent together at multiples of
+		 *  this, or 0. */
+		public int storm;
+		/** drop=: the probability that an inactive event is lost. */
+		public double dropInactive;
+		/** seed=: of the random jitter and drops. */
+		public long seed = 1;
+
+		public Faults(String name) {
+			this.name = name;
+		}
+
+		/** Parses faults as in the usage above.
+		 *
+		 *  @throws IllegalArgumentException if a fault is not known.
+		 */
+		public static Faults parse(String text) {
+			Faults f = new Faults(text);
+			if (text.equals("none")) return f;
+			for (String s : text.split(",")) {
+				String[] kv = s.split("=");
+				if (kv.length != 2)
+					throw new IllegalArgumentException("fault=value expected: " + s);
+				try {
+					if (kv[0].equals("reply")) f.replyDelay = Integer.parseInt(kv[1]);
+					else if (kv[0].equals("sensor"))
+						f.sensorDelay = Integer.parseInt(kv[1]);
+					else if (kv[0].equals("jitter")) f.jitter = Integer.parseInt(kv[1]);
+					else if (kv[0].equals("storm")) f.storm = Integer.parseInt(kv[1]);
+					else if (kv[0].equals("drop"))
+						f.dropInactive = Double.parseDouble(kv[1]);
+					else if (kv[0].equals("seed")) f.seed = Long.parseLong(kv[1]);
+					else throw new IllegalArgumentException("unknown fault " + kv[0]);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("number expected: " + s);
+				}
+			}
+			return f;
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	/** The faults run when none are given. */
+	public static final String[] DEFAULT_FAULTS = {
+		"reply=10,jitter=5",
+		"reply=50,jitter=20",
+		"sensor=10,jitter=5",
+		"sensor=50,jitter=20",
+		"storm=200",
+		"storm=1000",
+		"drop=1.0",
+		"reply=10,sensor=50,jitter=20,storm=200,drop=0.5"
+	};
+
+	/** A message waiting to be sent. */
+	private static final class Delivery implements Delayed {
+		final String message;
+		final long due;		// System.nanoTime()
+		final long seq;
+
+		Delivery(String message, long due, long seq) {
+			this.message = message;
+			this.due = due;
+			this.seq = seq;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			Delivery d = (Delivery) o;
+			if (due != d.due) return due < d.due ? -1 : 1;
+			return Long.compare(seq, d.seq);
+		}
+	}
+
+	private final Faults faults;
+	private final Random random;
+	private final long started = System.nanoTime();
+	private final DelayQueue<Delivery> link = new DelayQueue<Delivery>();
+	private final Thread sender;
+
+	/* The last due time of each kind of message and the number of
+	   messages, guarded by link. */
+	private long lastReply, lastEvent, seq;
+	private int dropped;
+
+	/* Where each train was at its last active sensor, or NaN once a stop
+	   has followed it, and how far it went before the stop; guarded by
+	   this. */
+	private final Map<Integer, Double> sensedAt = new HashMap<Integer, Double>();
+	private final List<Double> reactions = new ArrayList<Double>();
+
+	/** Creates a simulator for a map with a faulty link. It is started by
+	 *  start().
+	 *
+	 *  @throws IOException if the pipes could not be opened.
+	 *  @throws IllegalArgumentException if a train does not fit on the map.
+	 */
+	public FaultySimulator(TrainLineMap map, int delay, Faults faults)
+			throws IOException {
+		super(map, delay);
+		this.faults = faults;
+		random = new Random(faults.seed);
+		sender = new Thread("simulator link") {
+			public void run() {
+				try {
+					while (true) FaultySimulator.super.send(link.take().message);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/** Stops the simulator for good, and the link with it.
+	 */
+	public void close() {
+		sender.interrupt();
+		super.close();
+	}
+
+	/** Sends a message once the link has delayed it, or drops it.
+	 */
+	protected void send(String message) {
+		boolean event = !message.endsWith("Status");
+		if (message.startsWith("Sensor ") && message.endsWith(" active")) {
+			int no = Integer.parseInt(message.split(" ")[1]);
+			synchronized (this) {
+				sensedAt.put(no, travelled(no));
+			}
+		}
+		long now = System.nanoTime();
+		synchronized (link) {
+			if (message.endsWith(" inactive") && faults.dropInactive > 0
+					&& random.nextDouble() < faults.dropInactive) {
+				dropped++;
+				return;
+			}
+			long due = now + TimeUnit.MILLISECONDS.toNanos((event
+					? faults.sensorDelay : faults.replyDelay)
+					+ (faults.jitter > 0 ? random.nextInt(faults.jitter + 1) : 0));
+			if (event && faults.storm > 0) {
+				long storm = TimeUnit.MILLISECONDS.toNanos(faults.storm);
+				due = started + ((due - started) / storm + 1) * storm;
+			}
+			if (event) due = lastEvent = Math.max(due, lastEvent);
+			else due = lastReply = Math.max(due, lastReply);
+			link.add(new Delivery(message, due, seq++));
+		}
+	}
+
+	/** Notes how far a train went from its last sensor to a stop, before
+	 *  carrying out the command.
+	 */
+	String dispatch(String line) {
+		String[] w = line.trim().split("\\s+");
+		if (w.length == 3 && w[0].equalsIgnoreCase("SetSpeed")
+				&& w[2].equals("0")) {
+			try {
+				int no = Integer.parseInt(w[1]);
+				Double at = sensedAt.get(no);
+				if (at != null && !at.isNaN()) {
+					reactions.add(travelled(no) - at);
+					sensedAt.put(no, Double.NaN);
+				}
+			} catch (NumberFormatException | IndexOutOfBoundsException e) {
+				// Answered by the simulator.
+			}
+		}
+		return super.dispatch(line);
+	}
+
+	/** Returns the distances in pixels the trains went from a sensor to
+	 *  the stop that followed it, sorted.
+	 */
+	public synchronized double[] reactions() {
+		double[] r = new double[reactions.size()];
+		for (int i = 0; i < r.length; i++) r[i] = reactions.get(i);
+		Arrays.sort(r);
+		return r;
+	}
+
+	/** Returns the number of inactive events dropped.
+	 */
+	public int dropped() {
+		synchronized (link) {
+			return dropped;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println("usage: java FaultySimulator map seconds "
+					+ "simSpeed t1speed t2speed [faults ...]");
+			System.exit(1);
+		}
+		TrainLineMap map = TrainLineMap.load(new File(args[0]));
+		double seconds = Double.parseDouble(args[1]);
+		int simSpeed = Integer.parseInt(args[2]);
+		int t1speed = Integer.parseInt(args[3]);
+		int t2speed = Integer.parseInt(args[4]);
+		List<Faults> runs = new ArrayList<Faults>();
+		runs.add(new Faults("none"));
+		String[] given = args.length > 5
+				? Arrays.copyOfRange(args, 5, args.length) : DEFAULT_FAULTS;
+		for (String s : given) runs.add(Faults.parse(s));
+		ScenarioSweeper sweeper = new ScenarioSweeper(map,
+				SensorPlacer.locate(map), seconds, ForkJoinPool.commonPool());
+
+		System.out.println("faults,roundtrips_per_hour,throughput_loss_pct,"
+				+ "stop_after_px_p50,stop_after_px_max,extra_margin_px,"
+				+ "collisions,failures,dropped");
+		double baseTrips = 0, baseMax = 0;
+		for (Faults faults : runs) {
+			FaultySimulator sim = new FaultySimulator(map, simSpeed, faults);
+			ScenarioSweeper.Result r = sweeper.run(t1speed, t2speed, sim,
+					simSpeed);
+			double[] reactions = sim.reactions();
+			double p50 = reactions.length == 0 ? 0
+					: reactions[reactions.length / 2];
+			double max = reactions.length == 0 ? 0
+					: reactions[reactions.length - 1];
+			if (faults.name.equals("none")) {
+				baseTrips = r.roundTripsPerHour();
+				baseMax = max;
+			}
+			System.out.printf(Locale.ROOT, "\"%s\",%.2f,%.1f,%.0f,%.0f,%.0f,%d,%d,%d%n",
+					faults, r.roundTripsPerHour(), baseTrips == 0 ? 0
+							: 100 * (1 - r.roundTripsPerHour() / baseTrips),
+					p50, max, max - baseMax, r.collisions, r.failures,
+					sim.dropped());
+		}
+		System.exit(0);
+	}
+}
@@ -0,0 +1,400 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import TSim.*;
+
+/** Starts any number of trains described in a file, rather than the two
+ *  trains of Lab1 and Lab2.
+ *
+ *  Usage: java Fleet file
+ *
+ *  The file has one setting per line, and '#' starts a comment:
+ *
+ *  	controller semaphore|monitor	the controller of all trains, Train
+ *  									or Train2; semaphore by default
+ *  	simspeed ms						the simulation speed, as in Lab1
+ *  	map file						a map whose sensors may have been
+ *  									moved by SensorPlacer, or one
+ *  									compiled by CompiledMap, with a
+ *  									layout for each of its layouts
+ *  	headless						run on HeadlessSimulator with the map
+ *  									instead of on tsim
+ *  	executor threads|cached|fixed n	what runs the trains; a thread of
+ *  									their own each by default
+ *  	stallfactor f					as in Lab1
+ *  	locks address name [lease]		lock the sections of the layout
+ *  									called name on a SectionLockServer,
+ *  									shared with fleets in other
+ *  									processes
+ *  	checkpoint file [ms]			save the state of the trains to a
+ *  									file, forced to disk every ms, 1000
+ *  									by default, and restore it on start
+ *  	reload							move the sensors while the trains run
+ *  									when the map file changes, or on
+ *  									the line "reload" on standard input
+ *  									when headless
+ *  	dashboard port [ms]				serve the state of the trains on
+ *  									http://localhost:port/, taken every
+ *  									ms, 500 by default; see Dashboard
+ *  	train id speed [station upper|lower]
+ *
+ *  Each train runs on the layout whose station sensors are nearest to
+ *  where it starts on the map, and its stations are those of that layout.
+ *  Every layout has the stations and sections of Lab1.map, which are only
+ *  safe for Topology.MAX_TRAINS trains, so a fleet with more trains on a
+ *  layout is rejected; with locks, the fleets sharing a layout must not
+ *  have more between them either. More trains need more layouts, such as
+ *  the copies of Lab1.map compiled by CompiledMap; see Lab1x2.fleet. The
+ *  speeds are capped at the Topology.maxSpeed of the layout, as in Lab1.
+ *  A train placed on the upper track of a station holds it from the start.
+ *  With locks, each process starts only its own trains, and the upper
+ *  tracks given are taken on the server. Several layouts are locked as
+ *  name.1, name.2 and so on.
+ *  With a checkpoint that has a state for every train, the trains carry on
+ *  from where the last run left them rather than from their stations, and
+ *  the speeds and stations given are not used.
+ *  Train ids are numbered by tsim from 1 in the order of the map.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class Fleet {
+
+	/** Runs each train on a thread of its own, as Lab1 does.
+	 */
+	public static final Executor OWN_THREADS = new Executor() {
+		public void execute(Runnable r) {
+			if (r instanceof Thread) ((Thread) r).start();
+			else new Thread(r).start();
+		}
+	};
+
+	/** A train as given in the file.
+	 */
+	public static class TrainConfig {
+		public final int id, speed;
+		/** The index of the station whose upper track the train starts on,
+		 *  or -1. */
+		public final int startStation;
+
+		public TrainConfig(int id, int speed, int startStation) {
+			this.id = id;
+			this.speed = speed;
+			this.startStation = startStation;
+		}
+	}
+
+	private boolean monitors = false;
+	private int simSpeed = 100;
+	private File mapFile;
+	private boolean headless = false;
+	private String executor = "threads";
+	private int executorThreads;
+	private double stallFactor = 4.0;
+	private String lockAddress, lockName;
+	private long lockLease = SectionLockClient.DEFAULT_LEASE;
+	private File checkpointFile;
+	private long checkpointMillis = 1000;
+	private boolean reload = false;
+	private MapWatcher watcher;
+	private int dashboardPort = -1;
+	private long dashboardMillis = 500;
+	private final List<TrainConfig> trains = new ArrayList<TrainConfig>();
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("usage: java Fleet file");
+			System.exit(1);
+		}
+		try {
+			Fleet fleet = load(new File(args[0]));
+			TSimInterface tsi;
+			if (fleet.headless) {
+				HeadlessSimulator sim =
+						new HeadlessSimulator(fleet.loadMap(), fleet.simSpeed);
+				tsi = sim.getInterface();
+				sim.start();
+			} else {
+				tsi = TSimInterface.getInstance();
+			}
+			List<WatchedTrain> started = fleet.start(tsi, fleet.createExecutor());
+			TrainWatchdog watchdog = new TrainWatchdog(tsi, fleet.stallFactor, 1000);
+			for (WatchedTrain t : started) watchdog.watch(t);
+			watchdog.start();
+			// Without tsim, standard input is free for commands.
+			if (fleet.headless && fleet.watcher != null) {
+				BufferedReader in =
+						new BufferedReader(new InputStreamReader(System.in));
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.trim().equals("reload") && fleet.watcher.reload())
+						System.err.println("reloaded " + fleet.mapFile);
+				}
+			}
+		} catch (IOException | IllegalArgumentException
+				| IllegalStateException e) {
+			System.err.println(args[0] + ": " + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/** Reads a fleet from a file.
+	 *
+	 *  @throws IOException if the file could not be read or has an error.
+	 */
+	public static Fleet load(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			return read(in, file.getParentFile());
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Reads a fleet.
+	 *
+	 *  @param dir the directory that a map file is relative to.
+	 *  @throws IOException if the text could not be read or has an error.
+	 */
+	public static Fleet read(BufferedReader in, File dir) throws IOException {
+		Fleet fleet = new Fleet();
+		Set<Integer> ids = new HashSet<Integer>();
+		String line;
+		int no = 0;
+		while ((line = in.readLine()) != null) {
+			no++;
+			int hash = line.indexOf('#');
+			if (hash >= 0) line = line.substring(0, hash);
+			String[] w = line.trim().split("\\s+");
+			if (w[0].isEmpty()) continue;
+			try {
+				if (w[0].equals("controller") && w.length == 2) {
+					if (!w[1].equals("semaphore") && !w[1].equals("monitor"))
+						throw new IOException("unknown controller " + w[1]);
+					fleet.monitors = w[1].equals("monitor");
+				} else if (w[0].equals("simspeed") && w.length == 2) {
+					fleet.simSpeed = Integer.parseInt(w[1]);
+				} else if (w[0].equals("map") && w.length == 2) {
+					File f = new File(w[1]);
+					fleet.mapFile = f.isAbsolute() ? f : new File(dir, w[1]);
+				} else if (w[0].equals("headless") && w.length == 1) {
+					fleet.headless = true;
+				} else if (w[0].equals("executor") && w.length >= 2 && w.length <= 3) {
+					fleet.executor = w[1];
+					if (w[1].equals("fixed") && w.length == 3) {
+						fleet.executorThreads = Integer.parseInt(w[2]);
+					} else if (!(w[1].equals("threads") || w[1].equals("cached"))
+							|| w.length == 3) {
+						throw new IOException("unknown executor " + w[1]);
+					}
+				} else if (w[0].equals("stallfactor") && w.length == 2) {
+					fleet.stallFactor = Double.parseDouble(w[1]);
+				} else if (w[0].equals("locks") && (w.length == 3 || w.length == 4)) {
+					fleet.lockAddress = w[1];
+					fleet.lockName = w[2];
+					if (w.length == 4) fleet.lockLease = Long.parseLong(w[3]);
+				} else if (w[0].equals("dashboard") && (w.length == 2 || w.length == 3)) {
+					fleet.dashboardPort = Integer.parseInt(w[1]);
+					if (w.length == 3) fleet.dashboardMillis = Long.parseLong(w[2]);
+				} else if (w[0].equals("reload") && w.length == 1) {
+					fleet.reload = true;
+				} else if (w[0].equals("checkpoint") && (w.length == 2 || w.length == 3)) {
+					File f = new File(w[1]);
+					fleet.checkpointFile = f.isAbsolute() ? f : new File(dir, w[1]);
+					if (w.length == 3) fleet.checkpointMillis = Long.parseLong(w[2]);
+				} else if (w[0].equals("train") && (w.length == 3 || w.length == 5)) {
+					int id = Integer.parseInt(w[1]);
+					int station = -1;
+					if (w.length == 5) {
+						if (!w[4].equals("upper") && !w[4].equals("lower"))
+							throw new IOException("upper or lower expected");
+						if (Integer.parseInt(w[3]) < 1)
+							throw new IOException("stations are numbered from 1");
+						if (w[4].equals("upper")) station = Integer.parseInt(w[3]) - 1;
+					}
+					if (!ids.add(id))
+						throw new IOException("train " + id + " given twice");
+					fleet.trains.add(new TrainConfig(id, Integer.parseInt(w[2]),
+							station));
+				} else {
+					throw new IOException("unknown setting");
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("line " + no + ": number expected");
+			} catch (IOException e) {
+				throw new IOException("line " + no + ": " + e.getMessage());
+			}
+		}
+		if (fleet.headless && fleet.mapFile == null)
+			throw new IOException("headless needs a map");
+		if (fleet.reload && fleet.mapFile == null)
+			throw new IOException("reload needs a map");
+		if (fleet.executor.equals("fixed")
+				&& fleet.executorThreads < fleet.trains.size())
+			throw new IOException("a fixed executor needs a thread per train");
+		return fleet;
+	}
+
+	public List<TrainConfig> getTrains() {
+		return Collections.unmodifiableList(trains);
+	}
+
+	/** Returns the executor chosen in the file.
+	 */
+	public Executor createExecutor() {
+		if (executor.equals("cached")) return Executors.newCachedThreadPool();
+		if (executor.equals("fixed"))
+			return Executors.newFixedThreadPool(executorThreads);
+		return OWN_THREADS;
+	}
+
+	private TrainLineMap loadMap() throws IOException {
+		TrainLineMap map = CompiledMap.isCompiled(mapFile)
+				? CompiledMap.open(mapFile).toTrainLineMap()
+				: TrainLineMap.load(mapFile);
+		for (TrainConfig t : trains) {
+			if (t.id < 1 || t.id > map.getTrains().size())
+				throw new IOException("the map has no train " + t.id);
+		}
+		return map;
+	}
+
+	/** Returns the topologies of the layouts of the map, and of Lab1.map
+	 *  without one.
+	 */
+	private List<Topology> loadTopologies() throws IOException {
+		List<Topology> topologies = new ArrayList<Topology>();
+		if (mapFile == null) {
+			topologies.add(new Topology(Train.defaultStations,
+					Train.defaultCriticals, Train.defaultSwitches,
+					Topology.LAB1_ROOM));
+		} else if (CompiledMap.isCompiled(mapFile)) {
+			CompiledMap map = CompiledMap.open(mapFile);
+			for (int i = 0; i < map.layoutCount(); i++)
+				topologies.add(map.topology(i));
+		} else {
+			topologies.add(Topology.of(loadMap()));
+		}
+		if (topologies.isEmpty())
+			throw new IOException(mapFile + ": the map has no layouts");
+		return topologies;
+	}
+
+	/** Returns the index of the layout each train runs on, in the order of
+	 *  the file: the one with the station sensor nearest to where the
+	 *  train starts on the map.
+	 */
+	private int[] assign(List<Topology> topologies) throws IOException {
+		int[] layoutOf = new int[trains.size()];
+		if (topologies.size() == 1) return layoutOf;
+		List<TrainLineMap.TrainSpec> specs =
+				CompiledMap.open(mapFile).getTrains();
+		for (int i = 0; i < layoutOf.length; i++) {
+			int id = trains.get(i).id;
+			if (id < 1 || id > specs.size())
+				throw new IOException("the map has no train " + id);
+			TrainLineMap.TrainSpec spec = specs.get(id - 1);
+			long nearest = Long.MAX_VALUE;
+			for (int l = 0; l < topologies.size(); l++) {
+				for (SensorEvent s : topologies.get(l).stations) {
+					long dx = s.getXpos() - spec.x, dy = s.getYpos() - spec.y;
+					if (dx * dx + dy * dy >= nearest) continue;
+					nearest = dx * dx + dy * dy;
+					layoutOf[i] = l;
+				}
+			}
+		}
+		return layoutOf;
+	}
+
+	/** Creates the trains on their layouts, places them at their stations
+	 *  and then runs them all on the executor.
+	 *
+	 *  @return The trains, in the order of the file.
+	 *  @throws IOException if the map or checkpoint could not be read, the
+	 *  		lock server could not be reached or the dashboard port could
+	 *  		not be bound.
+	 *  @throws IllegalArgumentException if a station does not exist, or a
+	 *  		layout has more than Topology.MAX_TRAINS trains.
+	 *  @throws IllegalStateException if two trains start on the same upper
+	 *  		track.
+	 */
+	public List<WatchedTrain> start(TSimInterface tsi, Executor executor)
+			throws IOException {
+		List<Topology> topologies = loadTopologies();
+		int[] layoutOf = assign(topologies);
+		int[] count = new int[topologies.size()];
+		for (int l : layoutOf) {
+			if (++count[l] > Topology.MAX_TRAINS)
+				throw new IllegalArgumentException("at most "
+						+ Topology.MAX_TRAINS + " trains can share a layout, "
+						+ "but layout " + (l + 1) + " has more");
+		}
+
+		SectionLockClient locks = lockAddress == null ? null
+				: SectionLockClient.connect(lockAddress, lockLease);
+		List<TrainController.Layout> layouts =
+				new ArrayList<TrainController.Layout>();
+		for (Topology t : topologies) {
+			TrainController.Layout layout = monitors
+					? new Train2.Layout(t) : new Train.Layout(t);
+			if (locks != null) {
+				layout = layout.remote(locks, topologies.size() == 1
+						? lockName : lockName + "." + (layouts.size() + 1));
+			}
+			layouts.add(layout);
+		}
+
+		Checkpoint checkpoint = null;
+		if (checkpointFile != null) {
+			int[] ids = new int[trains.size()];
+			for (int i = 0; i < ids.length; i++) ids[i] = trains.get(i).id;
+			checkpoint = new Checkpoint(checkpointFile, ids, checkpointMillis);
+		}
+		boolean restore = checkpoint != null && checkpoint.isComplete();
+
+		List<WatchedTrain> created = new ArrayList<WatchedTrain>();
+		for (int i = 0; i < trains.size(); i++) {
+			TrainConfig t = trains.get(i);
+			TrainController.Layout layout = layouts.get(layoutOf[i]);
+			if (t.startStation >= layout.stationCount())
+				throw new IllegalArgumentException("train " + t.id
+						+ ": there is no station " + (t.startStation + 1));
+			int station = restore ? -1 : t.startStation;
+			int speed = t.speed;
+			int cap = layout.topology().maxSpeed();
+			if (Math.abs(speed) > cap) {
+				speed = Integer.signum(speed) * cap;
+				System.err.println("train " + t.id + ": speed capped at "
+						+ cap + " for the sensors of its layout");
+			}
+			created.add(monitors
+					? new Train2(t.id, speed, simSpeed, tsi,
+							(Train2.Layout) layout, station)
+					: new Train(t.id, speed, simSpeed, tsi,
+							(Train.Layout) layout, station));
+		}
+		if (checkpoint != null) {
+			for (WatchedTrain t : created) {
+				Checkpoint.Restorable r = (Checkpoint.Restorable) t;
+				if (restore) r.restore(checkpoint.restored(t.getTrainId()));
+				r.checkpointTo(checkpoint);
+			}
+		}
+		if (dashboardPort >= 0) {
+			List<SectionTable> tables = new ArrayList<SectionTable>();
+			for (TrainController.Layout l : layouts) tables.add(l.sections);
+			Dashboard dashboard = new Dashboard(tsi, tables, dashboardMillis);
+			for (WatchedTrain t : created) dashboard.watch(t);
+			System.err.println("dashboard on http://localhost:"
+					+ dashboard.start(dashboardPort).getPort() + "/");
+		}
+		if (reload) {
+			watcher = new MapWatcher(mapFile, layouts.toArray(
+					new Topology.Holder[layouts.size()]));
+			watcher.start();
+		}
+		for (WatchedTrain t : created) executor.execute((Runnable) t);
+		return created;
+	}
+}
@@ -0,0 +1,386 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import TSim.*;
+import static TSim.Physics.*;
+
+/** A stand-in for tsim that simulates the trains of a map without any
+ *  window. Trains move, accelerate, trigger sensors, collide and derail
+ *  as in tsim, and the simulator talks the same protocol over in-memory
+ *  pipes to its own TSimInterface. Like tsim, it advances the trains by a
+ *  tenth of a simulated second after each delay of the given number of
+ *  milliseconds, so controllers see the same timing as with tsim -s.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class HeadlessSimulator {
+
+	private final TrainLineMap map;
+	private final int delay;
+	private final int[][] switches;
+	private final List<SimTrain> trains = new ArrayList<SimTrain>();
+
+	/** The trains with a car on each tile, once for each such car, so that
+	 *  collisions are looked for near a car rather than on the whole map.
+	 */
+	private final List<List<SimTrain>> trainsAt;
+
+	private final TSimInterface tsi;
+	private final Pipe toSim;
+	private final BufferedReader commands;
+	private final PrintStream messages;
+
+	private volatile boolean running = false;
+	private volatile boolean closed = false;
+	private long ticks = 0;
+
+	/** A train in the simulation. */
+	private static final class SimTrain {
+		final int no;
+		final int[] x, y, dir;	// per car, the engine first
+		final int[] px, py;		// car positions in pixels
+		int offset = 0;
+		double speed = 0, wantedSpeed = 0, offsetFrac = 0;
+		double travelled = 0;	// pixels, either way
+
+		SimTrain(int no, int cars) {
+			this.no = no;
+			x = new int[cars];
+			y = new int[cars];
+			dir = new int[cars];
+			px = new int[cars];
+			py = new int[cars];
+		}
+	}
+
+	/** Creates a simulator for a map. The simulation is started by start().
+	 *
+	 *  @param map the map, including its trains.
+	 *  @param delay the delay between updates in milliseconds, as given to
+	 *  	   tsim with -s.
+	 *  @throws IOException if the pipes could not be opened.
+	 *  @throws IllegalArgumentException if a train does not fit on the map.
+	 */
+	public HeadlessSimulator(TrainLineMap map, int delay) throws IOException {
+		this.map = map;
+		this.delay = delay;
+		this.switches = new int[map.width][map.height];
+		this.trainsAt = new ArrayList<List<SimTrain>>(map.width * map.height);
+		for (int i = 0; i < map.width * map.height; i++)
+			trainsAt.add(new ArrayList<SimTrain>(1));
+		int no = 1;
+		for (TrainLineMap.TrainSpec spec : map.getTrains()) {
+			trains.add(createTrain(no++, spec));
+		}
+
+		toSim = Pipe.open();
+		Pipe fromSim = Pipe.open();
+		tsi = TSimInterface.connect(Channels.newInputStream(fromSim.source()),
+				Channels.newOutputStream(toSim.sink()));
+		commands = new BufferedReader(new InputStreamReader(
+				Channels.newInputStream(toSim.source())));
+		messages = new PrintStream(Channels.newOutputStream(fromSim.sink()),
+				true);
+	}
+
+	/** Returns the interface connected to this simulator.
+	 */
+	public TSimInterface getInterface() {
+		return tsi;
+	}
+
+	/** Returns the number of simulated seconds so far.
+	 */
+	public synchronized double getSimulatedSeconds() {
+		return ticks * TICK;
+	}
+
+	/** Starts answering commands and moving the trains, each on a daemon
+	 *  thread.
+	 */
+	public void start() {
+		running = true;
+		Thread reader = new Thread("simulator commands") {
+			public void run() {
+				readCommands();
+			}
+		};
+		Thread mover = new Thread("simulator trains") {
+			public void run() {
+				try {
+					while (running) {
+						tick();
+						if (delay > 0) sleep(delay);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		};
+		reader.setDaemon(true);
+		mover.setDaemon(true);
+		reader.start();
+		mover.start();
+	}
+
+	/** Stops moving the trains. Commands are still answered.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/** Stops the simulator for good. The trains stop moving, the interface
+	 *  is closed, and the threads of both end as the pipes between them
+	 *  are closed.
+	 */
+	public void close() {
+		running = false;
+		closed = true;
+		tsi.close();
+		try {
+			// Not commands, whose lock readLine holds while it blocks.
+			toSim.source().close();
+		} catch (IOException e) {
+			// Nothing more is read from it anyway.
+		}
+		messages.close();
+	}
+
+	private void readCommands() {
+		try {
+			String line;
+			while ((line = commands.readLine()) != null) {
+				String reply;
+				synchronized (this) {
+					reply = dispatch(line);
+				}
+				send(reply);
+			}
+		} catch (IOException e) {
+			if (!closed) System.err.println(e.getMessage());
+		}
+	}
+
+	/** Carries out a command and returns the status to reply with.
+	 */
+	String dispatch(String line) {
+		StringTokenizer st = new StringTokenizer(line);
+		if (!st.hasMoreTokens()) return "SuccessStatus";
+		String command = st.nextToken();
+		try {
+			if (command.equalsIgnoreCase("SetSpeed")) {
+				int no = Integer.parseInt(st.nextToken());
+				return setSpeed(no, Double.parseDouble(st.nextToken()));
+			} else if (command.equalsIgnoreCase("SetSwitch")) {
+				int x = Integer.parseInt(st.nextToken());
+				int y = Integer.parseInt(st.nextToken());
+				int sw = st.nextToken().equalsIgnoreCase("RightSwitch")
+						? TrainLineMap.RIGHT_SWITCH : TrainLineMap.LEFT_SWITCH;
+				return setSwitch(x, y, sw);
+			}
+		} catch (NoSuchElementException | NumberFormatException e) {
+			return "IllegalRailPosStatus";
+		}
+		// tsim acknowledges unknown commands
+		return "SuccessStatus";
+	}
+
+	private String setSpeed(int no, double wanted) {
+		if (no < 1 || no > trains.size()) return "IllegalTrainNoStatus";
+		SimTrain t = trains.get(no - 1);
+		if (t.speed * wanted < 0) return "IllegalReverseStatus";
+		t.wantedSpeed = wanted;
+		return "SuccessStatus";
+	}
+
+	private String setSwitch(int x, int y, int sw) {
+		if (!map.isInside(x, y)) return "IllegalRailPosStatus";
+		if (carPresent(x * RAIL_WIDTH, y * RAIL_WIDTH, null, -1))
+			return "IllegalSwitchingStatus";
+		if (!map.isSwitch(x, y)) return "NoSwitchStatus";
+		switches[x][y] = sw;
+		return "SuccessStatus";
+	}
+
+	/** Advances the simulation one update.
+	 */
+	synchronized void tick() {
+		ticks++;
+		double diff = TICK * ACCELERATION;
+		for (SimTrain t : trains) {
+			if (t.speed != t.wantedSpeed) {
+				double oldDir = Math.signum(t.wantedSpeed - t.speed);
+				t.speed += oldDir * diff;
+				if (Math.signum(t.wantedSpeed - t.speed) != oldDir)
+					t.speed = t.wantedSpeed;
+			}
+			t.offsetFrac += TICK * Math.abs(t.speed);
+			if (t.offsetFrac >= 1.0) {
+				int distance = (int) t.offsetFrac;
+				t.offsetFrac -= distance;
+				t.travelled += distance;
+				String event = move(t, (int) Math.signum(t.speed) * distance);
+				if (event != null) {
+					t.speed = 0;
+					t.wantedSpeed = 0;
+					send(event + " " + t.no);
+				}
+			}
+		}
+	}
+
+	/** Moves a train the given number of pixels, backwards if negative.
+	 *
+	 *  @return The name of the event if the train crashed, otherwise null.
+	 */
+	private String move(SimTrain t, int distance) {
+		if (distance == 0) return null;
+		boolean reverse = distance < 0;
+		int last = t.x.length - 1;
+		int[] p = new int[4];
+		for (int c = 0; c <= last; c++) {
+			int oldX = t.x[c], oldY = t.y[c];
+			String event = movePos(distance, t.offset, t.dir[c], t.x[c], t.y[c], p);
+			if (event != null) return event;
+			t.x[c] = p[1];
+			t.y[c] = p[2];
+			t.dir[c] = p[3];
+			t.px[c] = p[1] * RAIL_WIDTH + TrainLineMap.dx(p[3]) * p[0];
+			t.py[c] = p[2] * RAIL_WIDTH + TrainLineMap.dy(p[3]) * p[0];
+			if (t.x[c] != oldX || t.y[c] != oldY) {
+				trainsAt(oldX, oldY).remove(t);
+				trainsAt(t.x[c], t.y[c]).add(t);
+				if (c == 0) {
+					if (reverse && map.isSensor(oldX, oldY))
+						sensor(t, oldX, oldY, false);
+					else if (!reverse && map.isSensor(t.x[c], t.y[c]))
+						sensor(t, t.x[c], t.y[c], true);
+				}
+				if (c == last) {
+					if (reverse && map.isSensor(t.x[c], t.y[c]))
+						sensor(t, t.x[c], t.y[c], true);
+					else if (!reverse && map.isSensor(oldX, oldY))
+						sensor(t, oldX, oldY, false);
+				}
+			}
+			if (c == last) t.offset = p[0];
+		}
+		int front = reverse ? last : 0;
+		if (carPresent(t.px[front], t.py[front], t, front))
+			return "TrainCollisionEvent";
+		return null;
+	}
+
+	private void sensor(SimTrain t, int x, int y, boolean active) {
+		send("Sensor " + t.no + " " + x + " " + y
+				+ (active ? " active" : " inactive"));
+	}
+
+	/** Sends a reply or an event to the interface. Events are sent with
+	 *  the simulator locked, replies without.
+	 */
+	protected void send(String message) {
+		messages.println(message);
+	}
+
+	/** Returns the number of pixels a train has moved, forwards or
+	 *  backwards; called with the simulator locked.
+	 */
+	double travelled(int no) {
+		return trains.get(no - 1).travelled;
+	}
+
+	/** Moves a position along the rails, as MovePos in tsim.
+	 *
+	 *  @param result receives the new offset, x, y and direction.
+	 *  @return The name of the event if the move crashed, otherwise null.
+	 */
+	private String movePos(int distance, int offset, int dir, int x, int y,
+			int[] result) {
+		offset += distance;
+		while (offset >= RAIL_WIDTH || offset < 0) {
+			if (distance < 0) {
+				offset += RAIL_WIDTH;
+				if (map.isStop(x, y)) return "StopCollisionEvent";
+				dir = TrainLineMap.opposite(map.newDirection(x, y, switches[x][y],
+						TrainLineMap.opposite(dir)));
+				if (dir == TrainLineMap.NO_DIR) return "DerailmentEvent";
+				x -= TrainLineMap.dx(dir);
+				y -= TrainLineMap.dy(dir);
+				if (!map.isInside(x, y)) return "DerailmentEvent";
+			} else {
+				offset -= RAIL_WIDTH;
+				x += TrainLineMap.dx(dir);
+				y += TrainLineMap.dy(dir);
+				if (!map.isInside(x, y)) return "DerailmentEvent";
+				if (map.isStop(x, y)) return "StopCollisionEvent";
+				dir = map.newDirection(x, y, switches[x][y], dir);
+				if (dir == TrainLineMap.NO_DIR) return "DerailmentEvent";
+			}
+		}
+		result[0] = offset;
+		result[1] = x;
+		result[2] = y;
+		result[3] = dir;
+		return null;
+	}
+
+	private List<SimTrain> trainsAt(int x, int y) {
+		return trainsAt.get(x * map.height + y);
+	}
+
+	/** Checks whether a car other than the given one is within half a tile
+	 *  of a pixel position. A car is less than a tile from the corner of its
+	 *  own tile, so only the tiles around the position are looked at.
+	 */
+	private boolean carPresent(int px, int py, SimTrain notTrain, int notCar) {
+		int min = RAIL_WIDTH / 2;
+		int reach = RAIL_WIDTH + min;
+		int x0 = Math.max(0, Math.floorDiv(px - reach, RAIL_WIDTH));
+		int x1 = Math.min(map.width - 1, Math.floorDiv(px + reach, RAIL_WIDTH));
+		int y0 = Math.max(0, Math.floorDiv(py - reach, RAIL_WIDTH));
+		int y1 = Math.min(map.height - 1, Math.floorDiv(py + reach, RAIL_WIDTH));
+		for (int x = x0; x <= x1; x++) {
+			for (int y = y0; y <= y1; y++) {
+				for (SimTrain t : trainsAt(x, y)) {
+					for (int c = 0; c < t.x.length; c++) {
+						if (t == notTrain && c == notCar) continue;
+						if (Math.abs(t.px[c] - px) < min
+								&& Math.abs(t.py[c] - py) < min)
+							return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Places a train with its engine at the given position, and the cars
+	 *  behind it, as CreateTrain in tsim.
+	 */
+	private SimTrain createTrain(int no, TrainLineMap.TrainSpec spec) {
+		SimTrain t = new SimTrain(no, spec.cars);
+		int[] p = new int[4];
+		int x = spec.x, y = spec.y, dir = spec.direction;
+		if (movePos(-RAIL_WIDTH, 0, dir, x, y, p) != null)
+			throw new IllegalArgumentException("train " + no + " does not fit");
+		for (int c = 0; c < spec.cars; c++) {
+			t.x[c] = x;
+			t.y[c] = y;
+			t.dir[c] = dir;
+			t.px[c] = x * RAIL_WIDTH;
+			t.py[c] = y * RAIL_WIDTH;
+			trainsAt(x, y).add(t);
+			if (c < spec.cars - 1) {
+				if (movePos(-RAIL_WIDTH, 0, dir, x, y, p) != null)
+					throw new IllegalArgumentException("train " + no
+							+ " does not fit");
+				x = p[1];
+				y = p[2];
+				dir = p[3];
+			}
+		}
+		return t;
+	}
+}
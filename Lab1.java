@@ -1,14 +1,39 @@
+import java.io.*;
+
+import TSim.*;
+
 public class Lab1 {
 
 	private static final int maxSpeed = 20;
 
+	/** A train is reported as stalled after this many times its usual
+	 *  time between two sensors.
+	 */
+	private static final double stallFactor = 4.0;
+
 	public static void main(String[] args) {
 		new Lab1(args);
 	}
 
+	/** Starts the trains. The arguments are the speeds of the trains, the
+	 *  simulation speed and optionally a map whose sensors have been moved
+	 *  by SensorPlacer. With a map, the speeds are capped at the speed its
+	 *  sensors were validated for, Topology.maxSpeed.
+	 */
 	public Lab1(String[] args) {
 		int t1speed = maxSpeed, t2speed = maxSpeed;
 		int simSpeed = 100;
+		int cap = maxSpeed;
+		Train.Layout layout = new Train.Layout();
+		if (args.length > 3) {
+			try {
+				layout = SensorPlacer.locate(TrainLineMap.load(new File(args[3])));
+				cap = layout.topology().maxSpeed();
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println(args[3] + ": " + e.getMessage());
+				System.exit(1);
+			}
+		}
 
 		switch (args.length) {
 		default:
@@ -16,16 +41,22 @@ public class Lab1 {
 			simSpeed = Integer.parseInt(args[2]);
 		case 2:
 			t2speed = Integer.parseInt(args[1]);
-			if (t2speed > maxSpeed) t2speed = maxSpeed;
+			if (t2speed > cap) t2speed = cap;
 		case 1:
 			t1speed = Integer.parseInt(args[0]);
-			if (t1speed > maxSpeed) t1speed = maxSpeed;
+			if (t1speed > cap) t1speed = cap;
 		case 0:
 			break;
 		}
 
-		Train t1 = new Train(1, t1speed, simSpeed);
-		Train t2 = new Train(2, t2speed, simSpeed);
+		TSimInterface tsi = TSimInterface.getInstance();
+		Train t1 = new Train(1, t1speed, simSpeed, tsi, layout);
+		Train t2 = new Train(2, t2speed, simSpeed, tsi, layout);
+		TrainWatchdog watchdog =
+				new TrainWatchdog(tsi, stallFactor, 1000);
+		watchdog.watch(t1);
+		watchdog.watch(t2);
+		watchdog.start();
 		t1.start();
 		t2.start();
 	}
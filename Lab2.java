@@ -1,9 +1,16 @@
+import TSim.*;
+
 public class Lab2 {
 
 	private static final int maxSpeed = 20;
 
+	/** A train is reported as stalled after this many times its usual
+	 *  time between two sensors.
+	 */
+	private static final double stallFactor = 4.0;
+
 	public static void main(String[] args) {
-		new Lab1(args);
+		new Lab2(args);
 	}
 
 	public Lab2(String[] args) {
@@ -26,6 +33,11 @@ public class Lab2 {
 
 		Train2 t1 = new Train2(1, t1speed, simSpeed);
 		Train2 t2 = new Train2(2, t2speed, simSpeed);
+		TrainWatchdog watchdog =
+				new TrainWatchdog(TSimInterface.getInstance(), stallFactor, 1000);
+		watchdog.watch(t1);
+		watchdog.watch(t2);
+		watchdog.start();
 		t1.start();
 		t2.start();
 	}
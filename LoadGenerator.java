@@ -0,0 +1,236 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import TSim.*;
+
+/** Feeds a TSimInterface with protocol text at a fixed rate, to find how
+ *  many messages per second its reader can parse and hand to the trains
+ *  before their buffers back up. The text is what tsim would send for
+ *  many trains: for each train in turn an active or inactive sensor
+ *  event, with a status now and then, and a collision for some trains,
+ *  after which they get no more events. Each train has a thread of its
+ *  own calling getSensor, as the controllers do.
+ *
+ *  The text goes over an in-memory pipe, or with -pipe through a cat
+ *  process and so through two pipes of the operating system, as text
+ *  from tsim does. For each rate the following are reported, as comma
+ *  separated lines in the format of TSimBenchmark:
+ *
+ *  	the rate asked for and the rate the events were delivered at;
+ *  	the latency of each event, from when it was due to be sent until
+ *  	getSensor returned it;
+ *  	the most events sent and not yet delivered;
+ *  	the heap held at the end of sending, after a collection, and the
+ *  	most heap in use during the run.
+ *
+ *  Usage: java LoadGenerator [-pipe] trains seconds rate[,rate...]
+ *  [crashes]
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class LoadGenerator {
+
+	/** One status for every this many events. */
+	private static final int STATUS_EVERY = 4;
+
+	/** How often the backlog and heap are sampled. */
+	private static final long SAMPLE_MILLIS = 50;
+
+	/** How long to wait for the trains to get their events after the
+	 *  last one was sent. */
+	private static final long DRAIN_MILLIS = 60000;
+
+	public static void main(String[] args) throws Exception {
+		boolean pipe = args.length > 0 && args[0].equals("-pipe");
+		if (pipe) args = Arrays.copyOfRange(args, 1, args.length);
+		if (args.length < 3 || args.length > 4) {
+			System.err.println("usage: java LoadGenerator [-pipe] trains "
+					+ "seconds rate[,rate...] [crashes]");
+			System.exit(1);
+		}
+		int trains = Integer.parseInt(args[0]);
+		double seconds = Double.parseDouble(args[1]);
+		int crashes = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+		if (crashes > trains) {
+			System.err.println("more crashes than trains");
+			System.exit(1);
+		}
+
+		System.out.println("benchmark,param,metric,value,unit");
+		for (String s : args[2].split(","))
+			run(trains, Long.parseLong(s), seconds, crashes, pipe);
+		System.exit(0);
+	}
+
+	/** Sends events to the trains at one rate for the given time and
+	 *  reports how they were delivered.
+	 */
+	static void run(final int trains, final long rate, double seconds,
+			int crashes, boolean pipe) throws Exception {
+		String param = trains + " trains " + rate + "/s"
+				+ (pipe ? " piped" : "");
+		final long slots = (long) (rate * seconds);
+		final double period = 1e9 / rate;
+
+		// The event of train t (from 0) in round k is slot k * trains + t.
+		final long[] crashAt = new long[trains];
+		Arrays.fill(crashAt, Long.MAX_VALUE);
+		for (int i = 0; i < crashes; i++)
+			crashAt[(int) ((long) i * trains / crashes)] = slots / trains / 2;
+		final long[][] latencies = new long[trains][];
+		for (int t = 0; t < trains; t++) {
+			long rounds = slots / trains + (t < slots % trains ? 1 : 0);
+			latencies[t] = new long[(int) Math.min(rounds, crashAt[t])];
+		}
+
+		long heapBefore = usedHeap();
+		Process cat = null;
+		InputStream in;
+		OutputStream out;
+		if (pipe) {
+			cat = new ProcessBuilder("cat").start();
+			in = cat.getInputStream();
+			out = cat.getOutputStream();
+		} else {
+			Pipe p = Pipe.open();
+			in = Channels.newInputStream(p.source());
+			out = Channels.newOutputStream(p.sink());
+		}
+		final TSimInterface tsi = TSimInterface.connect(in,
+				new ByteArrayOutputStream());
+
+		final AtomicLong start = new AtomicLong();
+		final LongAdder delivered = new LongAdder();
+		final AtomicInteger crashed = new AtomicInteger();
+		Thread[] consumers = new Thread[trains];
+		for (int t = 0; t < trains; t++) {
+			final int train = t;
+			consumers[t] = new Thread() {
+				public void run() {
+					long[] mine = latencies[train];
+					try {
+						for (int k = 0; k < mine.length; k++) {
+							tsi.getSensor(train + 1);
+							long due = start.get()
+									+ (long) (((long) k * trains + train) * period);
+							mine[k] = System.nanoTime() - due;
+							delivered.increment();
+						}
+						if (crashAt[train] != Long.MAX_VALUE)
+							tsi.getSensor(train + 1);
+					} catch (CommandException e) {
+						crashed.incrementAndGet();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			};
+			consumers[t].setDaemon(true);
+			consumers[t].start();
+		}
+
+		final AtomicLong sent = new AtomicLong();
+		final long[] maxBacklog = new long[1];
+		final long[] maxHeap = new long[1];
+		Thread sampler = new Thread() {
+			public void run() {
+				Runtime rt = Runtime.getRuntime();
+				while (!isInterrupted()) {
+					synchronized (maxBacklog) {
+						maxBacklog[0] = Math.max(maxBacklog[0],
+								sent.get() - delivered.sum());
+						maxHeap[0] = Math.max(maxHeap[0],
+								rt.totalMemory() - rt.freeMemory());
+					}
+					try {
+						sleep(SAMPLE_MILLIS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		};
+		sampler.setDaemon(true);
+
+		// Write whatever is due, then wait for the next slot.
+		BufferedOutputStream buffered = new BufferedOutputStream(out, 1 << 16);
+		StringBuilder sb = new StringBuilder();
+		start.set(System.nanoTime());
+		sampler.start();
+		long slot = 0;
+		while (slot < slots) {
+			long due = Math.min(slots,
+					(long) ((System.nanoTime() - start.get()) / period) + 1);
+			if (due <= slot) {
+				LockSupport.parkNanos(start.get() + (long) (slot * period)
+						- System.nanoTime());
+				continue;
+			}
+			sb.setLength(0);
+			long events = 0;
+			for (; slot < due; slot++) {
+				int t = (int) (slot % trains);
+				long k = slot / trains;
+				if (k > crashAt[t]) continue;
+				if (k == crashAt[t]) {
+					sb.append("TrainCollisionEvent ").append(t + 1).append('\n');
+					continue;
+				}
+				sb.append("Sensor ").append(t + 1).append(' ').append(k % 20)
+						.append(' ').append(t % 15)
+						.append((k & 1) == 0 ? " active\n" : " inactive\n");
+				if (slot % STATUS_EVERY == 0) sb.append("SuccessStatus\n");
+				events++;
+			}
+			buffered.write(sb.toString().getBytes());
+			buffered.flush();
+			sent.addAndGet(events);
+		}
+		double sending = (System.nanoTime() - start.get()) / 1e9;
+		long heapHeld = usedHeap() - heapBefore;
+
+		long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+		for (Thread c : consumers)
+			c.join(Math.max(1, deadline - System.currentTimeMillis()));
+		double wall = (System.nanoTime() - start.get()) / 1e9;
+		sampler.interrupt();
+		for (Thread c : consumers) c.interrupt();
+		// The pipe is left open: the end of the text exits the program,
+		// as when tsim exits. cat ends with the program.
+
+		long n = delivered.sum();
+		long[] all = new long[(int) n];
+		int i = 0;
+		for (long[] mine : latencies) {
+			for (int k = 0; k < mine.length && i < n; k++) {
+				if (mine[k] != 0) all[i++] = mine[k];
+			}
+		}
+		TSimBenchmark.report("load", param, "offered", rate, "events/s");
+		TSimBenchmark.report("load", param, "sending", slots / sending,
+				"events/s");
+		TSimBenchmark.report("load", param, "delivered", n / wall, "events/s");
+		TSimBenchmark.report("load", param, "undelivered", sent.get() - n,
+				"events");
+		if (i > 0)
+			TSimBenchmark.reportLatencies("load", param, Arrays.copyOf(all, i));
+		synchronized (maxBacklog) {
+			TSimBenchmark.report("load", param, "max backlog", maxBacklog[0],
+					"events");
+			TSimBenchmark.report("load", param, "max heap",
+					maxHeap[0] / 1048576.0, "MiB");
+		}
+		TSimBenchmark.report("load", param, "heap held", heapHeld / 1048576.0,
+				"MiB");
+		TSimBenchmark.report("load", param, "crashed", crashed.get(), "trains");
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,107 @@
+import java.io.*;
+
+/** Generates large maps by placing copies of a smaller map, such as
+ *  Lab1.map, side by side in a grid. Each copy keeps its rails, sensors
+ *  and pictures, so the trains of every copy can be driven by the usual
+ *  controllers with a Train.Layout translated to that copy. The copies are
+ *  not connected to each other.
+ *
+ *  Usage: java MapGenerator template copies trains out.map
+ *
+ *  The copies are placed in rows of about the square root of their number.
+ *
+ *  The trains are taken from the template, filling one copy after the
+ *  other, so that train n of the large map is train (n - 1) % k + 1 of
+ *  copy (n - 1) / k, where k is the number of trains in the template.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class MapGenerator {
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 4) {
+			System.err.println("usage: java MapGenerator template copies "
+					+ "trains out.map");
+			System.exit(1);
+		}
+		TrainLineMap template = TrainLineMap.load(new File(args[0]));
+		TrainLineMap map = generate(template, Integer.parseInt(args[1]),
+				Integer.parseInt(args[2]));
+		Writer out = new BufferedWriter(new FileWriter(args[3]));
+		try {
+			map.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Places copies of a template in a grid.
+	 *
+	 *  @param trains the number of trains to place, at most the number of
+	 *  	   copies times the number of trains in the template.
+	 *  @throws IllegalArgumentException if there are too many trains.
+	 */
+	public static TrainLineMap generate(TrainLineMap template, int copies,
+			int trains) {
+		int perCopy = template.getTrains().size();
+		if (copies < 1)
+			throw new IllegalArgumentException("at least one copy is needed");
+		if (trains > copies * perCopy)
+			throw new IllegalArgumentException("at most " + copies * perCopy
+					+ " trains fit");
+		int columns = columns(copies);
+		int rows = (copies + columns - 1) / columns;
+		int w = template.width, h = template.height;
+		TrainLineMap map = new TrainLineMap(w * columns, h * rows);
+		for (int copy = 0; copy < copies; copy++) {
+			int dx = offsetX(template, copies, copy);
+			int dy = offsetY(template, copies, copy);
+			for (int x = 0; x < w; x++) {
+				for (int y = 0; y < h; y++) {
+					copyTile(template, x, y, map, x + dx, y + dy);
+				}
+			}
+		}
+		for (int n = 0; n < trains; n++) {
+			int copy = n / perCopy;
+			TrainLineMap.TrainSpec t = template.getTrains().get(n % perCopy);
+			map.addTrain(new TrainLineMap.TrainSpec(
+					t.x + offsetX(template, copies, copy),
+					t.y + offsetY(template, copies, copy), t.cars, t.direction));
+		}
+		return map;
+	}
+
+	private static int columns(int copies) {
+		return (int) Math.ceil(Math.sqrt(copies));
+	}
+
+	/** Returns the column offset in tiles of a copy.
+	 *
+	 *  @param copies the number of copies in the map.
+	 */
+	public static int offsetX(TrainLineMap template, int copies, int copy) {
+		return copy % columns(copies) * template.width;
+	}
+
+	/** Returns the row offset in tiles of a copy.
+	 *
+	 *  @param copies the number of copies in the map.
+	 */
+	public static int offsetY(TrainLineMap template, int copies, int copy) {
+		return copy / columns(copies) * template.height;
+	}
+
+	private static void copyTile(TrainLineMap from, int x, int y,
+			TrainLineMap to, int tx, int ty) {
+		if (from.getCustom(x, y) != null) {
+			to.setCustom(tx, ty, from.getCustom(x, y));
+			return;
+		}
+		for (int sw = TrainLineMap.LEFT_SWITCH; sw <= TrainLineMap.RIGHT_SWITCH; sw++) {
+			int type = from.railType(x, y, sw);
+			if (type != TrainLineMap.NO_RAIL) to.setRailType(tx, ty, type);
+		}
+		to.setSensor(tx, ty, from.isSensor(x, y));
+	}
+}
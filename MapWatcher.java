@@ -0,0 +1,109 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/** Reloads the topology of running layouts from a map file, when the file
+ *  changes or when asked to, so that sensors can be moved without stopping
+ *  the trains. The sensors are found on the map as by SensorPlacer.locate,
+ *  for a single layout, or taken from the layouts of a compiled map, the
+ *  first for the first layout watched and so on.
+ *  A map that cannot be read or whose sensors cannot all be found is
+ *  reported on System.err, and the layouts keep the topology they have.
+ *
+ *  Each train takes up the new topology when it next turns around at a
+ *  station, and until then acts on a moved sensor at whichever of its old
+ *  and new places it comes to first. A sensor moved in tsim is thus found
+ *  by a train between its two places as long as tsim keeps the old one
+ *  until that train has turned around; a sensor tsim only has at its new
+ *  place is missed by a train that has already passed that place.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class MapWatcher extends Thread {
+
+	/** How long to wait after a change for the file to be written. */
+	private static final long SETTLE_MILLIS = 100;
+
+	private final File map;
+	private final List<Topology.Holder> layouts;
+	private int reloads = 0;
+
+	/** Creates a watcher for some layouts, which is started as a daemon
+	 *  thread to reload them when the map changes.
+	 */
+	public MapWatcher(File map, Topology.Holder... layouts) {
+		super("map watcher");
+		setDaemon(true);
+		this.map = map;
+		this.layouts = Arrays.asList(layouts);
+	}
+
+	/** Reads the map and gives each layout its topology, all at once.
+	 *
+	 *  @return 'true' if the map was read and its sensors found.
+	 */
+	public synchronized boolean reload() {
+		Topology[] topologies = new Topology[layouts.size()];
+		try {
+			if (CompiledMap.isCompiled(map)) {
+				CompiledMap compiled = CompiledMap.open(map);
+				if (compiled.layoutCount() != topologies.length)
+					throw new IOException(compiled.layoutCount()
+							+ " layouts instead of " + topologies.length);
+				for (int i = 0; i < topologies.length; i++)
+					topologies[i] = compiled.topology(i);
+			} else {
+				if (topologies.length != 1)
+					throw new IOException("a text map has one layout, not "
+							+ topologies.length);
+				topologies[0] = Topology.of(TrainLineMap.load(map));
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println(map + ": not reloaded: " + e.getMessage());
+			return false;
+		}
+		for (int i = 0; i < topologies.length; i++)
+			layouts.get(i).reload(topologies[i]);
+		reloads++;
+		return true;
+	}
+
+	/** Returns the number of times the layouts have been reloaded.
+	 */
+	public synchronized int reloads() {
+		return reloads;
+	}
+
+	/** Watches the directory of the map, and reloads after the map has
+	 *  been written.
+	 */
+	public void run() {
+		Path file = map.getAbsoluteFile().toPath();
+		try (WatchService watcher = file.getFileSystem().newWatchService()) {
+			file.getParent().register(watcher,
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				for (WatchEvent<?> e : key.pollEvents()) {
+					changed |= file.getFileName().equals(e.context());
+				}
+				key.reset();
+				if (!changed) continue;
+				// An editor may write the file in several steps.
+				Thread.sleep(SETTLE_MILLIS);
+				WatchKey more;
+				while ((more = watcher.poll()) != null) {
+					more.pollEvents();
+					more.reset();
+				}
+				reload();
+			}
+		} catch (IOException e) {
+			System.err.println(map + ": not watched: " + e.getMessage());
+		} catch (InterruptedException e) {
+			// Stopped.
+		}
+	}
+}
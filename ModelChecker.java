@@ -0,0 +1,824 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import TSim.*;
+
+/** Checks the controllers of Train and Train2 for collisions and deadlocks
+ *  by trying every order in which a number of trains can reach their
+ *  sensors, rather than the few orders that runs of the simulator happen
+ *  to show.
+ *
+ *  The map is cut at the sensors of the topology into stretches: the
+ *  tiles a train passes from one sensor to the next, which depend on the
+ *  switches. A train is either at a sensor, waiting for a section at one,
+ *  or on the stretch after the sensor it last passed; which end of the
+ *  sensor it left by is its direction. Besides that, each train has what
+ *  act() keeps between sensors: isInCritical, enteringStation and the
+ *  sections it holds. Speeds and times are left out, so any train may
+ *  reach its next sensor at any point, and a train handles a sensor in one
+ *  step up to the point where it would wait. A train that would have to
+ *  back off takes no step, since it comes back to the same sensor. Train
+ *  and Train2 do the same at every sensor and their semaphores and
+ *  monitors both admit one train, so they are checked as one.
+ *
+ *  The following are reported, each with the states that led to it:
+ *
+ *  	a collision: two trains on stretches that share a tile, or a train
+ *  	reaching a sensor another train has stopped at;
+ *  	a derailment, or a train running into the end of a track;
+ *  	a switch thrown on the stretch a train is on;
+ *  	a deadlock: a state where no train can go on but by backing off.
+ *
+ *  A state is packed into a long, with the trains sorted since they are
+ *  alike. The states seen are kept outside the heap in a hash table of
+ *  their own, with the state each was first reached from, and the search
+ *  is shared by the threads of a work-stealing pool.
+ *
+ *  Usage: java ModelChecker map trains [threads]
+ *
+ *  The first trains are those of the map, train n holding upper station n
+ *  as with Train; the others start on the free platforms.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class ModelChecker {
+
+	/** The most trains a state has room for. */
+	public static final int MAX_TRAINS = 4;
+
+	private static final int TRAIN_BITS = 15;
+	private static final int SWITCH_SHIFT = MAX_TRAINS * TRAIN_BITS;
+
+	/* What a train is doing. None of them is 0, so no state is 0. */
+	private static final int GOING = 1;
+	private static final int AT_SENSOR = 2;
+	private static final int WAITING = 3;
+
+	/* Where a stretch ends other than at a sensor. */
+	private static final int STOP = -1;
+	private static final int DERAIL = -2;
+	private static final int LOST = -3;
+
+	/* The outcomes of a step. */
+	private static final int MOVED = 0;
+	private static final int BLOCKED = 1;
+	private static final int FAILED = 2;
+
+	/** The states expanded by a task before the rest is given away. */
+	private static final int BATCH = 256;
+
+	/** The states leading to a fault.
+	 */
+	public static final class Violation {
+		/** "collision", "derailment", "switch" or "deadlock". */
+		public final String kind;
+		public final String message;
+		/** The states from the start to the last one before the fault. */
+		public final List<String> trace;
+
+		Violation(String kind, String message, List<String> trace) {
+			this.kind = kind;
+			this.message = message;
+			this.trace = trace;
+		}
+
+		public String toString() {
+			return kind + ": " + message;
+		}
+	}
+
+	/** The outcome of a check.
+	 */
+	public static final class Result {
+		public final long states, transitions;
+		public final double seconds;
+		/** The bytes taken by the table of states. */
+		public final long tableBytes;
+		public final List<Violation> violations;
+
+		Result(long states, long transitions, double seconds, long tableBytes,
+				List<Violation> violations) {
+			this.states = states;
+			this.transitions = transitions;
+			this.seconds = seconds;
+			this.tableBytes = tableBytes;
+			this.violations = violations;
+		}
+	}
+
+	private final TrainLineMap map;
+	private final Topology topology;
+	private final int trains;
+	private final int stationCount, sectionCount;
+	private final String[] sectionNames;
+
+	/* The sensors, stations first as in Train.pending, and the switches. */
+	private final int[] sensorX, sensorY, switchX, switchY;
+	/** The sensor or switch on each tile, or -1. */
+	private final int[] sensorAt, switchAt;
+
+	/* A place is a sensor and the end it is left by: 2 * sensor + 0 or 1. */
+	private final int[] placeDir, reverse;
+	/** For each setting of the switches and place, where the stretch
+	 *  after it ends: a place, STOP, DERAIL or LOST. */
+	private final int[][] next;
+	/** The tile a stretch that does not end at a sensor ends on. */
+	private final int[][] endTile;
+	/** The switches on each stretch, one bit each. */
+	private final int[][] switchesOn;
+	/** A tile that two stretches share, or -1. */
+	private final int[][][] shared;
+
+	private final long start;
+
+	private final StateTable table = new StateTable();
+	private final LongAdder transitions = new LongAdder();
+	private final ConcurrentMap<String, long[]> faults =
+			new ConcurrentHashMap<String, long[]>();
+
+	/** Builds the model of a map for a number of trains.
+	 *
+	 *  @throws IllegalArgumentException if there are too many trains for
+	 *  		the map or a state, or a sensor is not on a plain rail.
+	 */
+	public ModelChecker(TrainLineMap map, Topology topology, int trains) {
+		this.map = map;
+		this.topology = topology;
+		this.trains = trains;
+		stationCount = topology.stations.length / 2;
+		sectionCount = topology.criticals.length / 4 + 1;
+		sectionNames = new String[sectionCount + stationCount];
+		for (int i = 0; i < sectionCount; i++)
+			sectionNames[i] = Train.criticalNames[i];
+		for (int i = 0; i < stationCount; i++)
+			sectionNames[sectionCount + i] = "upper station " + (i + 1);
+
+		int sensors = topology.stations.length + topology.criticals.length;
+		sensorX = new int[sensors];
+		sensorY = new int[sensors];
+		sensorAt = new int[map.width * map.height];
+		Arrays.fill(sensorAt, -1);
+		for (int i = 0; i < sensors; i++) {
+			SensorEvent s = i < topology.stations.length ? topology.stations[i]
+					: topology.criticals[i - topology.stations.length];
+			sensorX[i] = s.getXpos();
+			sensorY[i] = s.getYpos();
+			sensorAt[tile(sensorX[i], sensorY[i])] = i;
+		}
+		switchX = new int[topology.switches.length];
+		switchY = new int[topology.switches.length];
+		switchAt = new int[map.width * map.height];
+		Arrays.fill(switchAt, -1);
+		for (int i = 0; i < switchX.length; i++) {
+			switchX[i] = topology.switches[i].width;
+			switchY[i] = topology.switches[i].height;
+			switchAt[tile(switchX[i], switchY[i])] = i;
+		}
+
+		// The two ends of the rail of each sensor.
+		int places = 2 * sensors;
+		placeDir = new int[places];
+		int[] entry = new int[places];
+		for (int i = 0; i < sensors; i++) {
+			int n = 0;
+			for (int d = TrainLineMap.UP; d <= TrainLineMap.LEFT; d++) {
+				int e = map.newDirection(sensorX[i], sensorY[i],
+						TrainLineMap.LEFT_SWITCH, d);
+				if (e == TrainLineMap.NO_DIR) continue;
+				if (n == 2 || map.isSwitch(sensorX[i], sensorY[i]))
+					throw new IllegalArgumentException("sensor " + sensorX[i]
+							+ "," + sensorY[i] + " is not on a plain rail");
+				entry[2 * i + n] = d;
+				placeDir[2 * i + n++] = e;
+			}
+			if (n != 2)
+				throw new IllegalArgumentException("no rail under sensor "
+						+ sensorX[i] + "," + sensorY[i]);
+		}
+		reverse = new int[places];
+		for (int p = 0; p < places; p++)
+			reverse[p] = place(p >> 1, TrainLineMap.opposite(entry[p]));
+
+		int settings = 1 << switchX.length;
+		next = new int[settings][places];
+		endTile = new int[settings][places];
+		switchesOn = new int[settings][places];
+		shared = new int[settings][places][places];
+		for (int m = 0; m < settings; m++) {
+			BitSet[] tiles = new BitSet[places];
+			for (int p = 0; p < places; p++) {
+				tiles[p] = new BitSet();
+				int[] end = trace(sensorX[p >> 1], sensorY[p >> 1], placeDir[p],
+						m, tiles[p]);
+				next[m][p] = end[0];
+				endTile[m][p] = end[1];
+				for (int s = 0; s < switchX.length; s++) {
+					if (tiles[p].get(tile(switchX[s], switchY[s])))
+						switchesOn[m][p] |= 1 << s;
+				}
+			}
+			for (int p = 0; p < places; p++) {
+				for (int q = 0; q < places; q++) {
+					BitSet both = (BitSet) tiles[p].clone();
+					both.and(tiles[q]);
+					shared[m][p][q] = both.nextSetBit(0);
+				}
+			}
+		}
+		start = startState();
+	}
+
+	/** Returns the state the trains start in.
+	 */
+	private long startState() {
+		List<TrainLineMap.TrainSpec> specs = map.getTrains();
+		int free = 0;
+		for (int k = 0; k < topology.stations.length; k++) {
+			if (!taken(specs, k)) free++;
+		}
+		if (trains < 1 || trains > MAX_TRAINS || trains > specs.size() + free)
+			throw new IllegalArgumentException("from 1 to "
+					+ Math.min(MAX_TRAINS, specs.size() + free)
+					+ " trains fit on the map");
+		int[] fields = new int[trains];
+		int i = 0;
+		for (; i < trains && i < specs.size(); i++) {
+			TrainLineMap.TrainSpec t = specs.get(i);
+			int[] end = trace(t.x, t.y, t.direction, 0, new BitSet());
+			if (end[0] < 0)
+				throw new IllegalArgumentException("train " + (i + 1)
+						+ " does not reach a sensor");
+			int held = i < stationCount ? 1 << sectionCount + i : 0;
+			fields[i] = field(end[0], AT_SENSOR, false, false, held);
+		}
+		for (int k = 0; i < trains; k++) {
+			if (taken(specs, k)) continue;
+			// Heading away from the stop of the platform.
+			int p = next[0][2 * k] == STOP ? 2 * k + 1 : 2 * k;
+			fields[i++] = field(p, AT_SENSOR, false, false, 0);
+		}
+		return pack(fields, 0);
+	}
+
+	/** Returns whether a train of the map first reaches a station sensor.
+	 */
+	private boolean taken(List<TrainLineMap.TrainSpec> specs, int station) {
+		for (TrainLineMap.TrainSpec t : specs) {
+			int[] end = trace(t.x, t.y, t.direction, 0, new BitSet());
+			if (end[0] >= 0 && end[0] >> 1 == station) return true;
+		}
+		return false;
+	}
+
+	/** Follows the rails from a tile until the next sensor, as tsim moves
+	 *  a train.
+	 *
+	 *  @param tiles receives the tiles passed, not counting the sensors.
+	 *  @return The place reached or why there is none, and the last tile.
+	 */
+	private int[] trace(int x, int y, int dir, int setting, BitSet tiles) {
+		for (int steps = 0; steps <= map.width * map.height; steps++) {
+			int lx = x, ly = y;
+			x += TrainLineMap.dx(dir);
+			y += TrainLineMap.dy(dir);
+			if (!map.isInside(x, y)) return new int[] { DERAIL, tile(lx, ly) };
+			int t = tile(x, y);
+			tiles.set(t);
+			if (map.isStop(x, y)) return new int[] { STOP, t };
+			int s = switchAt[t];
+			int sw = s >= 0 && (setting & 1 << s) != 0
+					? TrainLineMap.RIGHT_SWITCH : TrainLineMap.LEFT_SWITCH;
+			dir = map.newDirection(x, y, sw, dir);
+			if (dir == TrainLineMap.NO_DIR) return new int[] { DERAIL, t };
+			if (sensorAt[t] >= 0) {
+				tiles.clear(t);
+				return new int[] { place(sensorAt[t], dir), t };
+			}
+		}
+		return new int[] { LOST, tile(x, y) };
+	}
+
+	private int place(int sensor, int dir) {
+		return placeDir[2 * sensor] == dir ? 2 * sensor : 2 * sensor + 1;
+	}
+
+	private int tile(int x, int y) {
+		return x * map.height + y;
+	}
+
+	private String tileName(int t) {
+		return t / map.height + "," + t % map.height;
+	}
+
+	private static int field(int place, int phase, boolean critical,
+			boolean entering, int held) {
+		return place | phase << 5 | (critical ? 1 << 7 : 0)
+				| (entering ? 1 << 8 : 0) | held << 9;
+	}
+
+	/** Packs the trains, sorted, and the switches into a state.
+	 */
+	private static long pack(int[] fields, int switches) {
+		int[] f = fields.clone();
+		Arrays.sort(f);
+		long s = (long) switches << SWITCH_SHIFT;
+		for (int i = 0; i < f.length; i++) s |= (long) f[i] << i * TRAIN_BITS;
+		return s;
+	}
+
+	/** A state taken apart, to be stepped.
+	 */
+	private final class State {
+		final int[] place = new int[trains], phase = new int[trains],
+				held = new int[trains];
+		final boolean[] critical = new boolean[trains],
+				entering = new boolean[trains];
+		int switches;
+		String fault, kind;
+
+		void unpack(long s) {
+			for (int i = 0; i < trains; i++) {
+				int f = (int) (s >>> i * TRAIN_BITS) & (1 << TRAIN_BITS) - 1;
+				place[i] = f & 31;
+				phase[i] = f >> 5 & 3;
+				critical[i] = (f & 1 << 7) != 0;
+				entering[i] = (f & 1 << 8) != 0;
+				held[i] = f >> 9 & 63;
+			}
+			switches = (int) (s >>> SWITCH_SHIFT);
+			fault = kind = null;
+		}
+
+		long pack() {
+			int[] f = new int[trains];
+			for (int i = 0; i < trains; i++)
+				f[i] = field(place[i], phase[i], critical[i], entering[i], held[i]);
+			return ModelChecker.pack(f, switches);
+		}
+
+		int owner(int section) {
+			for (int i = 0; i < trains; i++) {
+				if ((held[i] & 1 << section) != 0) return i;
+			}
+			return -1;
+		}
+
+		int waitingFor(int i) {
+			return phase[i] == WAITING ? section(place[i]) : -1;
+		}
+
+		void fail(String kind, String fault) {
+			this.kind = kind;
+			this.fault = fault;
+		}
+	}
+
+	/** Returns the critical section of the sensor of a place.
+	 */
+	private int section(int place) {
+		return ((place >> 1) - topology.stations.length) / 4;
+	}
+
+	/** Lets a train take its next step.
+	 *
+	 *  @return MOVED, BLOCKED if it cannot, or FAILED with the fault in the
+	 *  		state.
+	 */
+	private int step(State st, int i) {
+		int r = st.phase[i] == GOING ? move(st, i) : handle(st, i);
+		if (r != MOVED) return r;
+		for (int a = 0; a < trains; a++) {
+			if (st.phase[a] != GOING) continue;
+			for (int b = a + 1; b < trains; b++) {
+				if (st.phase[b] != GOING) continue;
+				int t = shared[st.switches][st.place[a]][st.place[b]];
+				if (t >= 0) {
+					st.fail("collision", "trains after " + placeName(st.place[a])
+							+ " and " + placeName(st.place[b]) + " meet at "
+							+ tileName(t));
+					return FAILED;
+				}
+			}
+		}
+		return MOVED;
+	}
+
+	/** Takes a train to the end of its stretch.
+	 */
+	private int move(State st, int i) {
+		int p = st.place[i];
+		int q = next[st.switches][p];
+		if (q < 0) {
+			String at = tileName(endTile[st.switches][p]);
+			if (q == STOP) {
+				st.fail("derailment", "train after " + placeName(p)
+						+ " runs into the stop at " + at);
+			} else if (q == DERAIL) {
+				st.fail("derailment", "train after " + placeName(p)
+						+ " derails at " + at);
+			} else {
+				st.fail("derailment", "train after " + placeName(p)
+						+ " never reaches a sensor");
+			}
+			return FAILED;
+		}
+		for (int j = 0; j < trains; j++) {
+			if (j != i && st.phase[j] != GOING && st.place[j] >> 1 == q >> 1) {
+				st.fail("collision", "train after " + placeName(p)
+						+ " runs into the train at " + placeName(st.place[j]));
+				return FAILED;
+			}
+		}
+		st.place[i] = q;
+		st.phase[i] = AT_SENSOR;
+		return MOVED;
+	}
+
+	/** Acts on the sensor a train is at, as Train.act does.
+	 */
+	private int handle(State st, int i) {
+		int sensor = st.place[i] >> 1;
+		if (sensor < topology.stations.length) {
+			if (st.entering[i]) {
+				st.entering[i] = false;
+				st.place[i] = reverse[st.place[i]];
+			}
+			st.phase[i] = GOING;
+			return MOVED;
+		}
+		int c = sensor - topology.stations.length;
+		if (st.critical[i]) {
+			st.held[i] &= ~(1 << c / 4);
+			st.critical[i] = false;
+			st.phase[i] = GOING;
+			return MOVED;
+		}
+		int r = request(st, i, c / 4);
+		if (r != MOVED || st.phase[i] == WAITING) return r;
+		int left = TSimInterface.SWITCH_LEFT;
+		int right = TSimInterface.SWITCH_RIGHT;
+		boolean ok = true;
+		switch (c) {
+		case 4:
+			ok = setSwitch(st, i, 0, right) && setTwoTrackSwitches(st, i, 1);
+			st.held[i] &= ~(1 << sectionCount);
+			break;
+		case 5:
+			ok = setSwitch(st, i, 0, left) && setTwoTrackSwitches(st, i, 1);
+			break;
+		case 10:
+			ok = setSwitch(st, i, 3, left) && setTwoTrackSwitches(st, i, 0);
+			st.held[i] &= ~(1 << sectionCount + 1);
+			break;
+		case 11:
+			ok = setSwitch(st, i, 3, right) && setTwoTrackSwitches(st, i, 0);
+			break;
+		case 6:
+		case 7:
+			if (c == 6) st.held[i] &= ~(1 << 3);
+			ok = setSwitch(st, i, 1, c == 6 ? right : left)
+					&& setSwitch(st, i, 0, tryEnterStation(st, i, 0)
+							? right : left);
+			st.entering[i] = true;
+			break;
+		case 8:
+		case 9:
+			if (c == 8) st.held[i] &= ~(1 << 3);
+			ok = setSwitch(st, i, 2, c == 8 ? left : right)
+					&& setSwitch(st, i, 3, tryEnterStation(st, i, 1)
+							? left : right);
+			st.entering[i] = true;
+			break;
+		}
+		if (!ok) return FAILED;
+		st.critical[i] = true;
+		st.phase[i] = GOING;
+		return MOVED;
+	}
+
+	/** Takes a section for a train, as Train.request does.
+	 *
+	 *  @return MOVED if the train has it or now waits for it, BLOCKED if
+	 *  		it waits for it already or must back off.
+	 */
+	private int request(State st, int i, int section) {
+		if ((st.held[i] & 1 << section) != 0) return MOVED;
+		int t = st.owner(section);
+		if (t < 0) {
+			st.held[i] |= 1 << section;
+			st.phase[i] = AT_SENSOR;
+			return MOVED;
+		}
+		if (st.phase[i] == WAITING) return BLOCKED;
+		// As SectionTable.waiting: back off rather than close a cycle.
+		for (int steps = 0; t >= 0 && t != i && steps < trains; steps++) {
+			int w = st.waitingFor(t);
+			t = w < 0 ? -1 : st.owner(w);
+		}
+		if (t == i) return BLOCKED;
+		st.phase[i] = WAITING;
+		return MOVED;
+	}
+
+	private boolean tryEnterStation(State st, int i, int station) {
+		int section = sectionCount + station;
+		if ((st.held[i] & 1 << section) != 0) return true;
+		if (st.owner(section) >= 0) return false;
+		st.held[i] |= 1 << section;
+		return true;
+	}
+
+	private boolean setTwoTrackSwitches(State st, int i, int direction) {
+		int left = TSimInterface.SWITCH_LEFT;
+		int right = TSimInterface.SWITCH_RIGHT;
+		if ((st.held[i] & 1 << 3) != 0 || st.owner(3) < 0) {
+			st.held[i] |= 1 << 3;
+			return direction == 1 ? setSwitch(st, i, 1, right)
+					: setSwitch(st, i, 2, left);
+		}
+		return direction == 1 ? setSwitch(st, i, 1, left)
+				: setSwitch(st, i, 2, right);
+	}
+
+	/** Sets a switch, failing if it changes under a train on its way.
+	 */
+	private boolean setSwitch(State st, int i, int s, int dir) {
+		int bit = dir == TSimInterface.SWITCH_RIGHT ? 1 << s : 0;
+		if ((st.switches & 1 << s) == bit) return true;
+		for (int j = 0; j < trains; j++) {
+			if (j != i && st.phase[j] == GOING
+					&& (switchesOn[st.switches][st.place[j]] & 1 << s) != 0) {
+				st.fail("switch", "train at " + placeName(st.place[i])
+						+ " throws " + switchX[s] + "," + switchY[s]
+						+ " under the train after " + placeName(st.place[j]));
+				return false;
+			}
+		}
+		st.switches = st.switches & ~(1 << s) | bit;
+		return true;
+	}
+
+	private String placeName(int place) {
+		return sensorX[place >> 1] + "," + sensorY[place >> 1] + " "
+				+ TrainLineMap.DIRECTION_NAMES[placeDir[place]];
+	}
+
+	/** Describes a state on one line.
+	 */
+	String describe(long s) {
+		State st = new State();
+		st.unpack(s);
+		StringBuilder sb = new StringBuilder("switches");
+		for (int i = 0; i < switchX.length; i++) {
+			sb.append(' ').append((st.switches & 1 << i) != 0 ? 'R' : 'L');
+		}
+		for (int i = 0; i < trains; i++) {
+			sb.append(" | ").append(placeName(st.place[i])).append(' ')
+					.append(st.phase[i] == GOING ? "going"
+							: st.phase[i] == WAITING ? "waiting" : "at sensor");
+			if (st.critical[i]) sb.append(" critical");
+			if (st.entering[i]) sb.append(" entering");
+			for (int k = 0; k < sectionNames.length; k++) {
+				if ((st.held[i] & 1 << k) != 0)
+					sb.append(", ").append(sectionNames[k]);
+			}
+		}
+		return sb.toString();
+	}
+
+	/** Describes the trains of a state where none can go on.
+	 */
+	private String stuck(State st, long s) {
+		st.unpack(s);
+		String[] names = new String[trains];
+		for (int i = 0; i < trains; i++) {
+			names[i] = placeName(st.place[i]) + (st.phase[i] == WAITING
+					? " waits for " : " backs off from ")
+					+ sectionNames[section(st.place[i])];
+		}
+		Arrays.sort(names);
+		return String.join(", ", names);
+	}
+
+	/** Explores every state the trains can reach.
+	 */
+	public Result check(ForkJoinPool pool) {
+		long began = System.nanoTime();
+		table.add(start, 0);
+		pool.invoke(new Expand(null, new long[] { start }, 1));
+		double seconds = (System.nanoTime() - began) / 1e9;
+
+		List<Violation> found = new ArrayList<Violation>();
+		List<String> keys = new ArrayList<String>(faults.keySet());
+		Collections.sort(keys);
+		for (String key : keys) {
+			String kind = key.substring(0, key.indexOf(':'));
+			found.add(new Violation(kind, key.substring(kind.length() + 2),
+					trace(faults.get(key)[0])));
+		}
+		return new Result(table.size(), transitions.sum(), seconds,
+				table.bytes(), found);
+	}
+
+	/** Returns the states from the start to a state.
+	 */
+	private List<String> trace(long s) {
+		LinkedList<String> t = new LinkedList<String>();
+		for (; s != 0; s = table.parent(s)) t.addFirst(describe(s));
+		return t;
+	}
+
+	/** Expands states and those reached from them, handing the new ones
+	 *  to other tasks a batch at a time. A task completes once the tasks
+	 *  it handed states to have.
+	 */
+	private final class Expand extends CountedCompleter<Void> {
+		private static final long serialVersionUID = 1L;
+
+		private long[] states;
+		private int count;
+
+		Expand(Expand parent, long[] states, int count) {
+			super(parent);
+			this.states = states;
+			this.count = count;
+		}
+
+		public void compute() {
+			State st = new State();
+			while (count > 0) {
+				long[] found = new long[BATCH];
+				int n = 0;
+				for (int k = 0; k < count; k++) {
+					long s = states[k];
+					boolean stuck = true;
+					for (int i = 0; i < trains; i++) {
+						st.unpack(s);
+						int r = step(st, i);
+						if (r == BLOCKED) continue;
+						stuck = false;
+						transitions.increment();
+						if (r == FAILED) {
+							faults.putIfAbsent(st.kind + ": " + st.fault,
+									new long[] { s });
+							continue;
+						}
+						long t = st.pack();
+						if (!table.add(t, s)) continue;
+						if (n == BATCH) {
+							addToPendingCount(1);
+							new Expand(this, found, n).fork();
+							found = new long[BATCH];
+							n = 0;
+						}
+						found[n++] = t;
+					}
+					if (stuck) {
+						faults.putIfAbsent("deadlock: " + stuck(st, s),
+								new long[] { s });
+					}
+				}
+				states = found;
+				count = n;
+			}
+			tryComplete();
+		}
+	}
+
+	/** A set of states, each with the state it was first reached from,
+	 *  kept in direct buffers by open addressing. The table is split into
+	 *  segments by the high bits of the hash, each grown and locked on its
+	 *  own.
+	 */
+	static final class StateTable {
+
+		private static final int SEGMENT_BITS = 6;
+		private static final int INITIAL = 1 << 12;
+
+		private static final class Segment {
+			/** The state and parent of each slot; 0 for an empty slot. */
+			LongBuffer slots = ByteBuffer.allocateDirect(INITIAL * 16)
+					.order(ByteOrder.nativeOrder()).asLongBuffer();
+			int capacity = INITIAL;
+			int size;
+		}
+
+		private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+		StateTable() {
+			for (int i = 0; i < segments.length; i++) segments[i] = new Segment();
+		}
+
+		private static long hash(long s) {
+			s ^= s >>> 33;
+			s *= 0xff51afd7ed558ccdL;
+			s ^= s >>> 33;
+			s *= 0xc4ceb9fe1a85ec53L;
+			return s ^ s >>> 33;
+		}
+
+		/** Adds a state that is not 0.
+		 *
+		 *  @return 'true' if it was new.
+		 */
+		boolean add(long state, long parent) {
+			long h = hash(state);
+			Segment seg = segments[(int) (h >>> 64 - SEGMENT_BITS)];
+			synchronized (seg) {
+				int i = find(seg.slots, seg.capacity, state, h);
+				if (seg.slots.get(2 * i) != 0) return false;
+				seg.slots.put(2 * i, state);
+				seg.slots.put(2 * i + 1, parent);
+				if (++seg.size * 4 > seg.capacity * 3) grow(seg);
+				return true;
+			}
+		}
+
+		/** Returns the state a state was first reached from, or 0.
+		 */
+		long parent(long state) {
+			long h = hash(state);
+			Segment seg = segments[(int) (h >>> 64 - SEGMENT_BITS)];
+			synchronized (seg) {
+				int i = find(seg.slots, seg.capacity, state, h);
+				return seg.slots.get(2 * i + 1);
+			}
+		}
+
+		/** Returns the slot of a state, or the empty slot it would go in.
+		 */
+		private static int find(LongBuffer slots, int capacity, long state,
+				long h) {
+			int i = (int) h & capacity - 1;
+			while (true) {
+				long s = slots.get(2 * i);
+				if (s == 0 || s == state) return i;
+				i = i + 1 & capacity - 1;
+			}
+		}
+
+		private static void grow(Segment seg) {
+			int capacity = seg.capacity * 2;
+			LongBuffer slots = ByteBuffer.allocateDirect(capacity * 16)
+					.order(ByteOrder.nativeOrder()).asLongBuffer();
+			for (int i = 0; i < seg.capacity; i++) {
+				long s = seg.slots.get(2 * i);
+				if (s == 0) continue;
+				int j = find(slots, capacity, s, hash(s));
+				slots.put(2 * j, s);
+				slots.put(2 * j + 1, seg.slots.get(2 * i + 1));
+			}
+			seg.slots = slots;
+			seg.capacity = capacity;
+		}
+
+		long size() {
+			long n = 0;
+			for (Segment seg : segments) {
+				synchronized (seg) {
+					n += seg.size;
+				}
+			}
+			return n;
+		}
+
+		long bytes() {
+			long n = 0;
+			for (Segment seg : segments) {
+				synchronized (seg) {
+					n += seg.capacity * 16L;
+				}
+			}
+			return n;
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("usage: java ModelChecker map trains [threads]");
+			System.exit(1);
+		}
+		TrainLineMap map = TrainLineMap.load(new File(args[0]));
+		int trains = Integer.parseInt(args[1]);
+		int threads = args.length > 2 ? Integer.parseInt(args[2])
+				: Runtime.getRuntime().availableProcessors();
+		ModelChecker checker = new ModelChecker(map, Topology.of(map), trains);
+		Result r = checker.check(new ForkJoinPool(threads));
+
+		System.out.printf(Locale.ROOT, "%d trains: %d states, %d transitions "
+				+ "in %.2f s on %d threads, %.1f MiB of table%n", trains,
+				r.states, r.transitions, r.seconds, threads,
+				r.tableBytes / 1048576.0);
+		Set<String> traced = new HashSet<String>();
+		for (Violation v : r.violations) {
+			System.out.println(v + " (" + v.trace.size() + " states)");
+			if (!traced.add(v.kind)) continue;
+			for (String s : v.trace) System.out.println("\t" + s);
+		}
+		if (r.violations.isEmpty()) System.out.println("no faults found");
+		System.exit(r.violations.isEmpty() ? 0 : 1);
+	}
+}
@@ -0,0 +1,514 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import TSim.*;
+
+/** Plans routes between the stations of a map. The rails are followed as
+ *  a directed graph whose nodes are the switches, crossings and track ends
+ *  together with the direction a train enters them in, so a route never
+ *  makes a train reverse on the way. The edges are the plain tracks
+ *  between them.
+ *
+ *  For each platform and destination station a few routes are planned,
+ *  shortest first, and kept. A route lists the switch positions in the
+ *  order the train reaches the switches, and the sections it passes
+ *  through: every switch and crossing is a section of its own, and so is
+ *  every plain track between two of them. A controller can then take the
+ *  shortest route, or the one least contended by other trains, without
+ *  planning again.
+ *
+ *  Usage: java RoutePlanner map
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class RoutePlanner {
+
+	/** The number of routes planned for each platform and station. */
+	public static final int MAX_ROUTES = 4;
+
+	/** The extra cost in tiles of a section for each train whose claimed
+	 *  route passes through it, as used by BY_USERS.
+	 */
+	public static final double USER_PENALTY = 10;
+
+	/** A switch, crossing or plain track. Sections are shared by all
+	 *  routes through them.
+	 */
+	public static final class Section {
+		public final String name;
+		/** The length in tiles. */
+		public final int length;
+		private final AtomicInteger users = new AtomicInteger();
+
+		Section(String name, int length) {
+			this.name = name;
+			this.length = length;
+		}
+
+		/** Returns the number of claimed routes through the section.
+		 */
+		public int users() {
+			return users.get();
+		}
+
+		public String toString() {
+			return name;
+		}
+	}
+
+	/** The position a switch must be in when a train passes it.
+	 */
+	public static final class SwitchSetting {
+		public final int x, y;
+		/** TSimInterface.SWITCH_LEFT or TSimInterface.SWITCH_RIGHT. */
+		public final int direction;
+		/** The section of the switch. */
+		public final Section section;
+
+		SwitchSetting(int x, int y, int direction, Section section) {
+			this.x = x;
+			this.y = y;
+			this.direction = direction;
+			this.section = section;
+		}
+
+		/** Sets the switch.
+		 *
+		 *  @throws CommandException if a train is on the switch.
+		 */
+		public void apply(TSimInterface tsi) throws CommandException {
+			tsi.setSwitch(x, y, direction);
+		}
+
+		public String toString() {
+			return x + "," + y + (direction == TSimInterface.SWITCH_LEFT
+					? " left" : " right");
+		}
+	}
+
+	/** A track end that trains start from and arrive at.
+	 */
+	public static final class Platform {
+		/** The stop tile at the end of the track. */
+		public final int x, y;
+		/** The index of the station the platform belongs to. */
+		public final int station;
+
+		Platform(int x, int y, int station) {
+			this.x = x;
+			this.y = y;
+			this.station = station;
+		}
+
+		public String toString() {
+			return x + "," + y;
+		}
+	}
+
+	/** A planned route from a platform to a platform of another station.
+	 */
+	public static final class Route {
+		public final Platform from, to;
+		/** The switches in the order they are reached. */
+		public final List<SwitchSetting> switches;
+		/** The sections in the order they are entered. */
+		public final List<Section> sections;
+		/** The length in tiles. */
+		public final int length;
+
+		Route(Platform from, Platform to, List<SwitchSetting> switches,
+				List<Section> sections, int length) {
+			this.from = from;
+			this.to = to;
+			this.switches = Collections.unmodifiableList(switches);
+			this.sections = Collections.unmodifiableList(sections);
+			this.length = length;
+		}
+
+		/** Counts the route against each of its sections, for BY_USERS,
+		 *  until it is released.
+		 */
+		public void claim() {
+			for (Section s : sections) s.users.incrementAndGet();
+		}
+
+		/** Takes back a claim.
+		 */
+		public void release() {
+			for (Section s : sections) s.users.decrementAndGet();
+		}
+
+		public String toString() {
+			return from + " -> " + to + ", " + length + " tiles, switches "
+					+ switches + ", sections " + sections;
+		}
+	}
+
+	/** The cost of sections beyond their length, for choosing among the
+	 *  planned routes.
+	 */
+	public interface Contention {
+		double cost(Section section);
+	}
+
+	/** Counts USER_PENALTY tiles for each claimed route through a section.
+	 */
+	public static final Contention BY_USERS = new Contention() {
+		public double cost(Section section) {
+			return USER_PENALTY * section.users();
+		}
+	};
+
+	/** A plain track followed from a node, and the switch position taken
+	 *  to get onto it.
+	 */
+	private static final class Edge {
+		final long from, to;
+		final int cost;
+		final SwitchSetting setting;	// or null
+		final List<Section> sections = new ArrayList<Section>(2);
+
+		Edge(long from, long to, int cost, SwitchSetting setting) {
+			this.from = from;
+			this.to = to;
+			this.cost = cost;
+			this.setting = setting;
+		}
+	}
+
+	private final TrainLineMap map;
+	private final List<List<Platform>> stations =
+			new ArrayList<List<Platform>>();
+	private final ConcurrentMap<Long, List<Edge>> edges =
+			new ConcurrentHashMap<Long, List<Edge>>();
+	private final ConcurrentMap<String, Section> sections =
+			new ConcurrentHashMap<String, Section>();
+	private final ConcurrentMap<String, List<Route>> routes =
+			new ConcurrentHashMap<String, List<Route>>();
+	private final AtomicInteger planned = new AtomicInteger();
+
+	/** Creates a planner for the stations of a layout. Each station sensor
+	 *  of the layout is on the track of one platform, and the two sensors
+	 *  of station n give its two platforms.
+	 *
+	 *  @throws IllegalArgumentException if a station sensor is not on a
+	 *  		track that ends in a stop.
+	 */
+	public RoutePlanner(TrainLineMap map, Train.Layout layout) {
+		this.map = map;
+		SensorEvent[] sensors = layout.topology().stations;
+		for (int i = 0; i < sensors.length; i++) {
+			if (i % 2 == 0) stations.add(new ArrayList<Platform>());
+			SensorEvent s = sensors[i];
+			SensorPlacer.Stretch track =
+					SensorPlacer.stretch(map, s.getXpos(), s.getYpos());
+			int[] stop = null;
+			for (int[] end : new int[][] { track.front, track.back }) {
+				if (end != null && map.isStop(end[0], end[1])) stop = end;
+			}
+			if (stop == null)
+				throw new IllegalArgumentException("the track through "
+						+ s.getXpos() + "," + s.getYpos() + " has no stop");
+			stations.get(i / 2).add(new Platform(stop[0], stop[1], i / 2));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: java RoutePlanner map");
+			System.exit(1);
+		}
+		TrainLineMap map = TrainLineMap.load(new File(args[0]));
+		RoutePlanner planner = new RoutePlanner(map, SensorPlacer.locate(map));
+		for (int from = 0; from < planner.stationCount(); from++) {
+			for (Platform p : planner.platforms(from)) {
+				for (int to = 0; to < planner.stationCount(); to++) {
+					if (to == from) continue;
+					long start = System.nanoTime();
+					List<Route> planned = planner.routes(p, to);
+					long first = System.nanoTime() - start;
+					start = System.nanoTime();
+					planner.routes(p, to);
+					long again = System.nanoTime() - start;
+					System.out.printf(Locale.ROOT, "# station %d platform %s to "
+							+ "station %d: planned in %d us, cached in %d us%n",
+							from + 1, p, to + 1, first / 1000, again / 1000);
+					for (Route r : planned) System.out.println(r);
+				}
+			}
+		}
+	}
+
+	public int stationCount() {
+		return stations.size();
+	}
+
+	public List<Platform> platforms(int station) {
+		return Collections.unmodifiableList(stations.get(station));
+	}
+
+	/** Returns the number of platform and station pairs planned so far.
+	 */
+	public int plannedCount() {
+		return planned.get();
+	}
+
+	/** Returns the shortest route from a platform to another station, or
+	 *  null if there is none.
+	 */
+	public Route route(Platform from, int station) {
+		List<Route> planned = routes(from, station);
+		return planned.isEmpty() ? null : planned.get(0);
+	}
+
+	/** Returns the planned route from a platform to another station whose
+	 *  length and contention add up to the least, or null if there is none.
+	 */
+	public Route route(Platform from, int station, Contention contention) {
+		Route best = null;
+		double bestCost = 0;
+		for (Route r : routes(from, station)) {
+			double cost = r.length;
+			for (Section s : r.sections) cost += contention.cost(s);
+			if (best == null || cost < bestCost) {
+				best = r;
+				bestCost = cost;
+			}
+		}
+		return best;
+	}
+
+	/** Returns the routes from a platform to another station, shortest
+	 *  first. They are planned on the first call and kept for later ones.
+	 */
+	public List<Route> routes(final Platform from, final int station) {
+		return routes.computeIfAbsent(from + ">" + station,
+				new java.util.function.Function<String, List<Route>>() {
+			public List<Route> apply(String key) {
+				planned.incrementAndGet();
+				return Collections.unmodifiableList(plan(from, station));
+			}
+		});
+	}
+
+	/** Plans up to MAX_ROUTES routes by Yen's algorithm: each further route
+	 *  leaves one of the routes found so far at one of its nodes, by an
+	 *  edge that none of them takes from the same beginning.
+	 */
+	private List<Route> plan(Platform from, int station) {
+		long origin = node(from.x, from.y, TrainLineMap.NO_DIR);
+		List<List<Edge>> found = new ArrayList<List<Edge>>();
+		List<List<Edge>> candidates = new ArrayList<List<Edge>>();
+		List<Edge> first = shortest(origin, station, Collections.<Long>emptySet(),
+				Collections.<Edge>emptySet());
+		if (first != null) found.add(first);
+		while (!found.isEmpty() && found.size() < MAX_ROUTES) {
+			List<Edge> last = found.get(found.size() - 1);
+			for (int i = 0; i < last.size(); i++) {
+				List<Edge> root = last.subList(0, i);
+				Set<Edge> removedEdges = new HashSet<Edge>();
+				for (List<Edge> p : found) {
+					if (p.size() > i && p.subList(0, i).equals(root))
+						removedEdges.add(p.get(i));
+				}
+				Set<Long> removedNodes = new HashSet<Long>();
+				for (Edge e : root) removedNodes.add(e.from);
+				List<Edge> spur = shortest(last.get(i).from, station,
+						removedNodes, removedEdges);
+				if (spur == null) continue;
+				List<Edge> path = new ArrayList<Edge>(root);
+				path.addAll(spur);
+				if (!found.contains(path) && !candidates.contains(path))
+					candidates.add(path);
+			}
+			if (candidates.isEmpty()) break;
+			List<Edge> next = candidates.get(0);
+			for (List<Edge> c : candidates) {
+				if (cost(c) < cost(next)) next = c;
+			}
+			candidates.remove(next);
+			found.add(next);
+		}
+
+		List<Route> planned = new ArrayList<Route>();
+		for (List<Edge> path : found) {
+			List<SwitchSetting> settings = new ArrayList<SwitchSetting>();
+			List<Section> passed = new ArrayList<Section>();
+			for (Edge e : path) {
+				if (e.setting != null) settings.add(e.setting);
+				passed.addAll(e.sections);
+			}
+			long end = path.get(path.size() - 1).to;
+			planned.add(new Route(from, platformAt(station, end), settings,
+					passed, cost(path)));
+		}
+		return planned;
+	}
+
+	private static int cost(List<Edge> path) {
+		int cost = 0;
+		for (Edge e : path) cost += e.cost;
+		return cost;
+	}
+
+	/** Finds the shortest path by Dijkstra's algorithm from a node to a
+	 *  platform of a station, leaving out some nodes and edges.
+	 *
+	 *  @return The edges of the path, or null if there is none.
+	 */
+	private List<Edge> shortest(long start, int station, Set<Long> removedNodes,
+			Set<Edge> removedEdges) {
+		final Map<Long, Integer> dist = new HashMap<Long, Integer>();
+		Map<Long, Edge> via = new HashMap<Long, Edge>();
+		PriorityQueue<long[]> queue = new PriorityQueue<long[]>(11,
+				new Comparator<long[]>() {
+			public int compare(long[] a, long[] b) {
+				return Long.compare(a[0], b[0]);
+			}
+		});
+		dist.put(start, 0);
+		queue.add(new long[] { 0, start });
+		while (!queue.isEmpty()) {
+			long[] head = queue.poll();
+			long n = head[1];
+			if (head[0] > dist.get(n)) continue;
+			if (n != start && platformAt(station, n) != null) {
+				LinkedList<Edge> path = new LinkedList<Edge>();
+				for (long at = n; at != start; at = via.get(at).from)
+					path.addFirst(via.get(at));
+				return path;
+			}
+			for (Edge e : edgesFrom(n)) {
+				if (removedEdges.contains(e) || removedNodes.contains(e.to))
+					continue;
+				int d = (int) head[0] + e.cost;
+				Integer old = dist.get(e.to);
+				if (old == null || d < old) {
+					dist.put(e.to, d);
+					via.put(e.to, e);
+					queue.add(new long[] { d, e.to });
+				}
+			}
+		}
+		return null;
+	}
+
+	/** Returns the platform of a station that a node arrives at, or null.
+	 */
+	private Platform platformAt(int station, long node) {
+		if (direction(node) == TrainLineMap.NO_DIR) return null;
+		for (Platform p : stations.get(station)) {
+			if (p.x == x(node) && p.y == y(node)) return p;
+		}
+		return null;
+	}
+
+	/** Returns the edges leaving a node, finding them the first time.
+	 *  A train leaves a stop in the only direction the track goes, and
+	 *  cannot go on from a stop it has arrived at.
+	 */
+	private List<Edge> edgesFrom(final long n) {
+		return edges.computeIfAbsent(n,
+				new java.util.function.Function<Long, List<Edge>>() {
+			public List<Edge> apply(Long key) {
+				return findEdges(n);
+			}
+		});
+	}
+
+	private List<Edge> findEdges(long n) {
+		int x = x(n), y = y(n), dir = direction(n);
+		List<Edge> found = new ArrayList<Edge>();
+		if (map.isStop(x, y)) {
+			if (dir != TrainLineMap.NO_DIR) return found;
+			for (int d = TrainLineMap.UP; d <= TrainLineMap.LEFT; d++) {
+				Edge e = follow(n, x, y, d, 0, null);
+				if (e != null) found.add(e);
+			}
+			return found;
+		}
+		Section junction = section((map.isSwitch(x, y) ? "switch " : "crossing ")
+				+ x + "," + y, 1);
+		int positions = map.isSwitch(x, y) ? 2 : 1;
+		for (int sw = TrainLineMap.LEFT_SWITCH; sw < positions; sw++) {
+			int out = map.newDirection(x, y, sw, dir);
+			if (out == TrainLineMap.NO_DIR) continue;
+			SwitchSetting setting = map.isSwitch(x, y)
+					? new SwitchSetting(x, y, sw == TrainLineMap.LEFT_SWITCH
+							? TSimInterface.SWITCH_LEFT
+							: TSimInterface.SWITCH_RIGHT, junction)
+					: null;
+			Edge e = follow(n, x, y, out, 1, setting);
+			if (e == null) continue;
+			e.sections.add(0, junction);
+			found.add(e);
+		}
+		return found;
+	}
+
+	/** Follows the plain track from a tile in a direction to the next
+	 *  switch, crossing or stop.
+	 *
+	 *  @param cost the cost of the tile left.
+	 *  @return The edge, or null if the track derails or leaves the map.
+	 */
+	private Edge follow(long from, int x, int y, int dir, int cost,
+			SwitchSetting setting) {
+		int cx = x, cy = y, tiles = 0;
+		int[] first = null, last = null;
+		while (true) {
+			cx += TrainLineMap.dx(dir);
+			cy += TrainLineMap.dy(dir);
+			if (!map.isInside(cx, cy)) return null;
+			if (map.isSwitch(cx, cy) || map.isCrossing(cx, cy)
+					|| map.isStop(cx, cy))
+				break;
+			dir = map.newDirection(cx, cy, TrainLineMap.LEFT_SWITCH, dir);
+			if (dir == TrainLineMap.NO_DIR) return null;
+			last = new int[] { cx, cy };
+			if (first == null) first = last;
+			tiles++;
+		}
+		Edge e = new Edge(from, node(cx, cy, dir), cost + tiles, setting);
+		if (tiles > 0) {
+			// Named the same from both ends, by the ends and the tile next
+			// to the first of them, as two tracks may join the same ends.
+			String a = x + "," + y, b = cx + "," + cy;
+			boolean ordered = x < cx || (x == cx && y < cy);
+			int[] via = ordered ? first : last;
+			e.sections.add(section("track " + (ordered ? a + "-" + b
+					: b + "-" + a) + " via " + via[0] + "," + via[1], tiles));
+		}
+		return e;
+	}
+
+	private Section section(final String name, final int length) {
+		return sections.computeIfAbsent(name,
+				new java.util.function.Function<String, Section>() {
+			public Section apply(String key) {
+				return new Section(name, length);
+			}
+		});
+	}
+
+	/** A node is a tile and the direction a train enters it in, or NO_DIR
+	 *  for a train starting at a stop.
+	 */
+	private static long node(int x, int y, int dir) {
+		return ((long) x << 35) | ((long) y << 3) | dir;
+	}
+
+	private static int x(long node) {
+		return (int) (node >>> 35);
+	}
+
+	private static int y(long node) {
+		return (int) ((node >>> 3) & 0xffffffffL);
+	}
+
+	private static int direction(long node) {
+		return (int) (node & 7);
+	}
+}
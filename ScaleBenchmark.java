@@ -0,0 +1,149 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import TSim.*;
+
+/** Measures how the trains and the TSim client cope as the network grows.
+ *  For each size, a map of that many copies of a template is generated by
+ *  MapGenerator, with all trains of every copy, and run on
+ *  HeadlessSimulator with one Train controller per train. After a warm-up
+ *  the following are reported, as comma separated lines in the format of
+ *  TSimBenchmark:
+ *
+ *  	the size of the network in stations, sensors, switches and trains;
+ *  	sensor events per second delivered to the trains;
+ *  	CPU time of the train threads per sensor event;
+ *  	heap per train, including its share of the simulator and layout;
+ *  	simulated seconds per second, against what the delay asks for;
+ *  	collisions and failed commands.
+ *
+ *  Usage: java ScaleBenchmark template [seconds [copies,copies,...]]
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class ScaleBenchmark {
+
+	/** The delay of the simulator in milliseconds, as tsim -s. */
+	private static final int DELAY = 2;
+
+	private static final long WARMUP_MILLIS = 5000;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("usage: java ScaleBenchmark template "
+					+ "[seconds [copies,copies,...]]");
+			System.exit(1);
+		}
+		TrainLineMap template = TrainLineMap.load(new File(args[0]));
+		long millis = args.length > 1 ? Long.parseLong(args[1]) * 1000 : 10000;
+		String sizes = args.length > 2 ? args[2] : "1,4,16,64,128";
+
+		System.out.println("benchmark,param,metric,value,unit");
+		for (String s : sizes.split(",")) run(template, Integer.parseInt(s), millis);
+		System.exit(0);
+	}
+
+	/** Runs one size of network and reports it.
+	 */
+	static void run(TrainLineMap template, int copies, long millis)
+			throws Exception {
+		int perCopy = template.getTrains().size();
+		TrainLineMap map = MapGenerator.generate(template, copies,
+				copies * perCopy);
+		String param = copies + " copies";
+		reportSize(map, copies * new Train.Layout().stationCount(), param);
+
+		long heapBefore = usedHeap();
+		HeadlessSimulator sim = new HeadlessSimulator(map, DELAY);
+		TSimInterface tsi = sim.getInterface();
+		final AtomicLong events = new AtomicLong();
+		final AtomicInteger failures = new AtomicInteger();
+		tsi.addSensorListener(new SensorListener() {
+			public void sensorEvent(SensorEvent e, long time) {
+				events.incrementAndGet();
+			}
+		});
+
+		List<Train> trains = new ArrayList<Train>();
+		Train.Layout base = new Train.Layout();
+		for (int copy = 0; copy < copies; copy++) {
+			Train.Layout layout = base.translate(
+					MapGenerator.offsetX(template, copies, copy),
+					MapGenerator.offsetY(template, copies, copy));
+			for (int i = 0; i < perCopy; i++) {
+				int id = copy * perCopy + i + 1;
+				// Train n of the template starts at station n, as in Lab1.
+				int station = i < layout.stationCount() ? i : -1;
+				trains.add(new Train(id, 15, DELAY, tsi, layout, station) {
+					protected void failed(Exception e) {
+						failures.incrementAndGet();
+					}
+				});
+			}
+		}
+		sim.start();
+		for (Train t : trains) t.start();
+		Thread.sleep(WARMUP_MILLIS);
+
+		long heap = usedHeap() - heapBefore;
+		long cpu0 = cpuTime(trains), events0 = events.get();
+		double sim0 = sim.getSimulatedSeconds();
+		long start = System.nanoTime();
+		Thread.sleep(millis);
+		double wall = (System.nanoTime() - start) / 1e9;
+		long cpu = cpuTime(trains) - cpu0;
+		long n = events.get() - events0;
+		double simulated = sim.getSimulatedSeconds() - sim0;
+
+		sim.stop();
+		for (Train t : trains) t.halt();
+		for (Train t : trains) t.join(1000);
+		sim.close();
+
+		TSimBenchmark.report("scale", param, "throughput", n / wall, "events/s");
+		TSimBenchmark.report("scale", param, "cpu per event",
+				n == 0 ? 0 : cpu / 1000.0 / n, "us");
+		TSimBenchmark.report("scale", param, "heap per train",
+				heap / 1024.0 / trains.size(), "KiB");
+		// tsim moves the trains a tenth of a second every DELAY ms.
+		TSimBenchmark.report("scale", param, "simulation rate",
+				simulated / wall / (100.0 / DELAY), "of nominal");
+		TSimBenchmark.report("scale", param, "failures", failures.get(), "trains");
+	}
+
+	private static void reportSize(TrainLineMap map, int stations,
+			String param) {
+		int sensors = 0, switches = 0;
+		for (int x = 0; x < map.width; x++) {
+			for (int y = 0; y < map.height; y++) {
+				if (map.isSensor(x, y)) sensors++;
+				if (map.isSwitch(x, y)) switches++;
+			}
+		}
+		TSimBenchmark.report("scale", param, "stations", stations, "count");
+		TSimBenchmark.report("scale", param, "sensors", sensors, "count");
+		TSimBenchmark.report("scale", param, "switches", switches, "count");
+		TSimBenchmark.report("scale", param, "trains", map.getTrains().size(),
+				"count");
+	}
+
+	/** Returns the CPU time of the train threads in nanoseconds.
+	 */
+	private static long cpuTime(List<Train> trains) {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		long sum = 0;
+		for (Train t : trains) {
+			long cpu = mx.getThreadCpuTime(t.getId());
+			if (cpu > 0) sum += cpu;
+		}
+		return sum;
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
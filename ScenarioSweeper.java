@@ -0,0 +1,322 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import TSim.*;
+import static TSim.SensorEvent.*;
+
+/** Searches for the train and simulator speeds that give the most station
+ *  round trips. Each combination of speeds is run with two Train
+ *  controllers against its own HeadlessSimulator, many at a time on a
+ *  fork/join pool. After a grid of speeds has been run, the neighbours of
+ *  the best combination are tried with smaller and smaller steps.
+ *
+ *  Usage: java ScenarioSweeper [-hardstop] map seconds minSpeed maxSpeed
+ *  step simSpeed[,simSpeed...] [threads]
+ *
+ *  Each scenario runs for the given number of simulated seconds, or until
+ *  a train crashes. One line is printed per scenario with the speeds, the
+ *  round trips per simulated hour of all trains together, the mean time in
+ *  milliseconds to pass a critical section including the wait for it, and
+ *  the number of collisions and other failed commands. With -hardstop the
+ *  trains stop at once for a taken section instead of slowing down.
+ *
+ *  A scenario where a train crashed or a command failed is a fault in the
+ *  controller, not just a poor result: it is reported on a line of its
+ *  own starting with "# crash", and counted at the end. Round trips are
+ *  whole numbers, and a run may end just before or just after one, so a
+ *  short run may not tell the speeds apart. If the grid scenarios without
+ *  a crash differ by at most one round trip, the grid is not refined, and
+ *  a line starting with "# no separation" says so.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class ScenarioSweeper {
+
+	/** The outcome of one combination of speeds.
+	 */
+	public static class Result {
+		public final int t1speed, t2speed, simSpeed;
+		public double seconds;
+		public int roundTrips;
+		public double meanTransit;
+		public int collisions;
+		public int failures;
+
+		Result(int t1speed, int t2speed, int simSpeed) {
+			this.t1speed = t1speed;
+			this.t2speed = t2speed;
+			this.simSpeed = simSpeed;
+		}
+
+		public double roundTripsPerHour() {
+			return seconds == 0 ? 0 : roundTrips * 3600 / seconds;
+		}
+
+		/** A scenario with a crash is worse than any without one.
+		 */
+		public double score() {
+			return collisions + failures > 0 ? -1 : roundTripsPerHour();
+		}
+
+		public String toString() {
+			return String.format(Locale.ROOT, "%d,%d,%d,%.1f,%.2f,%.0f,%d,%d",
+					t1speed, t2speed, simSpeed, seconds, roundTripsPerHour(),
+					meanTransit, collisions, failures);
+		}
+	}
+
+	private final TrainLineMap map;
+	private final Train.Layout layout;
+	private final double seconds;
+	private final ForkJoinPool pool;
+
+	/** The scenarios run and those with a crash or a failed command. */
+	private int scenarios = 0;
+	private int crashes = 0;
+
+	public ScenarioSweeper(TrainLineMap map, double seconds, int threads) {
+		this(map, new Train.Layout(), seconds, new ForkJoinPool(threads));
+	}
+
+	/** Creates a sweeper for a map where the sensors may have been moved.
+	 *
+	 *  @param layout the sensors and settings of the trains; each scenario
+	 *  	   gets semaphores of its own.
+	 *  @param pool the pool to run the scenarios on.
+	 */
+	public ScenarioSweeper(TrainLineMap map, Train.Layout layout,
+			double seconds, ForkJoinPool pool) {
+		this.map = map;
+		this.layout = layout;
+		this.seconds = seconds;
+		this.pool = pool;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean hardStop = args.length > 0 && args[0].equals("-hardstop");
+		if (hardStop) args = Arrays.copyOfRange(args, 1, args.length);
+		if (args.length < 6) {
+			System.err.println("usage: java ScenarioSweeper [-hardstop] map "
+					+ "seconds minSpeed maxSpeed step simSpeed[,simSpeed...] "
+					+ "[threads]");
+			System.exit(1);
+		}
+		TrainLineMap map = TrainLineMap.load(new File(args[0]));
+		double seconds = Double.parseDouble(args[1]);
+		int min = Integer.parseInt(args[2]);
+		int max = Integer.parseInt(args[3]);
+		int step = Integer.parseInt(args[4]);
+		int threads = args.length > 6 ? Integer.parseInt(args[6])
+				: Runtime.getRuntime().availableProcessors();
+		// The map may have sensors moved by SensorPlacer.
+		Train.Layout layout = SensorPlacer.locate(map);
+		layout.setAdaptive(!hardStop);
+		ScenarioSweeper sweeper = new ScenarioSweeper(map, layout, seconds,
+				new ForkJoinPool(threads));
+
+		System.out.println("t1speed,t2speed,simspeed,seconds,"
+				+ "roundtrips_per_hour,transit_ms,collisions,failures");
+		Result best = null;
+		for (String s : args[5].split(",")) {
+			Result r = sweeper.search(min, max, step, Integer.parseInt(s));
+			if (best == null || r.score() > best.score()) best = r;
+		}
+		System.out.println("# crashes: " + sweeper.crashes + " of "
+				+ sweeper.scenarios + " scenarios");
+		System.out.println(best.score() < 0 ? "# best: none without a crash"
+				: "# best: " + best);
+		System.exit(sweeper.crashes > 0 ? 2 : 0);
+	}
+
+	/** Runs the grid of train speeds from min to max for one simulator
+	 *  speed, then refines around the best result.
+	 *
+	 *  @return The best result found.
+	 */
+	public Result search(int min, int max, int step, int simSpeed)
+			throws InterruptedException {
+		List<int[]> grid = new ArrayList<int[]>();
+		for (int t1 = min; t1 <= max; t1 += step)
+			for (int t2 = min; t2 <= max; t2 += step)
+				grid.add(new int[] { t1, t2 });
+		List<Result> results = runAll(grid, simSpeed);
+		Result best = best(results, null);
+		if (!separates(results)) {
+			System.out.println("# no separation at simSpeed " + simSpeed
+					+ ": the scenarios without a crash differ by at most one"
+					+ " round trip, give them more seconds");
+			return best;
+		}
+
+		Set<String> tried = new HashSet<String>();
+		for (int[] p : grid) tried.add(p[0] + "," + p[1]);
+		for (int h = step / 2; h >= 1 && best != null; h /= 2) {
+			List<int[]> around = new ArrayList<int[]>();
+			for (int d1 = -h; d1 <= h; d1 += h) {
+				for (int d2 = -h; d2 <= h; d2 += h) {
+					int t1 = best.t1speed + d1, t2 = best.t2speed + d2;
+					if (t1 < 1 || t2 < 1 || !tried.add(t1 + "," + t2)) continue;
+					around.add(new int[] { t1, t2 });
+				}
+			}
+			best = best(runAll(around, simSpeed), best);
+		}
+		return best;
+	}
+
+	/** Runs the scenarios in parallel and prints their results.
+	 */
+	private List<Result> runAll(List<int[]> speeds, final int simSpeed)
+			throws InterruptedException {
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+		for (final int[] p : speeds) {
+			tasks.add(new Callable<Result>() {
+				public Result call() throws Exception {
+					return run(p[0], p[1], simSpeed);
+				}
+			});
+		}
+		List<Result> results = new ArrayList<Result>();
+		for (Future<Result> f : pool.invokeAll(tasks)) {
+			try {
+				Result r = f.get();
+				System.out.println(r);
+				scenarios++;
+				if (r.collisions + r.failures > 0) {
+					crashes++;
+					System.out.println("# crash: " + r.t1speed + ","
+							+ r.t2speed + "," + r.simSpeed + " after "
+							+ String.format(Locale.ROOT, "%.1f", r.seconds)
+							+ " s: " + r.collisions + " collisions, "
+							+ r.failures + " failed commands");
+				}
+				results.add(r);
+			} catch (ExecutionException e) {
+				System.err.println(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	/** Whether the scenarios without a crash differ by more than one
+	 *  round trip.
+	 */
+	private static boolean separates(List<Result> results) {
+		int least = Integer.MAX_VALUE, most = Integer.MIN_VALUE;
+		for (Result r : results) {
+			if (r.score() < 0) continue;
+			least = Math.min(least, r.roundTrips);
+			most = Math.max(most, r.roundTrips);
+		}
+		return most - least > 1;
+	}
+
+	private static Result best(List<Result> results, Result best) {
+		for (Result r : results)
+			if (best == null || r.score() > best.score()) best = r;
+		return best;
+	}
+
+	/** Runs one scenario on a simulator and interface of its own.
+	 */
+	public Result run(int t1speed, int t2speed, int simSpeed)
+			throws IOException, InterruptedException {
+		return run(t1speed, t2speed, new HeadlessSimulator(map, simSpeed),
+				simSpeed);
+	}
+
+	/** Runs one scenario on a given simulator, which has not been started,
+	 *  of the map and speed of the sweeper. The simulator and its interface
+	 *  are closed afterwards, so that a sweep does not keep their threads.
+	 */
+	public Result run(int t1speed, int t2speed, HeadlessSimulator sim,
+			int simSpeed) throws InterruptedException {
+		try {
+			return runOn(sim, t1speed, t2speed, simSpeed);
+		} finally {
+			sim.close();
+		}
+	}
+
+	private Result runOn(HeadlessSimulator sim, int t1speed, int t2speed,
+			int simSpeed) throws InterruptedException {
+		final Result result = new Result(t1speed, t2speed, simSpeed);
+		TSimInterface tsi = sim.getInterface();
+		final CountDownLatch crashed = new CountDownLatch(1);
+		final int[] lastStation = new int[] { 0, 0, 0 };	// by train id
+
+		tsi.addSensorListener(new SensorListener() {
+			public void sensorEvent(SensorEvent e, long time) {
+				int station = station(e);
+				int id = e.getTrainId();
+				if (station == 0 || e.getStatus() != ACTIVE || id > 2) return;
+				synchronized (result) {
+					// Arriving at station 1 after station 2 ends a round trip.
+					if (station == 1 && lastStation[id] == 2) result.roundTrips++;
+					lastStation[id] = station;
+				}
+			}
+		});
+		tsi.addFailureListener(new TrainFailureListener() {
+			public void trainFailed(TrainErrorEvent e) {
+				synchronized (result) {
+					result.collisions++;
+				}
+				crashed.countDown();
+			}
+		});
+
+		Train.Layout layout = new Train.Layout(this.layout.topology());
+		layout.setAdaptive(this.layout.adaptive);
+		Train[] trains = new Train[2];
+		int[] speeds = { t1speed, t2speed };
+		for (int i = 0; i < 2; i++) {
+			trains[i] = new Train(i + 1, speeds[i], simSpeed, tsi, layout) {
+				protected void failed(Exception e) {
+					if (e instanceof CommandException) {
+						synchronized (result) {
+							result.failures++;
+						}
+					}
+					crashed.countDown();
+				}
+			};
+		}
+
+		sim.start();
+		for (Train t : trains) t.start();
+		while (sim.getSimulatedSeconds() < seconds
+				&& !crashed.await(20, TimeUnit.MILLISECONDS)) {
+		}
+		sim.stop();
+		for (Train t : trains) t.halt();
+		for (Train t : trains) t.join(1000);
+
+		synchronized (result) {
+			result.seconds = sim.getSimulatedSeconds();
+			double sum = 0;
+			int count = 0;
+			for (int i = 0; i < layout.critSems.length; i++) {
+				sum += layout.sections.meanTransit(i) * layout.sections.transits(i);
+				count += layout.sections.transits(i);
+			}
+			result.meanTransit = count == 0 ? 0 : sum / count;
+			// A crash is also seen by the trains as a failed command.
+			result.failures = Math.max(0, result.failures - result.collisions);
+			return result;
+		}
+	}
+
+	/** Returns 1 or 2 for a sensor at station 1 or 2, otherwise 0.
+	 */
+	private int station(SensorEvent e) {
+		SensorEvent[] stations = layout.topology().stations;
+		for (int i = 0; i < stations.length; i++) {
+			if (stations[i].getXpos() == e.getXpos()
+					&& stations[i].getYpos() == e.getYpos())
+				return i < stations.length / 2 ? 1 : 2;
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,421 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Talks to a SectionLockServer for the trains of one process, and gives
+ *  out semaphores and monitors for the sections that lock them on the
+ *  server instead of in this process. They take the place of those in
+ *  Train.Layout and Train2.Layout through Layout.remote, so that trains in
+ *  several processes can share one layout.
+ *
+ *  Requests are sent as soon as they are made, without waiting for the
+ *  replies to earlier ones, and releases are not waited for at all. The
+ *  leases of the sections held are renewed in the background. If one is
+ *  lost anyway, because it expired or the server went away, the server
+ *  may give the section to another process, so the train holding it is no
+ *  longer safe: the loss is reported on System.err and to the loss
+ *  listeners, through which the trains of a remote layout stop. Once the
+ *  server has gone, every request fails at once with an
+ *  IllegalStateException rather than wait for a reply.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class SectionLockClient implements Closeable {
+
+	/** The lease in milliseconds used unless another is given. */
+	public static final long DEFAULT_LEASE = 5000;
+
+	private final SocketChannel channel;
+	private final long lease;
+	private final AtomicLong tags = new AtomicLong();
+	private final ConcurrentMap<String, CompletableFuture<String[]>> pending =
+			new ConcurrentHashMap<String, CompletableFuture<String[]>>();
+	/** The sections of acquires given up on, by tag. */
+	private final ConcurrentMap<String, String> abandoned =
+			new ConcurrentHashMap<String, String>();
+	/** The token of each section held, by name. */
+	private final ConcurrentMap<String, Long> held =
+			new ConcurrentHashMap<String, Long>();
+	private final ScheduledExecutorService renewer;
+	private final List<LossListener> lossListeners =
+			new CopyOnWriteArrayList<LossListener>();
+	private volatile boolean closed = false;
+	/** Why the connection to the server ended, once it has; every request
+	 *  fails with it from then on. */
+	private volatile IOException disconnected;
+
+	/** Told when the lease on a section held in this process is lost.
+	 */
+	public interface LossListener {
+
+		/** Called on the renewer thread, once for each section lost.
+		 */
+		void lost(String section);
+
+		/** Called on the renewer thread when the server has gone, after
+		 *  lost has been called for the sections held; no section can be
+		 *  had from now on.
+		 */
+		void disconnected();
+	}
+
+	/** A semaphore with one permit, held on the server.
+	 */
+	public final class RemoteSemaphore extends Semaphore {
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+
+		RemoteSemaphore(String name) {
+			super(0);
+			this.name = name;
+		}
+
+		public void acquire() throws InterruptedException {
+			SectionLockClient.this.acquire(name, -1);
+		}
+
+		public void acquireUninterruptibly() {
+			boolean interrupted = false;
+			while (true) {
+				try {
+					acquire();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+
+		public boolean tryAcquire() {
+			return SectionLockClient.this.tryAcquire(name);
+		}
+
+		public boolean tryAcquire(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			return SectionLockClient.this.acquire(name, unit.toMillis(timeout));
+		}
+
+		public void release() {
+			SectionLockClient.this.release(name);
+		}
+
+		/** Returns 0 if the section is held in this process and 1 if it is
+		 *  not; whether another process holds it is not known.
+		 */
+		public int availablePermits() {
+			return held.containsKey(name) ? 0 : 1;
+		}
+
+		/** Returns the fencing token of the hold on the section, or 0 if it
+		 *  is not held in this process.
+		 */
+		public long token() {
+			Long token = held.get(name);
+			return token == null ? 0 : token;
+		}
+	}
+
+	/** A monitor for a section, held on the server.
+	 */
+	public final class RemoteMonitor extends TrainMonitor {
+		private final String name;
+
+		RemoteMonitor(String name) {
+			this.name = name;
+		}
+
+		public void enter() throws InterruptedException {
+			SectionLockClient.this.acquire(name, -1);
+		}
+
+		public void leave() {
+			SectionLockClient.this.release(name);
+		}
+
+		public Boolean tryEnter() {
+			return SectionLockClient.this.tryAcquire(name);
+		}
+
+		public boolean tryEnter(long timeout, TimeUnit unit)
+				throws InterruptedException {
+			return SectionLockClient.this.acquire(name, unit.toMillis(timeout));
+		}
+	}
+
+	private SectionLockClient(SocketChannel channel, long lease) {
+		this.channel = channel;
+		this.lease = lease;
+		renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "section lease renewer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		renewer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				renew();
+			}
+		}, lease / 3, lease / 3, TimeUnit.MILLISECONDS);
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				readLoop();
+			}
+		}, "section lock reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/** Connects to a server at an address given as for
+	 *  SectionLockServer.parseAddress.
+	 *
+	 *  @param lease the lease in milliseconds asked for each section.
+	 *  @throws IOException if the server cannot be reached.
+	 */
+	public static SectionLockClient connect(String address, long lease)
+			throws IOException {
+		SocketAddress a = SectionLockServer.parseAddress(address);
+		SocketChannel channel = a instanceof UnixDomainSocketAddress
+				? SocketChannel.open(StandardProtocolFamily.UNIX)
+				: SocketChannel.open();
+		channel.connect(a);
+		if (!(a instanceof UnixDomainSocketAddress))
+			channel.socket().setTcpNoDelay(true);
+		return new SectionLockClient(channel, lease);
+	}
+
+	/** Returns a semaphore for a section. Sections are named by strings
+	 *  without spaces, shared by all clients of the server.
+	 */
+	public RemoteSemaphore semaphore(String name) {
+		return new RemoteSemaphore(name);
+	}
+
+	/** Returns a monitor for a section, as for semaphore.
+	 */
+	public RemoteMonitor monitor(String name) {
+		return new RemoteMonitor(name);
+	}
+
+	/** Adds a listener told of every lease lost from now on.
+	 */
+	public void addLossListener(LossListener l) {
+		lossListeners.add(l);
+	}
+
+	/** Disconnects, which releases every section held.
+	 */
+	public void close() throws IOException {
+		closed = true;
+		renewer.shutdownNow();
+		channel.close();
+	}
+
+	/** Waits for a section.
+	 *
+	 *  @param timeout the longest wait in milliseconds, or -1.
+	 *  @return 'true' if the section was acquired in time.
+	 */
+	private boolean acquire(String name, long timeout)
+			throws InterruptedException {
+		String tag = Long.toString(tags.incrementAndGet());
+		CompletableFuture<String[]> reply = send("acquire", tag, name,
+				Long.toString(lease));
+		try {
+			String[] w = timeout < 0 ? reply.get()
+					: reply.get(timeout, TimeUnit.MILLISECONDS);
+			return granted(name, w);
+		} catch (TimeoutException | InterruptedException e) {
+			// A grant already on its way is released when it arrives.
+			abandoned.put(tag, name);
+			if (pending.remove(tag) == null) {
+				abandoned.remove(tag);
+				try {
+					if (granted(name, reply.join())) release(name);
+				} catch (CompletionException f) {}
+			} else {
+				// The reply comes under the same tag, and is not waited for.
+				// If the server is gone, so is the wait.
+				try {
+					write("cancel " + tag + " " + name);
+				} catch (IOException f) {}
+			}
+			if (e instanceof InterruptedException) throw (InterruptedException) e;
+			return false;
+		} catch (ExecutionException e) {
+			return fail(e.getCause());
+		}
+	}
+
+	private boolean tryAcquire(String name) {
+		String tag = Long.toString(tags.incrementAndGet());
+		try {
+			return granted(name, send("try", tag, name, Long.toString(lease)).get());
+		} catch (ExecutionException e) {
+			return fail(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private boolean granted(String name, String[] w) {
+		if (!w[0].equals("granted")) return false;
+		held.put(name, Long.parseLong(w[2]));
+		return true;
+	}
+
+	private boolean fail(Throwable cause) {
+		throw new IllegalStateException("section lock server: "
+				+ cause.getMessage(), cause);
+	}
+
+	private void release(String name) {
+		Long token = held.remove(name);
+		if (token == null) return;
+		String tag = Long.toString(tags.incrementAndGet());
+		send("release", tag, name, token.toString());
+	}
+
+	private void renew() {
+		for (Map.Entry<String, Long> e : held.entrySet()) {
+			final String name = e.getKey();
+			final Long token = e.getValue();
+			String tag = Long.toString(tags.incrementAndGet());
+			send("renew", tag, name, token.toString(), Long.toString(lease))
+					.thenAccept(new java.util.function.Consumer<String[]>() {
+				public void accept(String[] w) {
+					if (w[0].equals("stale") && held.remove(name, token))
+						lost(name);
+				}
+			});
+		}
+	}
+
+	/** Sends a request, and returns the reply to come. Once the server has
+	 *  gone, the reply is the failure at once.
+	 */
+	private CompletableFuture<String[]> send(String verb, String tag,
+			String... args) {
+		CompletableFuture<String[]> reply = new CompletableFuture<String[]>();
+		if (disconnected != null) {
+			reply.completeExceptionally(disconnected);
+			return reply;
+		}
+		pending.put(tag, reply);
+		// The reader may have failed the pending requests before this one
+		// was put.
+		if (disconnected != null) {
+			if (pending.remove(tag) != null)
+				reply.completeExceptionally(disconnected);
+			return reply;
+		}
+		StringBuilder line = new StringBuilder(verb).append(' ').append(tag);
+		for (String a : args) line.append(' ').append(a);
+		try {
+			write(line.toString());
+		} catch (IOException e) {
+			pending.remove(tag);
+			reply.completeExceptionally(e);
+		}
+		return reply;
+	}
+
+	private void write(String line) throws IOException {
+		ByteBuffer b = ByteBuffer.wrap((line + "\n")
+				.getBytes(StandardCharsets.US_ASCII));
+		synchronized (channel) {
+			while (b.hasRemaining()) channel.write(b);
+		}
+	}
+
+	private void readLoop() {
+		ByteBuffer in = ByteBuffer.allocate(4096);
+		StringBuilder line = new StringBuilder();
+		IOException failure = new EOFException("connection closed");
+		try {
+			while (channel.read(in) >= 0) {
+				in.flip();
+				while (in.hasRemaining()) {
+					char ch = (char) in.get();
+					if (ch != '\n') {
+						line.append(ch);
+						continue;
+					}
+					reply(line.toString().trim().split("\\s+"));
+					line.setLength(0);
+				}
+				in.clear();
+			}
+		} catch (IOException e) {
+			failure = e;
+		}
+		// Requests from now on fail at once rather than wait for a reply
+		// that cannot come, and the server's half of the connection is
+		// gone anyway.
+		disconnected = failure;
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		if (!held.isEmpty() && !closed) {
+			System.err.println("lost the section lock server holding "
+					+ held.keySet());
+			for (String name : held.keySet()) {
+				if (held.remove(name) != null) lost(name);
+			}
+		}
+		if (!closed) {
+			try {
+				renewer.execute(new Runnable() {
+					public void run() {
+						for (LossListener l : lossListeners) l.disconnected();
+					}
+				});
+			} catch (RejectedExecutionException e) {}
+		}
+		for (String tag : pending.keySet()) {
+			CompletableFuture<String[]> f = pending.remove(tag);
+			if (f != null) f.completeExceptionally(failure);
+		}
+	}
+
+	/** Reports a lost lease, and tells the listeners on the renewer
+	 *  thread, so that they never hold up the replies.
+	 */
+	private void lost(final String name) {
+		System.err.println("lost the lease on section " + name);
+		try {
+			renewer.execute(new Runnable() {
+				public void run() {
+					for (LossListener l : lossListeners) l.lost(name);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Closed, which gives up the sections anyway.
+		}
+	}
+
+	private void reply(String[] w) {
+		if (w[0].equals("expired")) {
+			if (held.remove(w[1], Long.parseLong(w[2]))) lost(w[1]);
+			return;
+		}
+		if (w.length < 2) return;
+		// Whoever removes a pending request answers it.
+		CompletableFuture<String[]> f = pending.remove(w[1]);
+		if (f != null) {
+			f.complete(w);
+			return;
+		}
+		String name = abandoned.remove(w[1]);
+		if (name != null && w[0].equals("granted"))
+			send("release", Long.toString(tags.incrementAndGet()), name, w[2]);
+	}
+}
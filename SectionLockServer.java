@@ -0,0 +1,399 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/** Locks sections of track for controllers running in separate processes,
+ *  so that a fleet can be split over several JVMs sharing one layout. The
+ *  server runs on one thread with a selector, and talks to each client in
+ *  lines of text over a local TCP port or a Unix domain socket.
+ *
+ *  Usage: java SectionLockServer port|unix:path
+ *
+ *  Each request carries a tag chosen by the client, which the reply
+ *  repeats, so that a client may send many requests without waiting:
+ *
+ *  	acquire tag section lease	granted tag token, when the section is
+ *  								free, in the order asked for
+ *  	try tag section lease		granted tag token, or busy tag
+ *  	release tag section token	released tag, or stale tag
+ *  	renew tag section token lease	renewed tag, or stale tag
+ *  	cancel tag section			cancelled tag; a waiting acquire is
+ *  								dropped
+ *
+ *  A section is held for the lease in milliseconds unless it is renewed,
+ *  and is released when the client disconnects. The holder of an expired
+ *  lease is told "expired section token". Each grant gets a new token,
+ *  larger than all before it, so a holder that has lost its lease is
+ *  recognised by its stale token.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class SectionLockServer implements Runnable {
+
+	/** The longest request line accepted. */
+	private static final int MAX_LINE = 1024;
+
+	private static final class Lock {
+		final String name;
+		Client holder;			// or null
+		long token;
+		long expires;			// in nanoseconds
+		final ArrayDeque<Waiter> waiters = new ArrayDeque<Waiter>();
+
+		Lock(String name) {
+			this.name = name;
+		}
+	}
+
+	private static final class Waiter {
+		final Client client;
+		final String tag;
+		final long lease;
+
+		Waiter(Client client, String tag, long lease) {
+			this.client = client;
+			this.tag = tag;
+			this.lease = lease;
+		}
+	}
+
+	private static final class Client {
+		final SocketChannel channel;
+		final ByteBuffer in = ByteBuffer.allocate(MAX_LINE);
+		final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+		final Set<Lock> held = new HashSet<Lock>();
+		final Set<Lock> waiting = new HashSet<Lock>();
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	/** A lease that ends at a time, unless it has been renewed or the
+	 *  section given to another holder since.
+	 */
+	private static final class Expiry {
+		final long at, token;
+		final Lock lock;
+
+		Expiry(long at, long token, Lock lock) {
+			this.at = at;
+			this.token = token;
+			this.lock = lock;
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	private final SocketAddress address;
+	private final Map<String, Lock> locks = new HashMap<String, Lock>();
+	private final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>(11,
+			new Comparator<Expiry>() {
+		public int compare(Expiry a, Expiry b) {
+			return Long.compare(a.at, b.at);
+		}
+	});
+	private long nextToken = 1;
+	private volatile boolean running = true;
+
+	/** Opens a server on an address given as by parseAddress.
+	 *
+	 *  @throws IOException if the address cannot be bound.
+	 */
+	public SectionLockServer(SocketAddress address) throws IOException {
+		if (address instanceof UnixDomainSocketAddress) {
+			Files.deleteIfExists(((UnixDomainSocketAddress) address).getPath());
+			server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		} else {
+			server = ServerSocketChannel.open();
+		}
+		server.bind(address);
+		this.address = server.getLocalAddress();
+		server.configureBlocking(false);
+		selector = Selector.open();
+		server.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("usage: java SectionLockServer port|unix:path");
+			System.exit(1);
+		}
+		SectionLockServer s = new SectionLockServer(parseAddress(args[0]));
+		System.err.println("serving section locks on " + s.getAddress());
+		s.run();
+	}
+
+	/** Returns the address of "unix:path", of "port" on the loopback
+	 *  interface, or of "host:port".
+	 */
+	public static SocketAddress parseAddress(String address) {
+		if (address.startsWith("unix:"))
+			return UnixDomainSocketAddress.of(address.substring(5));
+		int colon = address.lastIndexOf(':');
+		if (colon < 0)
+			return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					Integer.parseInt(address));
+		return new InetSocketAddress(address.substring(0, colon),
+				Integer.parseInt(address.substring(colon + 1)));
+	}
+
+	/** Returns the address the server is bound to, with the port chosen
+	 *  if it was given as 0.
+	 */
+	public SocketAddress getAddress() {
+		return address;
+	}
+
+	/** Serves clients until stop is called.
+	 */
+	public void run() {
+		try {
+			while (running) {
+				selector.select(expireLeases());
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) accept();
+					else handle(key);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("section lock server: " + e.getMessage());
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof Client) {
+					try {
+						((Client) key.attachment()).channel.close();
+					} catch (IOException e) {}
+				}
+			}
+			try {
+				selector.close();
+				server.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/** Stops serving and disconnects the clients; the locks are
+	 *  forgotten.
+	 */
+	public void stop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel == null) return;
+		channel.configureBlocking(false);
+		// Replies are small and often sent back to back.
+		if (!(address instanceof UnixDomainSocketAddress))
+			channel.socket().setTcpNoDelay(true);
+		channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+	}
+
+	private void handle(SelectionKey key) {
+		Client c = (Client) key.attachment();
+		try {
+			if (key.isWritable()) flush(c, key);
+			if (key.isValid() && key.isReadable()) {
+				if (c.channel.read(c.in) < 0) {
+					disconnect(c);
+					return;
+				}
+				readLines(c);
+			}
+		} catch (IOException e) {
+			disconnect(c);
+		}
+	}
+
+	private void readLines(Client c) throws IOException {
+		ByteBuffer in = c.in;
+		in.flip();
+		int start = 0;
+		for (int i = in.position(); i < in.limit(); i++) {
+			if (in.get(i) != '\n') continue;
+			byte[] line = new byte[i - start];
+			for (int j = 0; j < line.length; j++) line[j] = in.get(start + j);
+			request(c, new String(line, StandardCharsets.US_ASCII).trim());
+			start = i + 1;
+		}
+		in.position(start);
+		in.compact();
+		if (!in.hasRemaining()) throw new IOException("line too long");
+	}
+
+	/** Carries out one request.
+	 */
+	private void request(Client c, String line) {
+		if (line.isEmpty() || !c.channel.isOpen()) return;
+		String[] w = line.split("\\s+");
+		String tag = w.length > 1 ? w[1] : "-";
+		try {
+			if ((w[0].equals("acquire") || w[0].equals("try")) && w.length == 4) {
+				Lock lock = lock(w[2]);
+				long lease = Long.parseLong(w[3]);
+				if (lock.holder == null) {
+					grant(lock, c, tag, lease);
+				} else if (w[0].equals("try")) {
+					send(c, "busy " + tag);
+				} else {
+					lock.waiters.add(new Waiter(c, tag, lease));
+					c.waiting.add(lock);
+				}
+			} else if (w[0].equals("release") && w.length == 4) {
+				Lock lock = locks.get(w[2]);
+				if (!holds(c, lock, Long.parseLong(w[3]))) {
+					send(c, "stale " + tag);
+					return;
+				}
+				// The reply goes last, as sending it may disconnect c.
+				c.held.remove(lock);
+				handOver(lock, c);
+				send(c, "released " + tag);
+			} else if (w[0].equals("renew") && w.length == 5) {
+				Lock lock = locks.get(w[2]);
+				if (!holds(c, lock, Long.parseLong(w[3]))) {
+					send(c, "stale " + tag);
+					return;
+				}
+				lock.expires = System.nanoTime() + Long.parseLong(w[4]) * 1000000;
+				expiries.add(new Expiry(lock.expires, lock.token, lock));
+				send(c, "renewed " + tag);
+			} else if (w[0].equals("cancel") && w.length == 3) {
+				Lock lock = locks.get(w[2]);
+				if (lock != null) {
+					boolean more = false;
+					Iterator<Waiter> it = lock.waiters.iterator();
+					while (it.hasNext()) {
+						Waiter waiter = it.next();
+						if (waiter.client != c) continue;
+						if (waiter.tag.equals(tag)) it.remove();
+						else more = true;
+					}
+					if (!more) c.waiting.remove(lock);
+				}
+				send(c, "cancelled " + tag);
+			} else {
+				send(c, "error " + tag + " unknown request");
+			}
+		} catch (NumberFormatException e) {
+			send(c, "error " + tag + " number expected");
+		}
+	}
+
+	private Lock lock(String name) {
+		Lock lock = locks.get(name);
+		if (lock == null) {
+			lock = new Lock(name);
+			locks.put(name, lock);
+		}
+		return lock;
+	}
+
+	private static boolean holds(Client c, Lock lock, long token) {
+		return lock != null && lock.holder == c && lock.token == token;
+	}
+
+	private void grant(Lock lock, Client c, String tag, long lease) {
+		lock.holder = c;
+		lock.token = nextToken++;
+		lock.expires = System.nanoTime() + lease * 1000000;
+		expiries.add(new Expiry(lock.expires, lock.token, lock));
+		c.held.add(lock);
+		send(c, "granted " + tag + " " + lock.token);
+	}
+
+	/** Gives a section that has been released by a client to the first
+	 *  client waiting for it, if any. Nothing is done if the section has
+	 *  already been taken from that client, so that it is never given to
+	 *  two waiters: sending to a client may disconnect it, and so hand
+	 *  over its sections, in the middle of a request.
+	 */
+	private void handOver(Lock lock, Client from) {
+		if (lock.holder != from) return;
+		lock.holder = null;
+		Waiter w = lock.waiters.poll();
+		if (w == null) return;
+		boolean more = false;
+		for (Waiter other : lock.waiters) more |= other.client == w.client;
+		if (!more) w.client.waiting.remove(lock);
+		grant(lock, w.client, w.tag, w.lease);
+	}
+
+	/** Takes back the sections whose leases have run out.
+	 *
+	 *  @return The time in milliseconds until the next lease runs out, or
+	 *  		0 if none is held.
+	 */
+	private long expireLeases() {
+		long now = System.nanoTime();
+		while (!expiries.isEmpty()) {
+			Expiry e = expiries.peek();
+			Lock lock = e.lock;
+			if (lock.holder == null || lock.token != e.token
+					|| lock.expires != e.at) {
+				expiries.poll();	// renewed or given to another holder
+			} else if (e.at <= now) {
+				expiries.poll();
+				Client holder = lock.holder;
+				long token = lock.token;
+				holder.held.remove(lock);
+				handOver(lock, holder);
+				send(holder, "expired " + lock.name + " " + token);
+			} else {
+				return Math.max(1, (e.at - now) / 1000000);
+			}
+		}
+		return 0;
+	}
+
+	private void disconnect(Client c) {
+		try {
+			c.channel.close();
+		} catch (IOException e) {}
+		for (Lock lock : c.waiting) {
+			Iterator<Waiter> it = lock.waiters.iterator();
+			while (it.hasNext()) {
+				if (it.next().client == c) it.remove();
+			}
+		}
+		c.waiting.clear();
+		for (Lock lock : c.held) handOver(lock, c);
+		c.held.clear();
+	}
+
+	private void send(Client c, String line) {
+		if (!c.channel.isOpen()) return;
+		c.out.add(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.US_ASCII)));
+		SelectionKey key = c.channel.keyFor(selector);
+		try {
+			flush(c, key);
+		} catch (IOException e) {
+			disconnect(c);
+		}
+	}
+
+	/** Writes what the channel takes, and waits for it to take more if
+	 *  anything is left.
+	 */
+	private void flush(Client c, SelectionKey key) throws IOException {
+		while (!c.out.isEmpty()) {
+			ByteBuffer b = c.out.peek();
+			c.channel.write(b);
+			if (b.hasRemaining()) break;
+			c.out.poll();
+		}
+		if (key != null && key.isValid())
+			key.interestOps(c.out.isEmpty() ? SelectionKey.OP_READ
+					: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+}
@@ -0,0 +1,197 @@
+import java.util.*;
+
+/** Keeps track of which train holds each section of the track and which
+ *  section each train is waiting for. The sections themselves are locked
+ *  by the semaphores or monitors of the trains; the table only records
+ *  what the trains did, so that it can be reported.
+ *
+ *  Together, the holders and the waiting trains form a wait-for graph in
+ *  which each train waits for at most one section and each section has at
+ *  most one holder. A wait that would close a cycle in it is refused, so
+ *  that the train can back off instead of deadlocking. Only the chain of
+ *  trains from the holder of the section is followed, so the check costs
+ *  as many steps as trains wait on one another, not the size of the table.
+ *
+ *  The table also remembers how long each section is usually held, so that
+ *  a train finding a section taken can guess when it will be free, and
+ *  how long trains take to pass each section including the wait for it.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class SectionTable {
+
+	/** The weight of the latest hold time in the mean hold time. */
+	private static final double ALPHA = 0.25;
+
+	private final String[] names;
+	private final int[] owners;
+	private final Map<Integer, Integer> waiting =
+			new HashMap<Integer, Integer>();
+
+	/** When each train started waiting, in nanoseconds. */
+	private final Map<Integer, Long> waitingSince = new HashMap<Integer, Long>();
+	private final long[] acquiredAt;	// by section, in nanoseconds
+	private final long[] enteredAt;		// including the wait, in nanoseconds
+	private final double[] meanHold;	// by section, in milliseconds
+	private final double[] transitSum;	// by section, in milliseconds
+	private final int[] transits;
+	private int deadlocks = 0;
+
+	/** Creates a table of free sections.
+	 *
+	 *  @param names the names of the sections, indexed by section number.
+	 */
+	public SectionTable(String... names) {
+		this.names = names.clone();
+		this.owners = new int[names.length];
+		this.acquiredAt = new long[names.length];
+		this.enteredAt = new long[names.length];
+		this.meanHold = new double[names.length];
+		this.transitSum = new double[names.length];
+		this.transits = new int[names.length];
+	}
+
+	/** Records that a train has started waiting for a section, unless the
+	 *  holder of the section is waiting, directly or through other trains,
+	 *  for a section that the train holds. The train must then back off.
+	 *
+	 *  @return 'true' if the wait was recorded, 'false' if it would have
+	 *  		been a deadlock.
+	 */
+	public synchronized boolean waiting(int trainId, int section) {
+		// Every train is passed at most once unless there is already a
+		// cycle without this train, which is left to its members.
+		int t = owners[section];
+		for (int steps = 0; t != 0 && t != trainId && steps < waiting.size();
+				steps++) {
+			Integer next = waiting.get(t);
+			t = next == null ? 0 : owners[next];
+		}
+		if (t == trainId) {
+			deadlocks++;
+			gaveUp(trainId);
+			return false;
+		}
+		waiting.put(trainId, section);
+		waitingSince.put(trainId, System.nanoTime());
+		return true;
+	}
+
+	/** Records that a train holds a section, and no longer waits for it.
+	 */
+	public synchronized void acquired(int trainId, int section) {
+		long now = System.nanoTime();
+		Long since = waitingSince.remove(trainId);
+		waiting.remove(trainId);
+		owners[section] = trainId;
+		acquiredAt[section] = now;
+		enteredAt[section] = since == null ? now : since;
+	}
+
+	/** Records that a train has stopped waiting without getting the
+	 *  section.
+	 */
+	public synchronized void gaveUp(int trainId) {
+		waiting.remove(trainId);
+		waitingSince.remove(trainId);
+	}
+
+	/** Records that a section has been released.
+	 */
+	public synchronized void released(int trainId, int section) {
+		if (owners[section] != trainId) return;
+		owners[section] = 0;
+		long now = System.nanoTime();
+		double held = (now - acquiredAt[section]) / 1e6;
+		meanHold[section] = meanHold[section] == 0 ? held
+				: meanHold[section] + ALPHA * (held - meanHold[section]);
+		transitSum[section] += (now - enteredAt[section]) / 1e6;
+		transits[section]++;
+	}
+
+	/** Guesses how long it will be until a section is released, from how
+	 *  long it has been held so far and how long it is usually held.
+	 *
+	 *  @return The time in milliseconds, 0 if the section is held longer
+	 *  		than usual, or -1 if the section is free or has never been
+	 *  		released.
+	 */
+	public synchronized double expectedRelease(int section) {
+		if (owners[section] == 0 || meanHold[section] == 0) return -1;
+		double held = (System.nanoTime() - acquiredAt[section]) / 1e6;
+		return Math.max(0, meanHold[section] - held);
+	}
+
+	/** Returns the mean time from a train asking for a section until it
+	 *  released it, in milliseconds, or 0 if no train has passed it.
+	 */
+	public synchronized double meanTransit(int section) {
+		return transits[section] == 0 ? 0 : transitSum[section] / transits[section];
+	}
+
+	/** Returns the number of waits that were refused because they would
+	 *  have been deadlocks.
+	 */
+	public synchronized int deadlocks() {
+		return deadlocks;
+	}
+
+	/** Returns the number of times a section has been released.
+	 */
+	public synchronized int transits(int section) {
+		return transits[section];
+	}
+
+	/** Returns the train holding a section.
+	 *
+	 *  @return The id of the train, or 0 if the section is free.
+	 */
+	public synchronized int owner(int section) {
+		return owners[section];
+	}
+
+	/** Returns the trains holding the sections, 0 for a free one, all at
+	 *  one moment.
+	 */
+	public synchronized int[] owners() {
+		return owners.clone();
+	}
+
+	/** Returns the section a train is waiting for.
+	 *
+	 *  @return The section number, or -1 if the train is not waiting.
+	 */
+	public synchronized int waitingFor(int trainId) {
+		Integer section = waiting.get(trainId);
+		return section == null ? -1 : section;
+	}
+
+	/** Returns the number of sections.
+	 */
+	public int size() {
+		return names.length;
+	}
+
+	/** Returns the name of a section.
+	 */
+	public String name(int section) {
+		return names[section];
+	}
+
+	/** Describes the sections a train holds and waits for.
+	 *
+	 *  @param trainId the train id.
+	 *  @return A line such as "holds [cross-section], waits for nothing".
+	 */
+	public synchronized String describe(int trainId) {
+		StringBuilder held = new StringBuilder();
+		for (int i = 0; i < owners.length; i++) {
+			if (owners[i] != trainId) continue;
+			if (held.length() > 0) held.append(", ");
+			held.append(names[i]);
+		}
+		int w = waitingFor(trainId);
+		return "holds [" + held + "], waits for "
+				+ (w < 0 ? "nothing" : "[" + names[w] + "]");
+	}
+}
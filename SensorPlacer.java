@@ -0,0 +1,404 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import TSim.*;
+import static TSim.SensorEvent.*;
+
+/** Moves the sensors of a map so that the trains can run faster without
+ *  colliding. Each sensor used by Train is moved along its own track,
+ *  towards or away from the switch, crossing or track end that it guards,
+ *  so that a train seeing it at the target speed can stop before that
+ *  point. A sensor is never moved past another sensor or onto a switch.
+ *
+ *  Usage: java SensorPlacer map out.map seconds simSpeed speed[,speed...]
+ *  [threads]
+ *
+ *  For each target speed a placement is computed with no extra margin and
+ *  with one and two extra tiles. Every placement is validated on
+ *  HeadlessSimulator, all of them in parallel, at the speed its sensors
+ *  leave room to stop from, Topology.maxSpeed, which is at least the
+ *  target speed unless a sensor could not be moved far enough: with both
+ *  trains at that speed and with one at half of it. The placement
+ *  validated for the highest speed that runs without a crash is written
+ *  to out.map; Lab1 can then be run with that map to use the moved
+ *  sensors, and caps the speeds at the same Topology.maxSpeed.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class SensorPlacer {
+
+	/** The extra tiles tried on top of the braking distance. */
+	private static final int MAX_MARGIN = 2;
+
+	/** A track without switches or crossings, running between two tiles
+	 *  that are switches, crossings or track ends.
+	 */
+	static final class Stretch {
+		final List<int[]> tiles = new ArrayList<int[]>();	// x, y
+		int[] front, back;	// the tile beyond each end, or null
+
+		int indexOf(int x, int y) {
+			for (int i = 0; i < tiles.size(); i++) {
+				if (tiles.get(i)[0] == x && tiles.get(i)[1] == y) return i;
+			}
+			return -1;
+		}
+	}
+
+	/** A placement of the sensors for one speed and margin.
+	 */
+	public static class Placement {
+		public final int speed, margin;
+		/** The speed the placement was validated at, or 0. */
+		public int validated;
+		public final SensorEvent[] stations, criticals;
+		/** The number of sensors that could not be moved far enough. */
+		public int tooClose;
+		public int moved;
+		public final List<ScenarioSweeper.Result> results =
+				new ArrayList<ScenarioSweeper.Result>();
+
+		Placement(int speed, int margin, SensorEvent[] stations,
+				SensorEvent[] criticals) {
+			this.speed = speed;
+			this.margin = margin;
+			this.stations = stations;
+			this.criticals = criticals;
+		}
+
+		public boolean isSafe() {
+			if (results.isEmpty()) return false;
+			for (ScenarioSweeper.Result r : results)
+				if (r.collisions + r.failures > 0) return false;
+			return true;
+		}
+
+		public String toString() {
+			double rate = 0;
+			int crashes = 0;
+			for (ScenarioSweeper.Result r : results) {
+				rate += r.roundTripsPerHour() / results.size();
+				crashes += r.collisions + r.failures;
+			}
+			return String.format(Locale.ROOT, "%d,%d,%d,%d,%d,%.2f,%d",
+					speed, margin, validated, moved, tooClose, rate, crashes);
+		}
+	}
+
+	private final TrainLineMap map;
+	private final int cars;
+
+	/** Creates a placer for a map with the sensors of Lab1.map.
+	 *
+	 *  @throws IllegalArgumentException if a sensor used by Train is
+	 *  		missing from the map.
+	 */
+	public SensorPlacer(TrainLineMap map) {
+		this.map = map;
+		int cars = 1;
+		for (TrainLineMap.TrainSpec t : map.getTrains())
+			cars = Math.max(cars, t.cars);
+		this.cars = cars;
+		for (SensorEvent[] list : new SensorEvent[][] {
+				Train.defaultStations, Train.defaultCriticals }) {
+			for (SensorEvent s : list) {
+				if (!map.isSensor(s.getXpos(), s.getYpos()))
+					throw new IllegalArgumentException("no sensor at "
+							+ s.getXpos() + "," + s.getYpos());
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println("usage: java SensorPlacer map out.map seconds "
+					+ "simSpeed speed[,speed...] [threads]");
+			System.exit(1);
+		}
+		TrainLineMap map = TrainLineMap.load(new File(args[0]));
+		File out = new File(args[1]);
+		double seconds = Double.parseDouble(args[2]);
+		int simSpeed = Integer.parseInt(args[3]);
+		int threads = args.length > 5 ? Integer.parseInt(args[5])
+				: Runtime.getRuntime().availableProcessors();
+
+		SensorPlacer placer = new SensorPlacer(map);
+		List<Placement> placements = new ArrayList<Placement>();
+		for (String s : args[4].split(",")) {
+			for (int margin = 0; margin <= MAX_MARGIN; margin++)
+				placements.add(placer.place(Integer.parseInt(s), margin));
+		}
+		placer.validate(placements, seconds, simSpeed, new ForkJoinPool(threads));
+
+		System.out.println("speed,margin,validated_speed,moved,too_close,"
+				+ "roundtrips_per_hour,crashes");
+		Placement best = null;
+		for (Placement p : placements) {
+			System.out.println(p);
+			if (p.isSafe() && (best == null || p.validated > best.validated))
+				best = p;
+		}
+		if (best == null) {
+			System.err.println("no placement ran without a crash");
+			System.exit(1);
+		}
+		Writer w = new BufferedWriter(new FileWriter(out));
+		try {
+			placer.rewrite(best).write(w);
+		} finally {
+			w.close();
+		}
+		System.out.println("# wrote " + out + " for speed " + best.validated
+				+ ", placed for " + best.speed + " with margin " + best.margin);
+		System.exit(0);
+	}
+
+	/** Returns the number of tiles a sensor must be from the point it
+	 *  guards, so that a train at the given speed stops half a tile before
+	 *  it. A sensor is also never closer than the length of a train, so
+	 *  that a train leaving a section has cleared it when it passes the
+	 *  sensor.
+	 */
+	public int requiredDistance(double speed, int margin) {
+		double braking = SpeedProfile.stoppingDistance(speed);
+		int w = Physics.RAIL_WIDTH;
+		int tiles = (int) Math.ceil((braking + w / 2) / w);
+		return Math.max(tiles, cars) + margin;
+	}
+
+	/** Places the sensors for a speed. Each sensor is put on the tile
+	 *  nearest to the point it guards that is far enough away; if there is
+	 *  no such tile, it is put as far away as it can be.
+	 */
+	public Placement place(int speed, int margin) {
+		int need = requiredDistance(speed, margin);
+		Set<Long> taken = new HashSet<Long>();
+		Placement p = new Placement(speed, margin,
+				new SensorEvent[Train.defaultStations.length],
+				new SensorEvent[Train.defaultCriticals.length]);
+		for (int i = 0; i < p.stations.length; i++)
+			p.stations[i] = place(Train.defaultStations[i], need, taken, p);
+		for (int i = 0; i < p.criticals.length; i++)
+			p.criticals[i] = place(Train.defaultCriticals[i], need, taken, p);
+		return p;
+	}
+
+	private SensorEvent place(SensorEvent sensor, int need, Set<Long> taken,
+			Placement p) {
+		int x = sensor.getXpos(), y = sensor.getYpos();
+		Stretch s = stretch(map, x, y);
+		int at = s.indexOf(x, y);
+		int n = s.tiles.size();
+		// The end nearest to the sensor is the point it guards.
+		boolean front = s.front != null && (s.back == null || at + 1 <= n - at);
+		int first = at, last = at;
+		while (first > 0 && free(s.tiles.get(first - 1), taken)) first--;
+		while (last < n - 1 && free(s.tiles.get(last + 1), taken)) last++;
+
+		int best = -1, farthest = -1;
+		for (int i = first; i <= last; i++) {
+			if (!free(s.tiles.get(i), taken) && i != at) continue;
+			int distance = front ? i + 1 : n - i;
+			if (distance >= need && (best < 0 || distance < distance(best, front, n)))
+				best = i;
+			if (farthest < 0 || distance > distance(farthest, front, n))
+				farthest = i;
+		}
+		if (best < 0) {
+			best = farthest;
+			p.tooClose++;
+		}
+		if (best != at) p.moved++;
+		int[] t = s.tiles.get(best);
+		taken.add(Position.key(t[0], t[1]));
+		return new SensorEvent(0, t[0], t[1], INACTIVE);
+	}
+
+	private static int distance(int i, boolean front, int n) {
+		return front ? i + 1 : n - i;
+	}
+
+	private boolean free(int[] t, Set<Long> taken) {
+		return !map.isSensor(t[0], t[1])
+				&& !taken.contains(Position.key(t[0], t[1]));
+	}
+
+	/** Returns a copy of the map with the sensors of a placement.
+	 */
+	public TrainLineMap rewrite(Placement p) {
+		TrainLineMap copy = map.copy();
+		for (SensorEvent s : Train.defaultStations)
+			copy.setSensor(s.getXpos(), s.getYpos(), false);
+		for (SensorEvent s : Train.defaultCriticals)
+			copy.setSensor(s.getXpos(), s.getYpos(), false);
+		for (SensorEvent s : p.stations)
+			copy.setSensor(s.getXpos(), s.getYpos(), true);
+		for (SensorEvent s : p.criticals)
+			copy.setSensor(s.getXpos(), s.getYpos(), true);
+		return copy;
+	}
+
+	/** Runs every placement on its own rewritten map, all in parallel, and
+	 *  adds the results to the placements.
+	 */
+	public void validate(List<Placement> placements, double seconds,
+			final int simSpeed, ForkJoinPool pool) throws InterruptedException {
+		List<Callable<ScenarioSweeper.Result>> tasks =
+				new ArrayList<Callable<ScenarioSweeper.Result>>();
+		final List<Placement> owners = new ArrayList<Placement>();
+		for (Placement p : placements) {
+			TrainLineMap rewritten = rewrite(p);
+			Train.Layout layout = locate(rewritten);
+			final ScenarioSweeper sweeper = new ScenarioSweeper(rewritten,
+					layout, seconds, pool);
+			final int v = p.validated = layout.topology().maxSpeed();
+			int[][] speeds = { { v, v }, { v, Math.max(1, v / 2) },
+					{ Math.max(1, v / 2), v } };
+			for (final int[] s : speeds) {
+				tasks.add(new Callable<ScenarioSweeper.Result>() {
+					public ScenarioSweeper.Result call() throws Exception {
+						return sweeper.run(s[0], s[1], simSpeed);
+					}
+				});
+				owners.add(p);
+			}
+		}
+		List<Future<ScenarioSweeper.Result>> futures = pool.invokeAll(tasks);
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				owners.get(i).results.add(futures.get(i).get());
+			} catch (ExecutionException e) {
+				System.err.println(e.getCause());
+			}
+		}
+	}
+
+	/** Finds the sensors used by Train on a map where they have been moved
+	 *  along their tracks, for instance by this class. Sensors are matched
+	 *  in order along each stretch of track.
+	 *
+	 *  @return The layout of the sensors.
+	 *  @throws IllegalArgumentException if a stretch of track does not
+	 *  		have as many sensors as in Lab1.map.
+	 */
+	public static Train.Layout locate(TrainLineMap map) {
+		return new Train.Layout(topology(map));
+	}
+
+	/** Finds the sensors as locate does, for reloading a layout.
+	 *
+	 *  @return The sensors, with the switches of Lab1.map.
+	 *  @throws IllegalArgumentException as for locate.
+	 */
+	public static Topology topology(TrainLineMap map) {
+		SensorEvent[] stations = locate(map, Train.defaultStations);
+		SensorEvent[] criticals = locate(map, Train.defaultCriticals);
+		int nearest = Integer.MAX_VALUE;
+		for (SensorEvent s : criticals)
+			nearest = Math.min(nearest, guardDistance(map, s));
+		int w = Physics.RAIL_WIDTH;
+		return new Topology(stations, criticals, Train.defaultSwitches,
+				nearest * w - w / 2);
+	}
+
+	/** Returns the number of tiles from a sensor to the switch, crossing or
+	 *  track end it guards.
+	 */
+	static int guardDistance(TrainLineMap map, SensorEvent sensor) {
+		Stretch s = stretch(map, sensor.getXpos(), sensor.getYpos());
+		int at = s.indexOf(sensor.getXpos(), sensor.getYpos());
+		int n = s.tiles.size();
+		if (s.front == null) return n - at;
+		if (s.back == null) return at + 1;
+		return Math.min(at + 1, n - at);
+	}
+
+	private static SensorEvent[] locate(TrainLineMap map,
+			SensorEvent[] originals) {
+		SensorEvent[] found = new SensorEvent[originals.length];
+		for (int i = 0; i < originals.length; i++) {
+			int x = originals[i].getXpos(), y = originals[i].getYpos();
+			Stretch s = stretch(map, x, y);
+			// The sensors now on the stretch, and the number of original
+			// sensors on it before and in all.
+			List<int[]> now = new ArrayList<int[]>();
+			int rank = 0, before = 0;
+			for (int[] t : s.tiles) {
+				if (map.isSensor(t[0], t[1])) now.add(t);
+				if (t[0] == x && t[1] == y) rank = before;
+				if (isOriginal(t[0], t[1])) before++;
+			}
+			if (now.size() != before)
+				throw new IllegalArgumentException("the track through " + x
+						+ "," + y + " has " + now.size() + " sensors, expected "
+						+ before);
+			int[] t = now.get(rank);
+			found[i] = new SensorEvent(0, t[0], t[1], INACTIVE);
+		}
+		return found;
+	}
+
+	private static boolean isOriginal(int x, int y) {
+		for (SensorEvent[] list : new SensorEvent[][] {
+				Train.defaultStations, Train.defaultCriticals }) {
+			for (SensorEvent s : list) {
+				if (s.getXpos() == x && s.getYpos() == y) return true;
+			}
+		}
+		return false;
+	}
+
+	/** Returns the stretch of track through a tile that is neither a
+	 *  switch, a crossing nor a track end. The tiles are listed in the same
+	 *  order whichever tile of the stretch is given.
+	 */
+	static Stretch stretch(TrainLineMap map, int x, int y) {
+		List<Integer> exits = new ArrayList<Integer>();
+		for (int d = TrainLineMap.UP; d <= TrainLineMap.LEFT; d++) {
+			int e = map.newDirection(x, y, TrainLineMap.LEFT_SWITCH, d);
+			if (e != TrainLineMap.NO_DIR && !exits.contains(e)) exits.add(e);
+		}
+		if (exits.size() != 2 || map.isSwitch(x, y) || map.isCrossing(x, y))
+			throw new IllegalArgumentException(x + "," + y
+					+ " is not on a plain track");
+
+		Stretch s = new Stretch();
+		List<int[]> ahead = new ArrayList<int[]>();
+		s.front = walk(map, x, y, exits.get(0), s.tiles);
+		s.back = walk(map, x, y, exits.get(1), ahead);
+		Collections.reverse(s.tiles);
+		s.tiles.add(new int[] { x, y });
+		s.tiles.addAll(ahead);
+
+		int[] a = s.tiles.get(0), b = s.tiles.get(s.tiles.size() - 1);
+		if (Position.key(a[0], a[1]) > Position.key(b[0], b[1])) {
+			Collections.reverse(s.tiles);
+			int[] end = s.front;
+			s.front = s.back;
+			s.back = end;
+		}
+		return s;
+	}
+
+	/** Follows the track from a tile, adding the tiles passed.
+	 *
+	 *  @return The switch, crossing or track end reached, or null if the
+	 *  		track leaves the map or comes back to the tile.
+	 */
+	private static int[] walk(TrainLineMap map, int x, int y, int dir,
+			List<int[]> tiles) {
+		int cx = x, cy = y;
+		while (true) {
+			cx += TrainLineMap.dx(dir);
+			cy += TrainLineMap.dy(dir);
+			if (!map.isInside(cx, cy) || (cx == x && cy == y)) return null;
+			if (map.isSwitch(cx, cy) || map.isCrossing(cx, cy)
+					|| map.isStop(cx, cy))
+				return new int[] { cx, cy };
+			dir = map.newDirection(cx, cy, TrainLineMap.LEFT_SWITCH, dir);
+			if (dir == TrainLineMap.NO_DIR) return null;
+			tiles.add(new int[] { cx, cy });
+		}
+	}
+}
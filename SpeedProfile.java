@@ -0,0 +1,79 @@
+import TSim.*;
+
+/** Works out how fast a train may approach a section that is taken, so
+ *  that it arrives about when the section is expected to be free instead
+ *  of stopping at the sensor and starting again.
+ *
+ *  The train first slows down to the approach speed, then keeps that speed
+ *  until the section is expected to be free. If the section is still taken
+ *  then, the train must be able to stop from the approach speed within the
+ *  room left before the section, so the approach speed is chosen to leave
+ *  that room. Speeds are in pixels and times in seconds of simulated time,
+ *  as in tsim.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class SpeedProfile {
+
+	/** The acceleration and deceleration of the trains, as in tsim. */
+	public static final double ACCELERATION = Physics.ACCELERATION;
+
+	/** Time from a sensor event or deadline until a speed command takes
+	 *  effect: one update for the event and one for the command.
+	 */
+	public static final double REACTION = 2 * Physics.TICK;
+
+	private final double room;
+
+	/** Creates a profile for sensors with the given room in front of them.
+	 *
+	 *  @param room the distance in pixels from a train at a sensor to the
+	 *  	   point where it would collide.
+	 */
+	public SpeedProfile(double room) {
+		this.room = room;
+	}
+
+	/** Returns the real time a simulated second takes, in ms: tsim moves
+	 *  the trains a tenth of a second every simSpeed ms.
+	 */
+	public static double msPerSecond(int simSpeed) {
+		return 10.0 * Math.max(1, simSpeed);
+	}
+
+	/** Returns the distance needed to stop from a speed, including the
+	 *  reaction time.
+	 */
+	public static double stoppingDistance(double speed) {
+		return speed * speed / (2 * ACCELERATION) + speed * REACTION;
+	}
+
+	/** Returns the highest speed the train may approach the section at.
+	 *
+	 *  @param speed the speed of the train at the sensor.
+	 *  @param clear the time until the section is expected to be free.
+	 *  @return A speed between 1 and speed, or 0 if the train must stop at
+	 *  		once.
+	 */
+	public int approachSpeed(int speed, double clear) {
+		double slack = room - stoppingDistance(speed);
+		for (int v = speed; v >= 1; v--) {
+			if (cruise(speed, v, clear) * v + v * REACTION <= slack) return v;
+		}
+		return 0;
+	}
+
+	/** Returns the time the train keeps the approach speed before it has to
+	 *  stop if the section is still taken.
+	 */
+	public double deadline(int speed, int approach, double clear) {
+		return (speed - approach) / ACCELERATION + cruise(speed, approach, clear);
+	}
+
+	/** Returns the time spent at the approach speed after slowing down to
+	 *  it, until the section is expected to be free.
+	 */
+	private static double cruise(int speed, int approach, double clear) {
+		return Math.max(0, clear - (speed - approach) / ACCELERATION);
+	}
+}
@@ -46,6 +46,13 @@ public class AddingArrayList<E> {
 	if (index >= vec.size()) setSize(index+1);
 	return vec.get(index);
     }
+
+    /** Returns the size, one more than the highest index used.
+     */
+
+    public synchronized int size() {
+	return vec.size();
+    }
 }
 
     
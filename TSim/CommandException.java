@@ -18,4 +18,18 @@ public class CommandException extends Exception
     {
 	super(s);
     }
+
+    /** Constructs a CommandException with the specified detailed error
+     *  message, leaving out the stack trace if asked to, which makes
+     *  it much cheaper to construct.
+     *
+     *  @param s            the detail message.
+     *  @param stackTrace   whether the stack trace is filled in.
+     *
+     */
+
+    public CommandException(String s, boolean stackTrace)
+    {
+	super(s, null, false, stackTrace);
+    }
 }
@@ -0,0 +1,53 @@
+package TSim;
+
+/** The outcome of a command, as returned by the methods of TSimInterface
+ *  that do not throw. Besides the statuses TSim replies with, it tells
+ *  of a train that has crashed, of a reply that did not arrive in time
+ *  and of a wait that was interrupted. The values are shared, so
+ *  returning one allocates nothing.
+ *
+ */
+
+public enum CommandResult
+{
+    OK("ok"),
+    ILLEGAL_SPEED("illegal speed"),
+    NO_SUCH_TRAIN("no such train"),
+    NO_SUCH_SWITCH("no such switch"),
+    NO_SUCH_POS("no such position"),
+    TRAIN_ON_SWITCH("train on switch"),
+    /** The train had crashed, or crashed before the reply arrived. */
+    CRASHED("train crashed"),
+    /** No reply arrived within the time given. */
+    TIMEOUT("no reply in time"),
+    /** The calling thread was interrupted while waiting for the reply;
+     *  its interrupt status is set again. */
+    INTERRUPTED("interrupted while waiting for reply"),
+    /** The connection to the simulator has ended, as a TSimMultiplexer
+     *  found. */
+    DISCONNECTED("simulator disconnected");
+
+    private final String text;
+
+    private CommandResult(String text)
+    {
+	this.text = text;
+    }
+
+    /** Returns true for OK.
+     */
+
+    public boolean isOk()
+    {
+	return this == OK;
+    }
+
+    /** Returns the same text as CommandStatus.toString for the statuses
+     *  TSim replies with.
+     */
+
+    public String toString()
+    {
+	return text;
+    }
+}
@@ -16,6 +16,13 @@ public class CommandStatus implements TSimInformation
     public static final int TRAIN_ON_SWITCH  = 0x06;
 
 
+    /* The statuses TSim replies with, by status, so that reading a reply
+       allocates nothing. */
+    private static final CommandStatus[] SHARED = new CommandStatus[7];
+    static {
+	for (int s = OK; s <= TRAIN_ON_SWITCH; s++) SHARED[s] = new CommandStatus(s);
+    }
+
     protected int status;
 
     /** Creates a new CommandStatus message.
@@ -29,6 +36,19 @@ public class CommandStatus implements TSimInformation
 	this.status = status;
     }
     
+    /** Returns a shared CommandStatus for a status, which must not be
+     *  changed.
+     *
+     *  @param status   the status of the command.
+     *
+     */
+
+    public static CommandStatus of(int status)
+    {
+	if (status >= OK && status <= TRAIN_ON_SWITCH) return SHARED[status];
+	return new CommandStatus(status);
+    }
+
     /** Returns the status of the command.
      *
      * @return the status of the command.
@@ -40,6 +60,25 @@ public class CommandStatus implements TSimInformation
 	return status;
     }
 
+    /** Returns the status of the command as a CommandResult.
+     *
+     *  @return the result, or null for a status TSim does not send.
+     *
+     */
+
+    public CommandResult getResult()
+    {
+	switch (status) {
+	case OK :              return CommandResult.OK;
+	case ILLEGAL_SPEED :   return CommandResult.ILLEGAL_SPEED;
+	case NO_SUCH_TRAIN :   return CommandResult.NO_SUCH_TRAIN;
+	case NO_SUCH_SWITCH :  return CommandResult.NO_SUCH_SWITCH;
+	case NO_SUCH_POS :     return CommandResult.NO_SUCH_POS;
+	case TRAIN_ON_SWITCH : return CommandResult.TRAIN_ON_SWITCH;
+	}
+	return null;
+    }
+
     /** Returns the string representation of the CommandStatus class.
      *  this representation is used when creating exception messages.
      *
@@ -0,0 +1,35 @@
+package TSim;
+
+/** Thrown when TSim does not answer a command, or a train does not
+ *  pass a sensor, within the time given by the caller.
+ */
+
+public class CommandTimeoutException extends CommandException
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Constructs a CommandTimeoutException with the specified detailed
+     *  error message.
+     *
+     *  @param s   the detail message.
+     *
+     */
+    
+    public CommandTimeoutException(String s)
+    {
+	super(s);
+    }
+
+    /** Constructs a CommandTimeoutException with the specified detailed
+     *  error message, as CommandException(s, stackTrace).
+     *
+     *  @param s            the detail message.
+     *  @param stackTrace   whether the stack trace is filled in.
+     *
+     */
+
+    public CommandTimeoutException(String s, boolean stackTrace)
+    {
+	super(s, stackTrace);
+    }
+}
@@ -0,0 +1,21 @@
+package TSim;
+
+/** How tsim moves the trains: the size of a tile, how often the trains
+ *  are moved and how fast they speed up and slow down. Speeds are in
+ *  pixels per simulated second, as in the commands to tsim.
+ *
+ */
+
+public final class Physics
+{
+    private Physics() {}
+
+    /** The width of a tile in pixels. */
+    public static final int RAIL_WIDTH = 20;
+
+    /** Simulated seconds per update of the trains. */
+    public static final double TICK = 0.1;
+
+    /** Acceleration and deceleration in pixels per second squared. */
+    public static final double ACCELERATION = 5.0;
+}
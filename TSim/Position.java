@@ -0,0 +1,36 @@
+package TSim;
+
+/** The packing of a position on the map, such as that of a sensor or a
+ *  switch, into one long: x in the high 32 bits and y in the low 32
+ *  bits. Every pair of ints, negative ones too, has a key of its own.
+ *
+ */
+
+public final class Position
+{
+    private Position() {}
+
+    /** Returns the key of the position (xPos,yPos).
+     */
+
+    public static long key(int xPos, int yPos)
+    {
+	return (long) xPos << 32 | (yPos & 0xffffffffL);
+    }
+
+    /** Returns the x coordinate of a key.
+     */
+
+    public static int x(long key)
+    {
+	return (int) (key >> 32);
+    }
+
+    /** Returns the y coordinate of a key.
+     */
+
+    public static int y(long key)
+    {
+	return (int) key;
+    }
+}
@@ -0,0 +1,481 @@
+package TSim;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+
+/** An append-only history of the sensor events read from TSim, kept for
+ *  analysis after a run.
+ *
+ *  Events are stored column-wise in primitive arrays, split into segments
+ *  of a fixed number of events. A segment that becomes full is never
+ *  changed again: it is indexed by train id and by sensor position on a
+ *  background thread, and when more than a given number of full segments
+ *  are held in memory, the oldest ones are written to a temporary file by
+ *  that thread. The keys of their index stay in memory, so a query skips
+ *  the files without events for its key and maps the others, reading
+ *  only the events it visits. Appending only stores the event, so the
+ *  reader of TSim never waits for the disk, for an index or for a query;
+ *  queries hold the lock of the appender only to take the segments and
+ *  the number of events in the one being filled.
+ *
+ *  Time stamps are taken from System.nanoTime() when the event is
+ *  appended, so they are increasing within one log.
+ */
+
+public class SensorEventLog {
+
+    /** Called once for each event matching a query.
+     */
+
+    public interface Visitor {
+	void visit(long time, int trainId, int xPos, int yPos, int status);
+    }
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 16;
+    public static final int DEFAULT_RESIDENT_SEGMENTS = 64;
+
+    private final int segmentSize;
+    private final int maxResident;
+
+    /* The full segments, in time order. */
+    private final CopyOnWriteArrayList<Slot> slots =
+	new CopyOnWriteArrayList<Slot>();
+    /* The segment being filled, guarded by this. */
+    private Segment current;
+    private volatile long size = 0;
+
+    /* Indexes and spills the full segments. Its thread alone uses the
+       fields below. */
+    private final ExecutorService background =
+	Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+		    Thread t = new Thread(r, "sensor event log");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+    private int resident = 0;
+    private int spilled = 0;
+    private File spillDir;
+
+    /** Creates a log with the default segment size, keeping at most
+     *  DEFAULT_RESIDENT_SEGMENTS full segments in memory.
+     */
+
+    public SensorEventLog() {
+	this(DEFAULT_SEGMENT_SIZE, DEFAULT_RESIDENT_SEGMENTS);
+    }
+
+    /** Creates a log.
+     *
+     *  @param segmentSize  the number of events in each segment.
+     *  @param maxResident  the number of full segments kept in memory
+     *                      before the oldest are spilled to disk.
+     */
+
+    public SensorEventLog(int segmentSize, int maxResident) {
+	if (segmentSize <= 0 || maxResident < 0)
+	    throw new IllegalArgumentException();
+	this.segmentSize = segmentSize;
+	this.maxResident = maxResident;
+	current = new Segment(segmentSize);
+    }
+
+    /** Appends an event to the log.
+     *
+     *  @param e     the event.
+     *  @param time  the time stamp of the event, from System.nanoTime().
+     */
+
+    public void append(SensorEvent e, long time) {
+	Slot full = null;
+	synchronized (this) {
+	    current.add(time, e.getTrainId(),
+			Position.key(e.getXpos(), e.getYpos()), e.getStatus());
+	    size++;
+	    if (current.size == segmentSize) {
+		full = new Slot(current);
+		slots.add(full);
+		current = new Segment(segmentSize);
+	    }
+	}
+	if (full != null) {
+	    final Slot s = full;
+	    try {
+		background.execute(new Runnable() {
+			public void run() {
+			    seal(s);
+			}
+		    });
+	    }
+	    catch (RejectedExecutionException x) {
+		/* Closed; the segment stays unindexed in memory. */
+	    }
+	}
+    }
+
+    /** Returns the number of events in the log.
+     */
+
+    public long size() {
+	return size;
+    }
+
+    /** Visits, in time order, every event of the given train with a time
+     *  stamp in [from, to).
+     */
+
+    public void forTrain(int trainId, long from, long to, Visitor v) {
+	scan(BY_TRAIN, trainId, from, to, v);
+    }
+
+    /** Visits, in time order, every event at the sensor at (xPos,yPos)
+     *  with a time stamp in [from, to).
+     */
+
+    public void forSensor(int xPos, int yPos, long from, long to,
+			  Visitor v) {
+	scan(BY_SENSOR, Position.key(xPos, yPos), from, to, v);
+    }
+
+    /** Returns the number of events of the given status at the sensor
+     *  at (xPos,yPos) with a time stamp in [from, to).
+     */
+
+    public long count(int xPos, int yPos, final int status,
+		      long from, long to) {
+	final long[] n = new long[1];
+	forSensor(xPos, yPos, from, to, new Visitor() {
+		public void visit(long t, int id, int x, int y, int s) {
+		    if (s == status) n[0]++;
+		}
+	    });
+	return n[0];
+    }
+
+    /** Returns the average time in nanoseconds from the train activating
+     *  the first sensor until it next activates the second one, or -1 if
+     *  that never happened.
+     */
+
+    public long averageTransit(int trainId,
+			       final int x1, final int y1,
+			       final int x2, final int y2) {
+	final long[] acc = new long[] { -1, 0, 0 }; // start, sum, count
+	forTrain(trainId, Long.MIN_VALUE, Long.MAX_VALUE, new Visitor() {
+		public void visit(long t, int id, int x, int y, int s) {
+		    if (s != SensorEvent.ACTIVE) return;
+		    if (x == x1 && y == y1)
+			acc[0] = t;
+		    else if (x == x2 && y == y2 && acc[0] >= 0) {
+			acc[1] += t - acc[0];
+			acc[2]++;
+			acc[0] = -1;
+		    }
+		}
+	    });
+	return acc[2] == 0 ? -1 : acc[1] / acc[2];
+    }
+
+    /** Waits for the background thread to finish what it was given and
+     *  removes any spilled segments from disk. The log must not be used
+     *  afterwards.
+     */
+
+    public void close() {
+	background.shutdown();
+	try {
+	    background.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+	for (Slot s : slots)
+	    if (s.file != null) s.file.delete();
+	if (spillDir != null) spillDir.delete();
+	slots.clear();
+    }
+
+    private static final int BY_TRAIN  = 0;
+    private static final int BY_SENSOR = 1;
+
+    private void scan(int index, long key, long from, long to, Visitor v) {
+	/* The full segments, the segment being filled and its size are
+	   taken together with the lock held, so that no event is missed or
+	   seen twice. The rows below that size are never changed again, so
+	   the rest runs without the lock. */
+	Slot[] full;
+	Segment tail;
+	int n;
+	synchronized (this) {
+	    full = slots.toArray(new Slot[0]);
+	    tail = current;
+	    n = current.size;
+	}
+	for (Slot slot : full) {
+	    if (slot.lastTime < from || slot.firstTime >= to) continue;
+	    Segment s = slot.segment;
+	    if (s != null) s.visitKey(index, key, from, to, v);
+	    else visitSpilled(slot, index, key, from, to, v);
+	}
+	for (int row = 0; row < n; row++)
+	    if (tail.key(index, row) == key) tail.visit(row, from, to, v);
+    }
+
+    /* Indexes a full segment and spills the oldest ones; called by the
+       background thread. */
+    private void seal(Slot slot) {
+	slot.segment = slot.segment.sealed();
+	resident++;
+	for (Slot s : slots) {
+	    if (resident <= maxResident) break;
+	    Segment m = s.segment;
+	    if (m == null) continue;
+	    if (m.keys == null) break;	// not sealed yet, nor counted
+	    try {
+		if (spillDir == null) {
+		    spillDir = File.createTempFile("tsim-events", "");
+		    spillDir.delete();
+		    spillDir.mkdir();
+		}
+		File f = new File(spillDir, "segment-" + spilled++);
+		m.write(f);
+		s.index = m.keysOnly();
+		s.file = f;
+		s.segment = null;
+		resident--;
+	    }
+	    catch (IOException e) {
+		/* Keep the segment in memory rather than lose events. */
+		System.err.println(e.getMessage());
+		return;
+	    }
+	}
+    }
+
+    /* Visits the events of a key in a spilled segment. The file is
+       only mapped if the keys kept in memory have the key, and only the
+       rows of the key are read from it. */
+    private static void visitSpilled(Slot slot, int index, long key,
+				     long from, long to, Visitor v) {
+	Segment s = slot.index;
+	int i = java.util.Arrays.binarySearch(s.keys[index], key);
+	if (i < 0) return;
+	ByteBuffer b;
+	try {
+	    RandomAccessFile f = new RandomAccessFile(slot.file, "r");
+	    try {
+		b = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+				       f.length());
+	    } finally {
+		f.close();
+	    }
+	}
+	catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+	int n = s.size;
+	int rows = Segment.rows(n) + 4 * index * n;
+	for (int j = s.offsets[index][i]; j < s.offsets[index][i+1]; j++) {
+	    int row = b.getInt(rows + 4 * j);
+	    long t = b.getLong(Segment.TIME + 8 * row);
+	    if (t >= to) break;
+	    if (t < from) continue;
+	    long pos = b.getLong(Segment.pos(n) + 8 * row);
+	    v.visit(t, b.getInt(Segment.train(n) + 4 * row),
+		    Position.x(pos), Position.y(pos),
+		    b.get(Segment.status(n) + row));
+	}
+    }
+
+
+    /** A full segment, in memory or spilled to its file. A spilled
+     *  segment keeps the keys and offsets of its index in memory. They
+     *  and the file are set before the segment is cleared, so a reader
+     *  that finds no segment finds both.
+     */
+
+    private static final class Slot {
+	final long firstTime, lastTime;
+	volatile Segment segment;
+	volatile Segment index;
+	volatile File file;
+
+	Slot(Segment s) {
+	    firstTime = s.firstTime;
+	    lastTime = s.lastTime;
+	    segment = s;
+	}
+    }
+
+    /** A block of events stored column-wise. A sealed segment also has
+     *  an index per train id and per sensor position, each made of a
+     *  sorted array of keys, start offsets into a row array, and the row
+     *  array itself. Only the segment being filled is ever changed, and
+     *  only by adding rows.
+     *
+     *  A spilled segment is written as its size, the columns in the
+     *  order of the fields and the two row arrays, so that a row is read
+     *  from the file at an offset computed from the size.
+     */
+
+    private static final class Segment {
+	long[] time;
+	int[] train;
+	long[] pos;
+	byte[] status;
+	int size;
+
+	long firstTime = Long.MAX_VALUE;
+	long lastTime = Long.MIN_VALUE;
+
+	/* Null until sealed. */
+	long[][] keys;
+	int[][] offsets;
+	int[][] rows;
+
+	Segment(int capacity) {
+	    time = new long[capacity];
+	    train = new int[capacity];
+	    pos = new long[capacity];
+	    status = new byte[capacity];
+	}
+
+	private Segment() {}
+
+	void add(long t, int trainId, long key, int s) {
+	    time[size] = t;
+	    train[size] = trainId;
+	    pos[size] = key;
+	    status[size] = (byte) s;
+	    size++;
+	    if (t < firstTime) firstTime = t;
+	    if (t > lastTime) lastTime = t;
+	}
+
+	/* Returns a copy of this segment, sharing its columns, with an
+	 * index.
+	 */
+	Segment sealed() {
+	    Segment s = new Segment();
+	    s.time = time;
+	    s.train = train;
+	    s.pos = pos;
+	    s.status = status;
+	    s.size = size;
+	    s.firstTime = firstTime;
+	    s.lastTime = lastTime;
+	    s.keys = new long[2][];
+	    s.offsets = new int[2][];
+	    s.rows = new int[2][];
+	    s.buildIndex(BY_TRAIN);
+	    s.buildIndex(BY_SENSOR);
+	    return s;
+	}
+
+	/* Returns the keys and offsets of the index of a sealed segment,
+	 * without its columns and rows.
+	 */
+	Segment keysOnly() {
+	    Segment s = new Segment();
+	    s.size = size;
+	    s.firstTime = firstTime;
+	    s.lastTime = lastTime;
+	    s.keys = keys;
+	    s.offsets = offsets;
+	    return s;
+	}
+
+	/* The train id or the position of a row. */
+	long key(int index, int row) {
+	    return index == BY_TRAIN ? train[row] : pos[row];
+	}
+
+	/* Groups the rows by key, keeping the rows of each key in time
+	 * order: the keys are sorted and numbered, and the (number,row)
+	 * pairs, packed in longs, sorted in turn.
+	 */
+	private void buildIndex(int index) {
+	    long[] sorted = new long[size];
+	    for (int i = 0; i < size; i++) sorted[i] = key(index, i);
+	    java.util.Arrays.sort(sorted);
+	    int distinct = 0;
+	    for (int i = 0; i < size; i++)
+		if (i == 0 || sorted[i] != sorted[i-1])
+		    sorted[distinct++] = sorted[i];
+	    long[] k = java.util.Arrays.copyOf(sorted, distinct);
+
+	    long[] pairs = new long[size];
+	    for (int i = 0; i < size; i++)
+		pairs[i] = ((long) java.util.Arrays.binarySearch(k, key(index, i))
+			    << 32) | i;
+	    java.util.Arrays.sort(pairs);
+
+	    int[] o = new int[distinct + 1];
+	    int[] r = new int[size];
+	    for (int i = 0; i < size; i++) {
+		int number = (int) (pairs[i] >>> 32);
+		if (i == 0 || number != (int) (pairs[i-1] >>> 32))
+		    o[number] = i;
+		r[i] = (int) pairs[i];
+	    }
+	    o[distinct] = size;
+	    keys[index] = k;
+	    offsets[index] = o;
+	    rows[index] = r;
+	}
+
+	/* The rows of one key are in time order, so the scan can stop at
+	 * the first row past the end of the range. A segment not sealed
+	 * yet is scanned row by row.
+	 */
+	void visitKey(int index, long key, long from, long to, Visitor v) {
+	    if (keys == null) {
+		for (int row = 0; row < size; row++)
+		    if (key(index, row) == key) visit(row, from, to, v);
+		return;
+	    }
+	    int i = java.util.Arrays.binarySearch(keys[index], key);
+	    if (i < 0) return;
+	    int[] r = rows[index];
+	    for (int j = offsets[index][i]; j < offsets[index][i+1]; j++) {
+		if (time[r[j]] >= to) break;
+		visit(r[j], from, to, v);
+	    }
+	}
+
+	void visit(int row, long from, long to, Visitor v) {
+	    long t = time[row];
+	    if (t >= from && t < to)
+		v.visit(t, train[row], Position.x(pos[row]), Position.y(pos[row]),
+			status[row]);
+	}
+
+	/* The offsets in a spilled file of the columns of a segment of n
+	 * events, and of its row arrays. */
+	static final int TIME = 4;
+	static int train(int n) {return TIME + 8 * n;}
+	static int pos(int n) {return train(n) + 4 * n;}
+	static int status(int n) {return pos(n) + 8 * n;}
+	static int rows(int n) {return status(n) + n;}
+
+	void write(File file) throws IOException {
+	    DataOutputStream out = new DataOutputStream
+		(new BufferedOutputStream(new FileOutputStream(file)));
+	    try {
+		out.writeInt(size);
+		for (int i = 0; i < size; i++) out.writeLong(time[i]);
+		for (int i = 0; i < size; i++) out.writeInt(train[i]);
+		for (int i = 0; i < size; i++) out.writeLong(pos[i]);
+		out.write(status, 0, size);
+		for (int index = 0; index < 2; index++)
+		    for (int i = 0; i < size; i++) out.writeInt(rows[index][i]);
+	    } finally {
+		out.close();
+	    }
+	}
+    }
+}
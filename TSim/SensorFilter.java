@@ -0,0 +1,18 @@
+package TSim;
+
+/** Decides which sensor events a train's controller wants to receive.
+ *  Filters are evaluated on the thread reading from TSim, so they must
+ *  be quick and must not block.
+ *
+ */
+
+public interface SensorFilter
+{
+    /** Returns 'true' if the event should be delivered.
+     *
+     *  @param e   the event.
+     *
+     */
+
+    boolean accept(SensorEvent e);
+}
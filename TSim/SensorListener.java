@@ -0,0 +1,19 @@
+package TSim;
+
+/** Receives every sensor event read from TSim, before any per-train
+ *  filtering. Listeners are called on the thread reading from TSim, so
+ *  they must be quick and must not block.
+ *
+ */
+
+public interface SensorListener
+{
+    /** Called for each sensor event.
+     *
+     *  @param e      the event.
+     *  @param time   the time the event was read, from System.nanoTime().
+     *
+     */
+
+    void sensorEvent(SensorEvent e, long time);
+}
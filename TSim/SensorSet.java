@@ -0,0 +1,70 @@
+package TSim;
+
+import java.util.Arrays;
+
+/** A SensorFilter accepting events at a fixed set of sensor positions
+ *  with one of a given set of statuses. Positions are kept as the keys
+ *  of Position in a sorted array, so a lookup is a binary search over
+ *  a few longs, and any position on any map has a key of its own.
+ *
+ */
+
+public class SensorSet implements SensorFilter
+{
+    private long[] positions = new long[0];
+    private final int statuses;
+
+    /** Creates an empty set accepting the given statuses.
+     *
+     *  @param statuses  ACTIVE, INACTIVE or (ACTIVE | INACTIVE).
+     *
+     */
+
+    public SensorSet(int statuses)
+    {
+	this.statuses = statuses;
+    }
+
+    /** Creates a set of the positions of the given sensors, accepting
+     *  the given statuses.
+     *
+     *  @param statuses  ACTIVE, INACTIVE or (ACTIVE | INACTIVE).
+     *  @param sensors   events giving the sensor positions.
+     *
+     */
+
+    public SensorSet(int statuses, SensorEvent[]... sensors)
+    {
+	this(statuses);
+	for (SensorEvent[] a : sensors)
+	    for (SensorEvent e : a)
+		add(e.getXpos(), e.getYpos());
+    }
+
+    /** Adds the sensor at (xPos,yPos) to the set.
+     *
+     *  @return this set.
+     *
+     */
+
+    public SensorSet add(int xPos, int yPos)
+    {
+	long key = Position.key(xPos, yPos);
+	int i = Arrays.binarySearch(positions, key);
+	if (i >= 0) return this;
+	i = -i - 1;
+	long[] added = new long[positions.length + 1];
+	System.arraycopy(positions, 0, added, 0, i);
+	added[i] = key;
+	System.arraycopy(positions, i, added, i + 1, positions.length - i);
+	positions = added;
+	return this;
+    }
+
+    public boolean accept(SensorEvent e)
+    {
+	return (e.getStatus() & statuses) != 0
+	    && Arrays.binarySearch(positions,
+				   Position.key(e.getXpos(), e.getYpos())) >= 0;
+    }
+}
@@ -1,6 +1,9 @@
 package TSim;
 
+import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 
 /** The TSimInterface is the intended interface between TSim and the 
@@ -14,17 +17,47 @@ public final class TSimInterface {
 	public static final int SWITCH_LEFT  = 0x01;
     public static final int SWITCH_RIGHT = 0x02;
 
+    /** Returned by getSwitch for a switch whose position is not known. */
+    public static final int SWITCH_UNKNOWN = 0;
+
+    /** Timeout meaning that a call waits for as long as it takes. */
+    public static final long NO_TIMEOUT = -1;
+
     private static TSimInterface tsim;
     
-    /* We maintain one buffer (commandFIFO) of command replies from tsim
-     * and one buffer of sensor events for each train (sensorVec(trainId)).
+    /* We maintain one buffer (commandFIFO) of the commands sent to tsim
+     * that are waiting for a reply, and one buffer of sensor events for
+     * each train (sensorVec(trainId)). Replies arrive in the order the
+     * commands were sent, so each reply completes the oldest command.
+
+     * Commands that cannot be written at once wait in two lanes, for a
+     * thread that writes them, or for the reply that makes room for them
+     * on an interface served by a TSimMultiplexer: stops, that is speed
+     * 0, go before everything else but the earlier commands of their own
+     * train, which would undo them. Only maxInFlight commands are written without a
+     * reply, so that a stop does not queue behind others in tsim either,
+     * and callers only wait for their own reply rather than for the whole
+     * interface.
 
      * Further we maintain a vector of TrainErrorEvents indexed by trainId,
-     * where a non-null entry means a fatal event has occurred.
+     * where a non-null entry means a fatal event has occurred. When the
+     * event arrives, CRASHED is put in the train's sensor buffer and the
+     * train's pending commands are failed, so no thread stays blocked
+     * waiting for a train that will never move again.
      */
 
-    private LinkedBlockingQueue<CommandStatus> commandFIFO = 
-    		new LinkedBlockingQueue<CommandStatus>();
+    private LinkedBlockingQueue<PendingCommand> commandFIFO = 
+    		new LinkedBlockingQueue<PendingCommand>();
+
+    /* The lanes, and the number of commands written without a reply,
+       all guarded by lanes. */
+    private final Object lanes = new Object();
+    private ArrayDeque<PendingCommand> urgentLane =
+    		new ArrayDeque<PendingCommand>();
+    private ArrayDeque<PendingCommand> routineLane =
+    		new ArrayDeque<PendingCommand>();
+    private int inFlight = 0;
+    private int maxInFlight = 1;
 
     private AddingArrayList<LinkedBlockingQueue<SensorEvent>> sensorVec = 
     		new AddingArrayList<LinkedBlockingQueue<SensorEvent>>();
@@ -32,16 +65,103 @@ public final class TSimInterface {
     private AddingArrayList<TrainErrorEvent> trainVec = 
     		new AddingArrayList<TrainErrorEvent>();
 
+    /* The filter of each train's subscription, or null for all events. */
+    private AddingArrayList<SensorFilter> filterVec =
+    		new AddingArrayList<SensorFilter>();
+
+    private CopyOnWriteArrayList<TrainFailureListener> failureListeners =
+    		new CopyOnWriteArrayList<TrainFailureListener>();
+
+    private CopyOnWriteArrayList<SensorListener> sensorListeners =
+    		new CopyOnWriteArrayList<SensorListener>();
+
+    /* Marker put in the sensor buffer of a train that has crashed. */
+    private static final SensorEvent CRASHED = new SensorEvent(-1, -1, -1, 0);
+
     private TSimStream sTSim;
+    private InputStream in;
+    private PrintStream out;
     private boolean debug = false;
 
+    /* Whether the lanes are written from by the replies rather than by a
+       writer thread, whether the simulator has gone away, and whether
+       the interface has been closed. */
+    private final boolean pumped;
+    private volatile boolean disconnected = false;
+    private volatile boolean closed = false;
+    private Thread reader, writer;
+
+    /* The time the last message was read from tsim, from System.nanoTime(). */
+    private volatile long lastMessageTime = System.nanoTime();
+
+    /* When set, every sensor event read is also appended here. */
+    private volatile SensorEventLog eventLog;
+
+    /* The last switch position and train speed that tsim acknowledged,
+       so that a command that would change nothing is answered without a
+       round trip. Switches are keyed by position and speeds indexed by
+       trainId; an entry is dropped while a command that changes it is
+       waiting for its reply, and stays dropped if the command fails.
+    */
+    private ConcurrentHashMap<Long, Integer> switchShadow =
+    		new ConcurrentHashMap<Long, Integer>();
+
+    private AddingArrayList<Integer> speedVec = new AddingArrayList<Integer>();
+
+    /* The last command sent for each switch and train, whose reply alone
+       may set the entry again; guarded by shadowLock, as are changes to
+       the entries. A speed counts as sent when it is written, as a stop
+       may be written before a speed queued earlier for another train,
+       and its reply only sets the entry if no later speed is queued for
+       the train. */
+    private final Object shadowLock = new Object();
+    private HashMap<Long, PendingCommand> latestSwitch =
+    		new HashMap<Long, PendingCommand>();
+    private HashMap<Integer, PendingCommand> latestSpeed =
+    		new HashMap<Integer, PendingCommand>();
+    private HashMap<Integer, PendingCommand> queuedSpeed =
+    		new HashMap<Integer, PendingCommand>();
+
+    /* The round trip times in nanoseconds of the last LATENCIES commands
+       answered, as a ring written only by the reader. */
+    private static final int LATENCIES = 1024;
+    private final long[] latencies = new long[LATENCIES];
+    private volatile long answered = 0;
+
+    private volatile boolean suppressing = true;
+    private AtomicLong suppressed = new AtomicLong();
+
+    /* Whether the exceptions thrown by the commands get stack traces. */
+    private volatile boolean stackTraces = true;
+
+    /* The text of the commands, made once and then reused: for each
+       train, indexed by speed plus MAX_CACHED_SPEED, and for each switch,
+       by direction minus 1. */
+    private static final int MAX_CACHED_SPEED = 64;
+    private AddingArrayList<String[]> speedCommands =
+    		new AddingArrayList<String[]>();
+    private ConcurrentHashMap<Long, String[]> switchCommands =
+    		new ConcurrentHashMap<Long, String[]>();
+
 
     /** Create a new TSimInterface
      *
      */
 
-    private TSimInterface() {
-	sTSim = new TSimStream(System.in);
+    private TSimInterface(InputStream in, PrintStream out, boolean exitAtEnd) {
+	sTSim = new TSimStream(in, exitAtEnd);
+	this.in = in;
+	this.out = out;
+	pumped = false;
+    }
+
+    /** Creates an interface without threads, whose messages are handed
+     *  to receive.
+     */
+
+    private TSimInterface(PrintStream out) {
+	this.out = out;
+	pumped = true;
     }
     
    /** Returns the single instance (singleton pattern).
@@ -51,59 +171,306 @@ public final class TSimInterface {
      */
     public static synchronized TSimInterface getInstance() {
 	if (tsim == null) {
-	    tsim = new TSimInterface();
-	    new Thread(new Runnable() {
-		    public void run() {
-			tsim.readLoop();
-		    }
-		}).start();
+	    tsim = new TSimInterface(System.in, System.out, true);
+	    tsim.startReader(false);
 	}
 	
 	return tsim;
     }
+
+    /** Creates a separate interface talking to a simulator over the given
+     *  streams, and starts a daemon thread reading from it. This is meant
+     *  for stand-in simulators and benchmarks; controllers talking to tsim
+     *  use getInstance(). Unlike getInstance(), the end of the messages
+     *  does not exit; the interface is disconnected instead.
+     *
+     *  @param in   the stream of messages from the simulator.
+     *  @param out  the stream of commands to the simulator.
+     */
+    public static TSimInterface connect(InputStream in, OutputStream out) {
+	TSimInterface t = new TSimInterface(in, new PrintStream(out, true),
+					    false);
+	t.startReader(true);
+	return t;
+    }
+
+    /** Creates an interface for a TSimMultiplexer, which reads for it
+     *  and calls receive. Commands are written by the callers and by
+     *  receive, so out must not block.
+     */
+
+    static TSimInterface attach(OutputStream out) {
+	return new TSimInterface(new PrintStream(out, true));
+    }
+
+    private void startReader(boolean daemon) {
+	reader = new Thread(new Runnable() {
+		public void run() {
+		    readLoop();
+		}
+	    });
+	reader.setDaemon(daemon);
+	reader.start();
+	writer = new Thread(new Runnable() {
+		public void run() {
+		    writeLoop();
+		}
+	    });
+	writer.setDaemon(true);
+	writer.start();
+    }
+
+    /** Repeatedly writes commands to tsim, stops first; runs in a
+     *  separate thread.
+     */
+
+    private void writeLoop()
+    {
+	while (true) {
+	    synchronized (lanes) {
+		try {
+		    while ((urgentLane.isEmpty() && routineLane.isEmpty())
+			   || inFlight >= maxInFlight)
+			lanes.wait();
+		} catch (InterruptedException e) {
+		    return;
+		}
+		writeNext();
+	    }
+	}
+    }
+
+    /** Writes the first command of the lanes, stops first; called with
+     *  lanes held.
+     */
+
+    private void writeNext() {
+	PendingCommand cmd = urgentLane.isEmpty() ? routineLane.poll()
+	    : urgentLane.poll();
+
+	/* Given up on before it was sent. */
+	if (cmd.isDone()) acknowledged(cmd, null);
+	else write(cmd);
+    }
+
+    /** Writes as many commands of the lanes as may be in flight, instead
+     *  of the writer thread; called with lanes held.
+     */
+
+    private void pump() {
+	while (inFlight < maxInFlight
+	       && !(urgentLane.isEmpty() && routineLane.isEmpty()))
+	    writeNext();
+    }
+
+    /** Writes a command to tsim; called with lanes held, which keeps the
+     *  buffer of replies in the order of the commands.
+     */
+
+    private void write(PendingCommand cmd) {
+	inFlight++;
+	if (cmd.switchKey == null && cmd.trainId >= 0) {
+	    synchronized (shadowLock) {
+		latestSpeed.put(cmd.trainId, cmd);
+	    }
+	}
+
+	/* Queue the command before sending it so the reply cannot arrive
+	   first. */
+	cmd.sent = System.nanoTime();
+	commandFIFO.offer(cmd);
+	out.println(cmd.output);
+	if (debug) System.err.print(cmd.output);
+    }
+
+    /** Puts what an acknowledged command changed in the shadow state,
+     *  unless a later command for the same switch or train has been sent
+     *  since, and forgets the command.
+     *
+     *  @param r  the result, or null if the caller had given up.
+     */
+
+    private void acknowledged(PendingCommand cmd, CommandResult r) {
+	synchronized (shadowLock) {
+	    if (cmd.switchKey != null) {
+		if (latestSwitch.remove(cmd.switchKey, cmd)
+		    && r == CommandResult.OK)
+		    switchShadow.put(cmd.switchKey, cmd.value);
+	    }
+	    else if (cmd.trainId >= 0) {
+		boolean last = queuedSpeed.remove(cmd.trainId, cmd);
+		if (latestSpeed.remove(cmd.trainId, cmd) && last
+		    && r == CommandResult.OK)
+		    speedVec.set(cmd.trainId, cmd.value);
+	    }
+	}
+    }
     
     /** Repeatedly reads messages from tsim; runs in a separate thread.
      */
 
     private void readLoop() 
     {
-	while (true) {
+	while (!closed) {
 	    
 	    try {
-		TSimInformation dInfo = sTSim.read();
-
-		if (debug) System.err.println("     " + dInfo);
-		
-		if (dInfo instanceof CommandStatus) 
-		    commandFIFO.offer((CommandStatus)dInfo);
-		
-		else if (dInfo instanceof TrainErrorEvent) {
-		    TrainErrorEvent tEvent = (TrainErrorEvent) dInfo;
-		    int trainId = tEvent.getTrainId();
-		    /* Store the error event to make future commands 
-		       concerning this train result in an exception.
-		    */
-		    
-		    trainVec.set(trainId, tEvent);
-		    reportTrainErrorEvent(tEvent);
-		}
-
-		else if (dInfo instanceof SensorEvent) {
-		    SensorEvent sEvent = (SensorEvent) dInfo;
-		    int trainId = sEvent.getTrainId();
-		    
-		    getSensorEventQueue(trainId).put(sEvent);
-		}
+		receive(sTSim.read());
 	    }
 	    catch (UnparsableInputException e) {
+		if (closed) return;
+		if (sTSim.hasEnded()) {
+		    disconnect();
+		    return;
+		}
 		System.err.println(e.getMessage());
 	    }
 	    catch (InterruptedException e) {
+		if (closed) return;
 		System.err.println(e.getMessage());
 	    }
 	}
     }
 
+    /** Acts on a message from tsim; called by the reader, or by the
+     *  TSimMultiplexer serving this interface.
+     */
+
+    void receive(TSimInformation dInfo) throws InterruptedException {
+	lastMessageTime = System.nanoTime();
+
+	if (debug) System.err.println("     " + dInfo);
+	
+	if (dInfo instanceof CommandStatus) {
+	    PendingCommand cmd = commandFIFO.poll();
+
+	    /* A failed command stays in the buffer until its
+	       reply arrives, and the reply is then dropped.
+	    */
+	    if (cmd != null) {
+		synchronized (lanes) {
+		    inFlight--;
+		    if (pumped) pump();
+		    else lanes.notify();
+		}
+		latencies[(int) (answered % LATENCIES)] =
+		    lastMessageTime - cmd.sent;
+		answered++;
+		CommandResult r = ((CommandStatus)dInfo).getResult();
+		acknowledged(cmd, cmd.complete(r) ? r : null);
+	    }
+	}
+	
+	else if (dInfo instanceof TrainErrorEvent) {
+	    TrainErrorEvent tEvent = (TrainErrorEvent) dInfo;
+	    int trainId = tEvent.getTrainId();
+	    /* Store the error event to make future commands 
+	       concerning this train result in an exception.
+	    */
+	    
+	    trainVec.set(trainId, tEvent);
+	    reportTrainErrorEvent(tEvent);
+
+	    getSensorEventQueue(trainId).put(CRASHED);
+	    for (PendingCommand cmd : commandFIFO)
+		if (cmd.trainId == trainId)
+		    cmd.complete(CommandResult.CRASHED);
+	    synchronized (lanes) {
+		for (PendingCommand cmd : urgentLane)
+		    if (cmd.trainId == trainId)
+			cmd.complete(CommandResult.CRASHED);
+		for (PendingCommand cmd : routineLane)
+		    if (cmd.trainId == trainId)
+			cmd.complete(CommandResult.CRASHED);
+	    }
+
+	    for (TrainFailureListener l : failureListeners)
+		l.trainFailed(tEvent);
+	}
+
+	else if (dInfo instanceof SensorEvent) {
+	    SensorEvent sEvent = (SensorEvent) dInfo;
+	    int trainId = sEvent.getTrainId();
+	    SensorEventLog log = eventLog;
+
+	    SensorFilter filter = filterVec.get(trainId);
+	    long time = lastMessageTime;
+
+	    if (log != null) log.append(sEvent, time);
+	    for (SensorListener l : sensorListeners)
+		l.sensorEvent(sEvent, time);
+
+	    /* Events the train does not want never wake it up. */
+	    if (filter == null || filter.accept(sEvent))
+		getSensorEventQueue(trainId).put(sEvent);
+	}
+    }
+
+    /** Fails everything that waits for the simulator once its connection
+     *  has ended: commands waiting to be sent or answered, and those sent
+     *  later, complete with DISCONNECTED, and getSensor throws rather than
+     *  waiting for events that will not come. Called by the
+     *  TSimMultiplexer serving this interface.
+     */
+
+    void disconnect() {
+	synchronized (lanes) {
+	    disconnected = true;
+	    for (PendingCommand cmd : urgentLane) {
+		cmd.complete(CommandResult.DISCONNECTED);
+		acknowledged(cmd, null);
+	    }
+	    for (PendingCommand cmd : routineLane) {
+		cmd.complete(CommandResult.DISCONNECTED);
+		acknowledged(cmd, null);
+	    }
+	    for (PendingCommand cmd : commandFIFO) {
+		cmd.complete(CommandResult.DISCONNECTED);
+		acknowledged(cmd, null);
+	    }
+	    urgentLane.clear();
+	    routineLane.clear();
+	    commandFIFO.clear();
+	    inFlight = 0;
+	}
+	for (int i = 0; i < sensorVec.size(); i++) {
+	    LinkedBlockingQueue<SensorEvent> queue = sensorVec.get(i);
+	    if (queue != null) queue.offer(CRASHED);
+	}
+    }
+
+    /** Closes an interface created by connect: everything waiting for
+     *  the simulator fails as after a disconnect, the threads of the
+     *  interface end and both streams are closed.
+     *
+     *  @throws IllegalStateException for the interface to tsim, which
+     *          talks over the standard streams.
+     */
+
+    public void close() {
+	if (this == tsim)
+	    throw new IllegalStateException("the interface to tsim stays open");
+	closed = true;
+	disconnect();
+	if (reader != null) reader.interrupt();
+	if (writer != null) writer.interrupt();
+	try {
+	    if (in != null) in.close();
+	}
+	catch (IOException e) {
+	    /* Nothing more is read from it anyway. */
+	}
+	out.close();
+    }
+
+    /** Returns true if the simulator of an interface served by a
+     *  TSimMultiplexer, or of one created by connect, has closed its
+     *  connection, or the interface has been closed.
+     */
+
+    public boolean isDisconnected() {
+	return disconnected;
+    }
+
     private void reportTrainErrorEvent(TrainErrorEvent e) {
 	System.err.println(e);
     }
@@ -120,11 +487,159 @@ public final class TSimInterface {
 	return trainSensorFIFO;
     }
 
+    /** Makes getSensor for the given train return only the events
+     *  accepted by the filter; other events are dropped as soon as they
+     *  are read. A null filter delivers all events again.
+     *
+     *  @param trainId  the id of the train.
+     *  @param filter   the filter, evaluated on the thread reading from
+     *                  tsim.
+     */
+
+    public void subscribe(int trainId, SensorFilter filter) {
+	filterVec.set(trainId, filter);
+    }
+
+    /** Registers a listener to be told about every sensor event, whatever
+     *  the trains have subscribed to.
+     */
+
+    public void addSensorListener(SensorListener l) {
+	sensorListeners.add(l);
+    }
+
+    /** Removes a listener registered with addSensorListener.
+     */
+
+    public void removeSensorListener(SensorListener l) {
+	sensorListeners.remove(l);
+    }
+
+    /** Registers a listener to be told when a train collides or derails.
+     *  Listeners are called on the thread reading from tsim, after the
+     *  train's waiting threads have been woken up, and must not block or
+     *  send commands to tsim.
+     */
+
+    public void addFailureListener(TrainFailureListener l) {
+	failureListeners.add(l);
+    }
+
+    /** Removes a listener registered with addFailureListener.
+     */
+
+    public void removeFailureListener(TrainFailureListener l) {
+	failureListeners.remove(l);
+    }
+
+    /** Returns the number of milliseconds since a message was last read
+     *  from tsim.
+     */
+
+    public long millisSinceLastMessage() {
+	return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastMessageTime);
+    }
+
+    /** Checks whether tsim seems to have stopped answering, that is
+     *  whether some command has waited longer than the given time for
+     *  its reply without any message at all being read meanwhile.
+     *
+     *  @param limitMillis  the longest acceptable wait in milliseconds.
+     *  @return 'true' if the link to tsim is stalled.
+     */
+
+    public boolean isStalled(long limitMillis) {
+	PendingCommand oldest = commandFIFO.peek();
+	long limit = TimeUnit.MILLISECONDS.toNanos(limitMillis);
+	long now = System.nanoTime();
+
+	return oldest != null
+	    && now - oldest.sent > limit
+	    && now - lastMessageTime > limit;
+    }
+
     /** Turns on and off printing of debug info to System.err.
      */
 
     public void setDebug(boolean debug) {this.debug = debug;}
 
+    /** Starts recording every sensor event read from tsim in the given
+     *  log, or stops recording if log is null.
+     */
+
+    public void setEventLog(SensorEventLog log) {eventLog = log;}
+
+    /** Returns the log sensor events are recorded in, or null.
+     */
+
+    public SensorEventLog getEventLog() {return eventLog;}
+
+    /** Turns on and off answering commands that would not change the
+     *  last acknowledged state without sending them to tsim. It is on by
+     *  default; turn it off if switches may also be changed in tsim
+     *  itself.
+     */
+
+    public void setSuppressing(boolean suppressing) {
+	this.suppressing = suppressing;
+    }
+
+    /** Turns on and off filling in the stack traces of the exceptions
+     *  thrown by setSpeed, setSwitch and getSensor. It is on by default;
+     *  without it a failed command costs little more than with the
+     *  methods that return a CommandResult.
+     */
+
+    public void setStackTraces(boolean stackTraces) {
+	this.stackTraces = stackTraces;
+    }
+
+    /** Sets how many commands may be sent to tsim before the reply to the
+     *  first has arrived. It is 1 by default, so that a stop never waits
+     *  for more than one other command; a simulator that answers at once
+     *  may be given more.
+     */
+
+    public void setMaxInFlight(int maxInFlight) {
+	if (maxInFlight < 1)
+	    throw new IllegalArgumentException("at least 1 command is needed");
+	synchronized (lanes) {
+	    this.maxInFlight = maxInFlight;
+	    if (pumped) pump();
+	    else lanes.notify();
+	}
+    }
+
+    /** Returns the number of commands answered without sending them.
+     */
+
+    public long suppressedCommands() {return suppressed.get();}
+
+    /** Returns the position of a switch as last acknowledged by tsim,
+     *  without asking tsim.
+     *
+     *  @return SWITCH_LEFT, SWITCH_RIGHT or SWITCH_UNKNOWN if the switch
+     *          has not been set successfully through this interface.
+     */
+
+    public int getSwitch(int xPos, int yPos) {
+	Integer dir = switchShadow.get(switchKey(xPos, yPos));
+	return dir == null ? SWITCH_UNKNOWN : dir;
+    }
+
+    /** Returns the speed of a train as last acknowledged by tsim, without
+     *  asking tsim.
+     *
+     *  @return the speed, or null if it has not been set successfully
+     *          through this interface.
+     */
+
+    public Integer getSpeed(int trainId) {return speedVec.get(trainId);}
+
+    private static Long switchKey(int xPos, int yPos) {
+	return Position.key(xPos, yPos);
+    }
+
 
 
     /** Sets the speed of a train.
@@ -137,24 +652,64 @@ public final class TSimInterface {
      *
      */
 
-    public synchronized void setSpeed(int trainId, int speed)
+    public void setSpeed(int trainId, int speed)
 	throws CommandException {
-	TrainErrorEvent tEvent = trainVec.get(trainId);
-	
+	setSpeed(trainId, speed, NO_TIMEOUT);
+    }
+
+    /** Sets the speed of a train, giving up if tsim has not replied
+     *  within the given time.
+     *
+     *  @param trainId  the id of the train to be affected by the command.
+     *  @param speed    the new speed of the train.
+     *  @param timeout  the longest time to wait for the reply in
+     *                  milliseconds, or NO_TIMEOUT.
+     *  @throws CommandTimeoutException  if no reply arrived in time.
+     *  @throws CommandException  as for setSpeed(trainId, speed).
+     *
+     */
+
+    public void setSpeed(int trainId, int speed, long timeout)
+	throws CommandException {
+	CommandResult r = trySetSpeed(trainId, speed, timeout);
+	if (r != CommandResult.OK)
+	    throw failure(r, trainId, "SetSpeed " + trainId + " " + speed,
+			  timeout);
+    }
+
+    /** Sets the speed of a train as setSpeed(trainId, speed, timeout),
+     *  but tells how it went instead of throwing. Nothing is allocated
+     *  for a failure.
+     *
+     *  @param trainId  the id of the train to be affected by the command.
+     *  @param speed    the new speed of the train.
+     *  @param timeout  the longest time to wait for the reply in
+     *                  milliseconds, or NO_TIMEOUT.
+     *  @return OK, ILLEGAL_SPEED, NO_SUCH_TRAIN, CRASHED, TIMEOUT or
+     *          INTERRUPTED.
+     *
+     */
+
+    public CommandResult trySetSpeed(int trainId, int speed,
+				     long timeout) {
 	/* some event has happened for this train i.e. it has crashed */
 	
-	if (tEvent != null)
-	    throw new CommandException(tEvent.toString());
-        String output ="SetSpeed " + trainId + " " + speed;
-	System.out.println(output);
-	if (debug) System.err.print(output);
-
-	try {
-	    CommandStatus cStat = commandFIFO.take();
-	    if (cStat.getStatus() != CommandStatus.OK)
-		throw new CommandException(cStat.toString());
-	} catch (InterruptedException e) {}
+	if (trainVec.get(trainId) != null)
+	    return CommandResult.CRASHED;
 
+	PendingCommand cmd;
+	synchronized (shadowLock) {
+	    Integer known = speedVec.get(trainId);
+	    if (suppressing && known != null && known == speed) {
+		suppressed.incrementAndGet();
+		return CommandResult.OK;
+	    }
+	    cmd = new PendingCommand(trainId, speedCommand(trainId, speed),
+				     null, speed);
+	    speedVec.set(trainId, null);
+	    queuedSpeed.put(trainId, cmd);
+	}
+	return sendCommand(cmd, speed == 0, timeout);
     }
 
     /** Sets the direction of the specified switch. Valid directions are
@@ -171,20 +726,168 @@ public final class TSimInterface {
      */
      
 
-    public synchronized void setSwitch(int xPos, int yPos, int switchDir)
+    public void setSwitch(int xPos, int yPos, int switchDir)
 	throws CommandException {
-	
-	String output  ="SetSwitch " + xPos + " " + yPos + 
-	                (switchDir == SWITCH_LEFT ? " LeftSwitch" : " RightSwitch");
-	System.out.println(output);
-	if (debug) System.err.print(output);
-	
+	setSwitch(xPos, yPos, switchDir, NO_TIMEOUT);
+    }
+
+    /** Sets the direction of the specified switch, giving up if tsim has
+     *  not replied within the given time.
+     *
+     *  @param xPos   the x coordinate of the switch.
+     *  @param yPos   the y coordinate of the switch.
+     *  @param switchDir  the new direction of the switch.
+     *  @param timeout  the longest time to wait for the reply in
+     *                  milliseconds, or NO_TIMEOUT.
+     *  @throws CommandTimeoutException  if no reply arrived in time.
+     *  @throws CommandException  as for setSwitch(xPos, yPos, switchDir).
+     *
+     */
+
+    public void setSwitch(int xPos, int yPos, int switchDir, long timeout)
+	throws CommandException {
+	CommandResult r = trySetSwitch(xPos, yPos, switchDir, timeout);
+	if (r != CommandResult.OK)
+	    throw failure(r, -1, "SetSwitch " + xPos + " " + yPos +
+			  (switchDir == SWITCH_LEFT ? " LeftSwitch" : " RightSwitch"),
+			  timeout);
+    }
+
+    /** Sets the direction of a switch as setSwitch(xPos, yPos,
+     *  switchDir, timeout), but tells how it went instead of throwing,
+     *  so that a controller may retry while a train is on the switch
+     *  without paying for an exception each time.
+     *
+     *  @param xPos   the x coordinate of the switch.
+     *  @param yPos   the y coordinate of the switch.
+     *  @param switchDir  the new direction of the switch.
+     *  @param timeout  the longest time to wait for the reply in
+     *                  milliseconds, or NO_TIMEOUT.
+     *  @return OK, NO_SUCH_SWITCH, TRAIN_ON_SWITCH, TIMEOUT or
+     *          INTERRUPTED.
+     *
+     */
+
+    public CommandResult trySetSwitch(int xPos, int yPos, int switchDir,
+				      long timeout) {
+	int dir = switchDir == SWITCH_LEFT ? SWITCH_LEFT : SWITCH_RIGHT;
+	Long key = switchKey(xPos, yPos);
+	PendingCommand cmd;
+	synchronized (shadowLock) {
+	    Integer known = switchShadow.get(key);
+	    if (suppressing && known != null && known == dir) {
+		suppressed.incrementAndGet();
+		return CommandResult.OK;
+	    }
+	    cmd = new PendingCommand(-1, switchCommand(key, xPos, yPos, dir),
+				     key, dir);
+	    switchShadow.remove(key);
+	    latestSwitch.put(key, cmd);
+	}
+	return sendCommand(cmd, false, timeout);
+    }
+
+    /** Returns the text of a SetSpeed command, made only the first time
+     *  for the speeds a train may run at.
+     */
+
+    private String speedCommand(int trainId, int speed) {
+	if (speed < -MAX_CACHED_SPEED || speed > MAX_CACHED_SPEED)
+	    return "SetSpeed " + trainId + " " + speed;
+	String[] texts = speedCommands.get(trainId);
+	if (texts == null) {
+	    texts = new String[2 * MAX_CACHED_SPEED + 1];
+	    speedCommands.set(trainId, texts);
+	}
+	/* Racing callers for one train at most make the text twice. */
+	String text = texts[speed + MAX_CACHED_SPEED];
+	if (text == null)
+	    texts[speed + MAX_CACHED_SPEED] = text =
+		"SetSpeed " + trainId + " " + speed;
+	return text;
+    }
+
+    /** Returns the text of a SetSwitch command, made only the first time
+     *  for each switch.
+     */
+
+    private String switchCommand(Long key, int xPos, int yPos, int dir) {
+	String[] texts = switchCommands.get(key);
+	if (texts == null) {
+	    String at = "SetSwitch " + xPos + " " + yPos;
+	    texts = new String[] { at + " LeftSwitch", at + " RightSwitch" };
+	    switchCommands.putIfAbsent(key, texts);
+	}
+	return texts[dir - 1];
+    }
+
+    /** Returns the exception thrown for a failed command.
+     *
+     *  @param command  the command, for the message of a timeout.
+     */
+
+    private CommandException failure(CommandResult r, int trainId,
+				     String command, long timeout) {
+	switch (r) {
+	case CRASHED :
+	    return new CommandException(trainVec.get(trainId).toString(),
+					stackTraces);
+	case TIMEOUT :
+	    return new CommandTimeoutException
+		("no reply to \"" + command + "\" within " + timeout + " ms",
+		 stackTraces);
+	default :
+	    return new CommandException(r.toString(), stackTraces);
+	}
+    }
+
+    /** Sends a command to tsim and waits for its reply.
+     *
+     *  @param urgent   whether the command goes before all others that
+     *                  are not urgent, except those of its own train.
+     *  @param timeout  the longest time to wait in milliseconds, or
+     *                  NO_TIMEOUT.
+     *  @return the status of the reply, CRASHED if the train crashed
+     *          before it arrived, TIMEOUT or INTERRUPTED.
+     */
+
+    private CommandResult sendCommand(PendingCommand cmd, boolean urgent,
+				      long timeout) {
+	synchronized (lanes) {
+	    /* Nothing would ever answer. */
+	    if (disconnected) {
+		acknowledged(cmd, null);
+		return CommandResult.DISCONNECTED;
+	    }
+	    /* Nothing to go before, so write it without the writer. */
+	    if (urgentLane.isEmpty() && routineLane.isEmpty()
+		&& inFlight < maxInFlight)
+		write(cmd);
+	    else {
+		/* A stop goes after the routine commands of its own train,
+		   so that they cannot start the train again. */
+		if (urgent) {
+		    Iterator<PendingCommand> it = routineLane.iterator();
+		    while (it.hasNext()) {
+			PendingCommand earlier = it.next();
+			if (earlier.trainId == cmd.trainId) {
+			    it.remove();
+			    urgentLane.add(earlier);
+			}
+		    }
+		}
+		(urgent ? urgentLane : routineLane).add(cmd);
+		lanes.notify();
+	    }
+	}
+
 	try {
-	    CommandStatus cStat = commandFIFO.take();
-	    if (cStat.getStatus() != CommandStatus.OK)
-		throw new CommandException(cStat.toString());
-	} catch (InterruptedException e) {}
-	
+	    return cmd.await(timeout);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    cmd.complete(CommandResult.INTERRUPTED);
+	    return cmd.result();
+	}
     }
 
     
@@ -192,21 +895,180 @@ public final class TSimInterface {
      *
      *  @param trainId  the id of the train to wait for.
      *  @return a SensorEvent representing the information about the event
-     *  @throws  CommandException if the train has crashed.
+     *  @throws  CommandException if the train has crashed, also while
+     *                            waiting.
      *
      */
 
 
     public SensorEvent getSensor(int trainId) 
 	throws CommandException, InterruptedException {
-	TrainErrorEvent tEvent = trainVec.get(trainId);
-	
+	return getSensor(trainId, NO_TIMEOUT);
+    }
+
+    /** Blocks the calling thread until the specified train passes a
+     *  sensor or the given time has passed.
+     *
+     *  @param trainId  the id of the train to wait for.
+     *  @param timeout  the longest time to wait in milliseconds, or
+     *                  NO_TIMEOUT.
+     *  @return a SensorEvent representing the information about the event
+     *  @throws  CommandTimeoutException if no event arrived in time.
+     *  @throws  CommandException if the train has crashed, also while
+     *                            waiting.
+     *
+     */
+
+    public SensorEvent getSensor(int trainId, long timeout)
+	throws CommandException, InterruptedException {
+	SensorEvent sEvent = tryGetSensor(trainId, timeout);
+	if (sEvent != null) return sEvent;
+
+	if (isCrashed(trainId))
+	    throw new CommandException(trainVec.get(trainId).toString(),
+				       stackTraces);
+	if (disconnected)
+	    throw new CommandException(CommandResult.DISCONNECTED.toString(),
+				       stackTraces);
+	throw new CommandTimeoutException
+	    ("no sensor event for train " + trainId + " within " +
+	     timeout + " ms", stackTraces);
+    }
+
+    /** Waits as getSensor(trainId, timeout), but returns null instead of
+     *  throwing if the train has crashed or no event arrived in time;
+     *  isCrashed tells which.
+     *
+     *  @param trainId  the id of the train to wait for.
+     *  @param timeout  the longest time to wait in milliseconds, or
+     *                  NO_TIMEOUT.
+     *  @return the event, or null.
+     *
+     */
+
+    public SensorEvent tryGetSensor(int trainId, long timeout)
+	throws InterruptedException {
 	/* some event has happened for this train i.e. it has crashed */
 	
-	if (tEvent != null)
-	    throw new CommandException(tEvent.toString());
+	if (trainVec.get(trainId) != null || disconnected)
+	    return null;
 
-	return getSensorEventQueue(trainId).take();
+	LinkedBlockingQueue<SensorEvent> queue = getSensorEventQueue(trainId);
+	SensorEvent sEvent = timeout == NO_TIMEOUT ? queue.take()
+	    : queue.poll(timeout, TimeUnit.MILLISECONDS);
+
+	if (sEvent == CRASHED) {
+	    /* Leave the marker for any other thread waiting on this train. */
+	    queue.put(CRASHED);
+	    return null;
+	}
+	return sEvent;
+    }
+
+    /** Returns the number of sensor events that have arrived for a train
+     *  and not yet been taken.
+     */
+
+    public int queuedSensorEvents(int trainId) {
+	LinkedBlockingQueue<SensorEvent> queue = sensorVec.get(trainId);
+	return queue == null ? 0 : queue.size();
+    }
+
+    /** Returns the number of commands that are waiting to be sent or for
+     *  their reply.
+     */
+
+    public int pendingCommands() {
+	synchronized (lanes) {
+	    return urgentLane.size() + routineLane.size() + inFlight;
+	}
+    }
+
+    /** Returns the round trip times in nanoseconds of the last commands
+     *  answered by tsim, at most 1024, oldest first. They are copied
+     *  while the reader may be adding to them, so one may be missing.
+     */
+
+    public long[] recentCommandLatencies() {
+	long n = answered;
+	int count = (int) Math.min(n, LATENCIES);
+	long[] copy = new long[count];
+	for (int i = 0; i < count; i++)
+	    copy[i] = latencies[(int) ((n - count + i) % LATENCIES)];
+	return copy;
+    }
+
+    /** Returns true if the train has collided or derailed.
+     */
+
+    public boolean isCrashed(int trainId) {
+	return trainVec.get(trainId) != null;
+    }
+
+
+    /** A command sent to tsim that is waiting for its reply. It is
+     *  completed once, by the reply or by whatever made the reply
+     *  pointless, and its caller waits on its monitor, so that a command
+     *  is a single object.
+     */
+
+    private static final class PendingCommand {
+	final int trainId;		// or -1
+	final String output;
+	final Long switchKey;		// or null for a speed
+	final int value;		// the new direction or speed
+	volatile long sent;
+	private CommandResult result;	// guarded by this
+
+	PendingCommand(int trainId, String output, Long switchKey, int value) {
+	    this.trainId = trainId;
+	    this.output = output;
+	    this.switchKey = switchKey;
+	    this.value = value;
+	}
+
+	/** Completes the command, unless it has been completed already.
+	 *
+	 *  @return true if it was completed with r.
+	 */
+
+	synchronized boolean complete(CommandResult r) {
+	    if (result != null) return false;
+	    result = r;
+	    notifyAll();
+	    return true;
+	}
+
+	synchronized boolean isDone() {
+	    return result != null;
+	}
+
+	synchronized CommandResult result() {
+	    return result;
+	}
+
+	/** Waits for the command to be completed. If the time runs out
+	 *  first, it is completed with TIMEOUT; the reply may still come,
+	 *  and is then dropped.
+	 *
+	 *  @param timeout  the longest time to wait in milliseconds, or
+	 *                  NO_TIMEOUT.
+	 */
+
+	synchronized CommandResult await(long timeout)
+	    throws InterruptedException {
+	    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+	    while (result == null) {
+		if (timeout == NO_TIMEOUT) {
+		    wait();
+		    continue;
+		}
+		long left = end - System.nanoTime();
+		if (left <= 0) result = CommandResult.TIMEOUT;
+		else TimeUnit.NANOSECONDS.timedWait(this, left);
+	    }
+	    return result;
+	}
     }
 
 }
@@ -0,0 +1,385 @@
+package TSim;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+
+/** Serves many simulators from one thread. Each simulator is reached
+ *  over a channel, such as a socket to a tsim run behind a TCP bridge or
+ *  a pipe to a simulator in the same process, and gets a TSimInterface
+ *  of its own. One thread waits on a Selector for all the channels,
+ *  parses what arrives a piece at a time and hands each message to its
+ *  interface, which puts it in the queue of its train as its own reader
+ *  would. Commands are written by the callers without blocking; what a
+ *  channel does not take at once is written by the selector thread once
+ *  it can.
+ *
+ *  An interface served this way has no threads of its own: a connection
+ *  costs a buffer for reading, one for commands not yet written and the
+ *  state of its parser. When a simulator closes its end, its interface
+ *  is disconnected and the others go on, rather than the program exiting
+ *  as when tsim is read by getInstance().
+ */
+
+public final class TSimMultiplexer implements Closeable {
+
+    /** The most bytes read from a channel at a time. */
+    private static final int READ_BUFFER = 4096;
+
+    private final Selector selector;
+    private final Thread thread;
+
+    /* Connections to register with the selector or to write for, handed
+       to the selector thread. */
+    private final ConcurrentLinkedQueue<Connection> changed =
+	new ConcurrentLinkedQueue<Connection>();
+    private final Set<Connection> connections =
+	Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private volatile boolean closed = false;
+
+    /** Opens a selector and starts its thread, as a daemon.
+     *
+     *  @throws IOException if the selector could not be opened.
+     */
+
+    public TSimMultiplexer() throws IOException {
+	selector = Selector.open();
+	thread = new Thread(new Runnable() {
+		public void run() {
+		    selectLoop();
+		}
+	    }, "tsim selector");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /** Connects to a simulator listening on a socket.
+     *
+     *  @return the interface of the simulator.
+     *  @throws IOException if the connection failed.
+     */
+
+    public TSimInterface connect(SocketAddress address) throws IOException {
+	SocketChannel channel = SocketChannel.open(address);
+	return connect(channel, channel);
+    }
+
+    /** Serves a simulator reached over two channels, or one channel both
+     *  ways. The channels are made non-blocking, and closed when the
+     *  simulator closes its end or the multiplexer is closed.
+     *
+     *  @param in   the channel of messages from the simulator.
+     *  @param out  the channel of commands to the simulator.
+     *  @return the interface of the simulator.
+     *  @throws IOException if the multiplexer is closed.
+     */
+
+    public <I extends SelectableChannel & ReadableByteChannel,
+	    O extends SelectableChannel & WritableByteChannel>
+	TSimInterface connect(I in, O out) throws IOException {
+	if (closed) throw new IOException("multiplexer closed");
+	in.configureBlocking(false);
+	out.configureBlocking(false);
+	Connection c = new Connection(in, out, in, out);
+	connections.add(c);
+	changed.add(c);
+	selector.wakeup();
+	return c.tsi;
+    }
+
+    /** Returns the number of simulators served.
+     */
+
+    public int connections() {
+	return connections.size();
+    }
+
+    /** Closes every connection, disconnecting its interface, and stops
+     *  the selector thread.
+     */
+
+    public void close() {
+	closed = true;
+	selector.wakeup();
+	if (Thread.currentThread() == thread) return;
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /** Reads from the channels that have something and writes to those
+     *  that can take what is left for them; runs in a separate thread.
+     */
+
+    private void selectLoop() {
+	try {
+	    while (!closed) {
+		selector.select();
+		Connection c;
+		while ((c = changed.poll()) != null) update(c);
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext()) {
+		    SelectionKey key = keys.next();
+		    keys.remove();
+		    c = (Connection) key.attachment();
+		    if (key.isValid() && key.isReadable()) c.read();
+		    if (key.isValid() && key.isWritable()) c.written();
+		}
+	    }
+	}
+	catch (IOException e) {
+	    System.err.println(e.getMessage());
+	}
+	finally {
+	    closed = true;
+	    for (Connection c : connections) c.drop();
+	    try {
+		selector.close();
+	    } catch (IOException e) {
+		System.err.println(e.getMessage());
+	    }
+	}
+    }
+
+    /** Registers a new connection, and asks to be told when a channel
+     *  can take the commands left for it; called by the selector thread.
+     */
+
+    private void update(Connection c) {
+	try {
+	    if (c.inKey == null) {
+		c.inKey = c.inChannel.register(selector, SelectionKey.OP_READ, c);
+		c.outKey = c.outChannel == c.inChannel ? c.inKey
+		    : c.outChannel.register(selector, 0, c);
+	    }
+	} catch (ClosedChannelException e) {
+	    c.drop();
+	    return;
+	}
+	if (c.isFailed()) c.drop();
+	else if (c.isHanded() && c.outKey.isValid())
+	    c.outKey.interestOps(c.outKey.interestOps()
+				 | SelectionKey.OP_WRITE);
+    }
+
+    /** A simulator served by the selector thread. It is the stream its
+     *  interface writes commands to.
+     */
+
+    private final class Connection extends OutputStream {
+	final ReadableByteChannel in;
+	final WritableByteChannel out;
+	final SelectableChannel inChannel, outChannel;
+	final TSimInterface tsi;
+
+	/* Set and used by the selector thread only. */
+	SelectionKey inKey, outKey;
+	private final ByteBuffer input = ByteBuffer.allocate(READ_BUFFER);
+
+	/* The commands the channel has not taken yet, in write mode,
+	   whether they have been handed to the selector thread and
+	   whether writing failed; guarded by this. */
+	private ByteBuffer output = ByteBuffer.allocate(64);
+	private boolean handed = false;
+	private boolean failed = false;
+
+	/* The parser, used by the selector thread only: the word being
+	   read, the message whose numbers are being read, or null, and
+	   the numbers read. */
+	private final StringBuilder word = new StringBuilder();
+	private String message;
+	private final int[] numbers = new int[3];
+	private int count;
+
+	Connection(ReadableByteChannel in, WritableByteChannel out,
+		   SelectableChannel inChannel, SelectableChannel outChannel) {
+	    this.in = in;
+	    this.out = out;
+	    this.inChannel = inChannel;
+	    this.outChannel = outChannel;
+	    tsi = TSimInterface.attach(this);
+	}
+
+	public void write(int b) {
+	    write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	/** Adds to the commands to be written.
+	 */
+
+	public synchronized void write(byte[] b, int off, int len) {
+	    if (output.remaining() < len) {
+		ByteBuffer bigger = ByteBuffer.allocate(
+		    Math.max(2 * output.capacity(), output.position() + len));
+		output.flip();
+		bigger.put(output);
+		output = bigger;
+	    }
+	    output.put(b, off, len);
+	}
+
+	/** Writes what the channel takes now, and hands the rest to the
+	 *  selector thread.
+	 */
+
+	public void flush() {
+	    synchronized (this) {
+		if (handed || failed || output.position() == 0) return;
+		send();
+		if (!failed && output.position() == 0) return;
+		handed = true;
+	    }
+	    changed.add(this);
+	    selector.wakeup();
+	}
+
+	/** Writes what the channel takes; called with this held.
+	 */
+
+	private void send() {
+	    output.flip();
+	    try {
+		out.write(output);
+	    } catch (IOException e) {
+		failed = true;
+	    }
+	    output.compact();
+	}
+
+	synchronized boolean isHanded() {
+	    return handed;
+	}
+
+	synchronized boolean isFailed() {
+	    return failed;
+	}
+
+	/** Writes to a channel that can take more; called by the selector
+	 *  thread.
+	 */
+
+	void written() {
+	    boolean done, failed;
+	    synchronized (this) {
+		send();
+		done = output.position() == 0;
+		if (done) handed = false;
+		failed = this.failed;
+	    }
+	    /* Not with this held, as the interface writes to this with
+	       its lanes held. */
+	    if (failed) drop();
+	    else if (done && outKey.isValid())
+		outKey.interestOps(outKey.interestOps()
+				   & ~SelectionKey.OP_WRITE);
+	}
+
+	/** Reads and parses what has arrived; called by the selector
+	 *  thread.
+	 */
+
+	void read() {
+	    int n;
+	    try {
+		n = in.read(input);
+	    } catch (IOException e) {
+		System.err.println(e.getMessage());
+		n = -1;
+	    }
+	    if (n < 0) {
+		drop();
+		return;
+	    }
+	    input.flip();
+	    while (input.hasRemaining()) {
+		char c = (char) (input.get() & 0xff);
+		if (c > ' ') word.append(c);
+		else if (word.length() > 0) {
+		    String w = word.toString();
+		    word.setLength(0);
+		    parse(w);
+		}
+	    }
+	    input.clear();
+	}
+
+	/** Takes the next word of a message, and hands the message to the
+	 *  interface when it is complete, as TSimStream.read reads it.
+	 */
+
+	private void parse(String w) {
+	    try {
+		TSimInformation info = next(w);
+		if (info != null) tsi.receive(info);
+	    }
+	    catch (UnparsableInputException e) {
+		message = null;
+		System.err.println(e.getMessage());
+	    }
+	    catch (InterruptedException e) {
+		System.err.println(e.getMessage());
+	    }
+	}
+
+	/** Returns the message a word completes, or null.
+	 */
+
+	private TSimInformation next(String w) throws UnparsableInputException {
+	    if (message == null) {
+		TSimInformation info = TSimStream.status(w);
+		if (info != null) return info;
+		if (!w.equals("Sensor") && TSimStream.errorEvent(w) == 0)
+		    throw new UnparsableInputException
+			("unknown information from tsim");
+		message = w;
+		count = 0;
+		return null;
+	    }
+
+	    boolean sensor = message.equals("Sensor");
+	    if (sensor && count == 3) {
+		message = null;
+		return new SensorEvent(numbers[0], numbers[1], numbers[2],
+				       w.equals("inactive")
+				       ? SensorEvent.INACTIVE
+				       : SensorEvent.ACTIVE);
+	    }
+	    try {
+		numbers[count++] = Integer.parseInt(w);
+	    } catch (NumberFormatException e) {
+		throw new UnparsableInputException("int expected");
+	    }
+	    if (sensor) return null;
+	    String m = message;
+	    message = null;
+	    return new TrainErrorEvent(numbers[0], TSimStream.errorEvent(m));
+	}
+
+	/** Closes the channels and disconnects the interface; called by
+	 *  the selector thread.
+	 */
+
+	void drop() {
+	    if (!connections.remove(this)) return;
+	    synchronized (this) {
+		failed = true;
+	    }
+	    if (inKey != null) inKey.cancel();
+	    if (outKey != null) outKey.cancel();
+	    try {
+		inChannel.close();
+		outChannel.close();
+	    } catch (IOException e) {
+		System.err.println(e.getMessage());
+	    }
+	    tsi.disconnect();
+	}
+    }
+}
@@ -9,6 +9,10 @@ import java.io.*;
 
 public class TSimStream {
     protected StreamTokenizer sTokenizer;
+
+    /* Whether EOF exits the whole system, and whether it has been read. */
+    private final boolean exitAtEnd;
+    private volatile boolean ended = false;
     
     /** Creates a new TSimStream that reads from the given InputStream.
      * 
@@ -17,10 +21,36 @@ public class TSimStream {
      */
 
     public TSimStream(InputStream in) {
+	this(in, true);
+    }
+
+    /** Creates a TSimStream that throws an UnparsableInputException at
+     *  EOF instead of exiting, if exitAtEnd is false; hasEnded then tells
+     *  the end from bad input.
+     */
+
+    TSimStream(InputStream in, boolean exitAtEnd) {
 	BufferedReader inReader = 
 	    new BufferedReader( new InputStreamReader(in));
 
 	sTokenizer = new StreamTokenizer(inReader);
+	this.exitAtEnd = exitAtEnd;
+    }
+
+    /** Returns true once EOF has been read.
+     */
+
+    public boolean hasEnded() {
+	return ended;
+    }
+
+    /** Acts on EOF: exits, or throws for a stream that does not exit.
+     */
+
+    private void end() throws UnparsableInputException {
+	ended = true;
+	if (exitAtEnd) System.exit(1);
+	throw new UnparsableInputException("end of input");
     }
    
     /** Reads from the input stream and returns an object representing
@@ -34,20 +64,10 @@ public class TSimStream {
     public TSimInformation read() throws UnparsableInputException {
 	String cmd = readString(sTokenizer);
 	
-	TSimInformation info = null;
+	TSimInformation info = status(cmd);
 
-	if (cmd.equals("SuccessStatus"))
-	    info = new CommandStatus(CommandStatus.OK);
-	else if (cmd.equals("NoSwitchStatus"))
-	    info = new CommandStatus(CommandStatus.NO_SUCH_SWITCH);
-	else if (cmd.equals("IllegalTrainNoStatus"))
-	    info = new CommandStatus(CommandStatus.NO_SUCH_TRAIN);
-	else if (cmd.equals("IllegalReverseStatus"))
-	    info = new CommandStatus(CommandStatus.ILLEGAL_SPEED);
-	else if (cmd.equals("IllegalRailPosStatus"))
-	    info = new CommandStatus(CommandStatus.NO_SUCH_POS);
-	else if (cmd.equals("IllegalSwitchingStatus"))
-	    info = new CommandStatus(CommandStatus.TRAIN_ON_SWITCH);
+	if (info != null)
+	    return info;
 	else if (cmd.equals("Sensor")) {
 	    
 	    int id   = readInt(sTokenizer);
@@ -62,22 +82,11 @@ public class TSimStream {
 	    info = new SensorEvent(id, xPos, yPos, sStatus);
 	    
 	}
-	else if (cmd.equals("TrainCollisionEvent")) {
-	    
-	    int id = readInt(sTokenizer);
-	    
-	    info = new TrainEvent(id, TrainEvent.TRAIN_COLLISION);
-	}
-	else if (cmd.equals("StopCollisionEvent")) {
-
-	    int id = readInt(sTokenizer);
+	else if (errorEvent(cmd) != 0) {
 	    
-	    info = new TrainEvent(id, TrainEvent.STOP_COLLISION);
-	}
-	else if (cmd.equals("DerailmentEvent")) {
 	    int id = readInt(sTokenizer);
 	    
-	    info = new TrainEvent(id, TrainEvent.DERAILMENT);
+	    info = new TrainErrorEvent(id, errorEvent(cmd));
 	}
 	else throw new UnparsableInputException
 	    ("unknown information from tsim");
@@ -90,9 +99,49 @@ public class TSimStream {
 	
     }
     
+    /** Returns the status of a reply from TSim.
+     *
+     *  @param cmd the first word of a message.
+     *  @return the status, or null if the message is not a reply.
+     */
+
+    static CommandStatus status(String cmd) {
+	if (cmd.equals("SuccessStatus"))
+	    return CommandStatus.of(CommandStatus.OK);
+	else if (cmd.equals("NoSwitchStatus"))
+	    return CommandStatus.of(CommandStatus.NO_SUCH_SWITCH);
+	else if (cmd.equals("IllegalTrainNoStatus"))
+	    return CommandStatus.of(CommandStatus.NO_SUCH_TRAIN);
+	else if (cmd.equals("IllegalReverseStatus"))
+	    return CommandStatus.of(CommandStatus.ILLEGAL_SPEED);
+	else if (cmd.equals("IllegalRailPosStatus"))
+	    return CommandStatus.of(CommandStatus.NO_SUCH_POS);
+	else if (cmd.equals("IllegalSwitchingStatus"))
+	    return CommandStatus.of(CommandStatus.TRAIN_ON_SWITCH);
+	return null;
+    }
+
+    /** Returns the kind of a TrainErrorEvent, which is followed by the
+     *  train id.
+     *
+     *  @param cmd the first word of a message.
+     *  @return the event type, or 0 if the message is not an error event.
+     */
+
+    static int errorEvent(String cmd) {
+	if (cmd.equals("TrainCollisionEvent"))
+	    return TrainErrorEvent.TRAIN_COLLISION;
+	else if (cmd.equals("StopCollisionEvent"))
+	    return TrainErrorEvent.STOP_COLLISION;
+	else if (cmd.equals("DerailmentEvent"))
+	    return TrainErrorEvent.DERAILMENT;
+	return 0;
+    }
+
     /** Help method that reads a string from the tokenizer and
      *  returns it or throws an exception if the next token was not 
-     *  a string.  Upon reading EOF the whole system exits.
+     *  a string.  Upon reading EOF the whole system exits, unless the
+     *  stream was created not to.
      *
      *  @param sTokenizer the stream tokenizer to read from.
      *  @return the read string.
@@ -107,7 +156,7 @@ public class TSimStream {
 	    int type = sTokenizer.nextToken();
 
 	    if (type == StreamTokenizer.TT_EOF)
-		System.exit(1);
+		end();
 	    
 	    if (type != StreamTokenizer.TT_WORD)
 		throw new UnparsableInputException
@@ -123,7 +172,8 @@ public class TSimStream {
 
     /** Help method that reads an integer from the tokenizer and
      *  returns it or throws an exception if the next token was not 
-     *  an integer.  Upon reading EOF the whole system exits.
+     *  an integer.  Upon reading EOF the whole system exits, unless the
+     *  stream was created not to.
      *
      *  @param sTokenizer the stream tokenizer to read from.
      *  @return the read integer.
@@ -138,7 +188,7 @@ public class TSimStream {
 	    int type = sTokenizer.nextToken();
 
 	    if (type == StreamTokenizer.TT_EOF)
-		System.exit(1);
+		end();
 	    
 	    if (type != StreamTokenizer.TT_NUMBER)
 		throw new UnparsableInputException
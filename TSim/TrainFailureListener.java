@@ -0,0 +1,17 @@
+package TSim;
+
+/** Receives the fatal events for trains, i.e. collisions and derailments,
+ *  as soon as they are read from TSim.
+ *
+ */
+
+public interface TrainFailureListener
+{
+    /** Called when a train has collided or derailed.
+     *
+     *  @param e   the event.
+     *
+     */
+
+    void trainFailed(TrainErrorEvent e);
+}
@@ -0,0 +1,388 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import TSim.*;
+
+/** Benchmarks for the parts of the TSim client that the trains depend on:
+ *  parsing messages, command round trips, stopping a train while others
+ *  send commands, sensor event dispatch and handing a critical section
+ *  from one train to another, and command round trips to many simulators
+ *  served by threads of their own or by one TSimMultiplexer.
+ *
+ *  Results are printed as comma separated lines of benchmark, parameter,
+ *  metric, value and unit, so that runs can be compared by a script.
+ *  Usage: java TSimBenchmark [name ...], where each name is one of parser,
+ *  roundtrip, failure, stop, dispatch, handoff and connections; by default all are run.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class TSimBenchmark {
+
+	private static final int WARMUP_RUNS = 3;
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) throws Exception {
+		Set<String> names = new HashSet<String>(Arrays.asList(args));
+		System.out.println("benchmark,param,metric,value,unit");
+		if (names.isEmpty() || names.contains("parser")) parser();
+		if (names.isEmpty() || names.contains("roundtrip")) roundTrip();
+		if (names.isEmpty() || names.contains("failure")) failure();
+		if (names.isEmpty() || names.contains("stop")) stop(8);
+		if (names.isEmpty() || names.contains("dispatch")) {
+			for (int trains = 1; trains <= 1024; trains *= 4) dispatch(trains);
+		}
+		if (names.isEmpty() || names.contains("handoff")) {
+			handoff("semaphore", new Section() {
+				// As in Train.critSems
+				private final Semaphore s = new Semaphore(1);
+				public void enter() throws InterruptedException { s.acquire(); }
+				public void leave() { s.release(); }
+			});
+			handoff("monitor", new Section() {
+				// As in Train2.critiMons
+				private final TrainMonitor m = new TrainMonitor();
+				public void enter() throws InterruptedException { m.enter(); }
+				public void leave() { m.leave(); }
+			});
+		}
+		if (names.isEmpty() || names.contains("connections")) {
+			for (int sims = 1; sims <= 64; sims *= 4) {
+				connections(sims, false);
+				connections(sims, true);
+			}
+		}
+		System.exit(0);
+	}
+
+	/** Prints one result line.
+	 */
+	static void report(String benchmark, String param, String metric,
+			double value, String unit) {
+		System.out.printf(Locale.ROOT, "%s,%s,%s,%.3f,%s%n",
+				benchmark, param, metric, value, unit);
+	}
+
+	/** Reports the mean and percentiles of a set of latencies.
+	 */
+	static void reportLatencies(String benchmark, String param, long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		double sum = 0;
+		for (long n : sorted) sum += n;
+		report(benchmark, param, "mean", sum / sorted.length / 1000, "us");
+		report(benchmark, param, "p50", percentile(sorted, 0.50) / 1000.0, "us");
+		report(benchmark, param, "p99", percentile(sorted, 0.99) / 1000.0, "us");
+		report(benchmark, param, "p999", percentile(sorted, 0.999) / 1000.0, "us");
+		report(benchmark, param, "max", sorted[sorted.length - 1] / 1000.0, "us");
+	}
+
+	static long percentile(long[] sorted, double p) {
+		return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)];
+	}
+
+	/** Messages per second parsed by TSimStream from recorded text.
+	 */
+	static void parser() throws UnparsableInputException {
+		final int messages = 200000;
+		byte[] text = protocolText(messages, 16);
+		double best = 0;
+		for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+			TSimStream stream = new TSimStream(new ByteArrayInputStream(text));
+			long start = System.nanoTime();
+			for (int i = 0; i < messages; i++) stream.read();
+			long time = System.nanoTime() - start;
+			if (run >= WARMUP_RUNS) best = Math.max(best, messages * 1e9 / time);
+		}
+		report("parser", "mixed", "throughput", best, "msg/s");
+	}
+
+	/** Latency of setSpeed against a simulator that answers at once, for
+	 *  a changing speed, which goes to the simulator, and for the same
+	 *  speed again, which TSimInterface answers by itself.
+	 */
+	static void roundTrip() throws Exception {
+		TSimInterface tsi = new EchoSimulator().getInterface();
+		for (int i = 0; i < 20000; i++) tsi.setSpeed(1, 10 + i % 2);
+		long[] nanos = new long[100000];
+		for (int i = 0; i < nanos.length; i++) {
+			long start = System.nanoTime();
+			tsi.setSpeed(1, 10 + i % 2);
+			nanos[i] = System.nanoTime() - start;
+		}
+		reportLatencies("roundtrip", "setSpeed", nanos);
+		for (int i = 0; i < nanos.length; i++) {
+			long start = System.nanoTime();
+			tsi.setSpeed(1, 11);
+			nanos[i] = System.nanoTime() - start;
+		}
+		reportLatencies("roundtrip", "setSpeed unchanged", nanos);
+	}
+
+	/** Latency of a setSwitch that fails with TRAIN_ON_SWITCH, as a
+	 *  controller retrying it would see it: thrown with a stack trace,
+	 *  thrown without one and returned by trySetSwitch.
+	 */
+	static void failure() throws Exception {
+		TSimInterface tsi = new EchoSimulator() {
+			protected String reply(String command) {
+				return "IllegalSwitchingStatus";
+			}
+		}.getInterface();
+		long[] nanos = new long[100000];
+		for (int traces = 1; traces >= 0; traces--) {
+			tsi.setStackTraces(traces == 1);
+			for (int i = -20000; i < nanos.length; i++) {
+				long start = System.nanoTime();
+				try {
+					tsi.setSwitch(17, 7, TSimInterface.SWITCH_LEFT);
+				} catch (CommandException e) {}
+				if (i >= 0) nanos[i] = System.nanoTime() - start;
+			}
+			reportLatencies("failure", traces == 1 ? "setSwitch"
+					: "setSwitch without traces", nanos);
+		}
+		for (int i = -20000; i < nanos.length; i++) {
+			long start = System.nanoTime();
+			tsi.trySetSwitch(17, 7, TSimInterface.SWITCH_LEFT,
+					TSimInterface.NO_TIMEOUT);
+			if (i >= 0) nanos[i] = System.nanoTime() - start;
+		}
+		reportLatencies("failure", "trySetSwitch", nanos);
+	}
+
+	/** Latency of stopping a train, and of giving it a speed, while the
+	 *  given number of other threads keep sending switch and speed
+	 *  commands, against a simulator that takes 50 us for each command.
+	 */
+	static void stop(int load) throws Exception {
+		final TSimInterface tsi = new EchoSimulator() {
+			protected String reply(String command) {
+				long end = System.nanoTime() + 50000;
+				while (System.nanoTime() < end);
+				return "SuccessStatus";
+			}
+		}.getInterface();
+		final boolean[] done = { false };
+		Thread[] threads = new Thread[load];
+		for (int i = 0; i < load; i++) {
+			final int id = i + 2;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int n = 0; !done[0]; n++) {
+							tsi.setSwitch(id, n % 100, n % 2 == 0
+									? TSimInterface.SWITCH_LEFT
+									: TSimInterface.SWITCH_RIGHT);
+							tsi.setSpeed(id, 10 + n % 2);
+						}
+					} catch (CommandException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+		}
+		long[] stops = new long[5000];
+		long[] speeds = new long[stops.length];
+		for (int i = -500; i < stops.length; i++) {
+			// Sleep first, so that neither command follows one of ours.
+			Thread.sleep(1);
+			long start = System.nanoTime();
+			tsi.setSpeed(1, 10);
+			if (i >= 0) speeds[i] = System.nanoTime() - start;
+			Thread.sleep(1);
+			start = System.nanoTime();
+			tsi.setSpeed(1, 0);
+			if (i >= 0) stops[i] = System.nanoTime() - start;
+		}
+		done[0] = true;
+		reportLatencies("stop", "setSpeed 0 with " + load + " busy", stops);
+		reportLatencies("stop", "setSpeed 10 with " + load + " busy", speeds);
+	}
+
+	/** Threads and setSpeed latency with the given number of simulators,
+	 *  each with one thread sending commands to it, when each interface
+	 *  has threads of its own and when all are served by a multiplexer.
+	 */
+	static void connections(int sims, boolean multiplexed) throws Exception {
+		int before = Thread.activeCount();
+		TSimMultiplexer mux = multiplexed ? new TSimMultiplexer() : null;
+		final TSimInterface[] tsis = new TSimInterface[sims];
+		for (int i = 0; i < sims; i++) {
+			tsis[i] = new EchoSimulator(mux).getInterface();
+		}
+		// Less the simulators, which tsim would run elsewhere.
+		int threads = Thread.activeCount() - before - sims;
+		final int perSim = 200000 / sims;
+		final long[] nanos = new long[sims * perSim];
+		Thread[] callers = new Thread[sims];
+		for (int i = 0; i < sims; i++) {
+			final int sim = i;
+			callers[i] = new Thread() {
+				public void run() {
+					try {
+						TSimInterface tsi = tsis[sim];
+						for (int n = -perSim / 5; n < perSim; n++) {
+							long start = System.nanoTime();
+							tsi.setSpeed(1, 10 + n % 2);
+							if (n >= 0) {
+								nanos[sim * perSim + n] = System.nanoTime() - start;
+							}
+						}
+					} catch (CommandException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread t : callers) t.start();
+		for (Thread t : callers) t.join();
+		long time = System.nanoTime() - start;
+		String param = sims + (multiplexed ? " multiplexed" : " threaded");
+		report("connections", param, "client threads", threads, "threads");
+		report("connections", param, "throughput",
+				nanos.length * 1.2e9 / time, "cmd/s");
+		reportLatencies("connections", param, nanos);
+		if (mux != null) mux.close();
+	}
+
+	/** Sensor events per second delivered to the given number of trains,
+	 *  each train having its own thread calling getSensor.
+	 */
+	static void dispatch(int trains) throws Exception {
+		final int perTrain = Math.max(200, 200000 / trains);
+		byte[] text = sensorText(trains, perTrain);
+		double best = 0;
+		for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+			Pipe pipe = Pipe.open();
+			final TSimInterface tsi = TSimInterface.connect(
+					Channels.newInputStream(pipe.source()), new ByteArrayOutputStream());
+			final CountDownLatch done = new CountDownLatch(trains);
+			for (int t = 1; t <= trains; t++) {
+				final int id = t;
+				Thread consumer = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < perTrain; i++) tsi.getSensor(id);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+						done.countDown();
+					}
+				};
+				consumer.setDaemon(true);
+				consumer.start();
+			}
+			OutputStream out = Channels.newOutputStream(pipe.sink());
+			long start = System.nanoTime();
+			out.write(text);
+			done.await();
+			long time = System.nanoTime() - start;
+			if (run >= WARMUP_RUNS)
+				best = Math.max(best, (double) trains * perTrain * 1e9 / time);
+		}
+		report("dispatch", trains + " trains", "throughput", best, "events/s");
+	}
+
+	/** A critical section as used by the trains.
+	 */
+	interface Section {
+		void enter() throws InterruptedException;
+		void leave();
+	}
+
+	/** Time from one train leaving a section until a train waiting for it
+	 *  is let in. Two threads take turns holding the section; the holder
+	 *  waits until the other one is blocked before it leaves.
+	 */
+	static void handoff(String name, final Section section) throws Exception {
+		final int handoffs = 20000;
+		final long[] nanos = new long[handoffs];
+		final int[] count = new int[1];
+		final long[] leftAt = new long[1];
+		final int[] lastHolder = new int[] { -1 };
+		final Thread[] threads = new Thread[2];
+		for (int t = 0; t < 2; t++) {
+			final int me = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						while (true) {
+							section.enter();
+							long now = System.nanoTime();
+							synchronized (count) {
+								if (count[0] == handoffs) {
+									section.leave();
+									return;
+								}
+								if (lastHolder[0] >= 0 && lastHolder[0] != me)
+									nanos[count[0]++] = now - leftAt[0];
+								lastHolder[0] = me;
+							}
+							Thread other = threads[1 - me];
+							while (other.getState() != Thread.State.WAITING
+									&& other.isAlive()) {
+								Thread.onSpinWait();
+							}
+							synchronized (count) {
+								leftAt[0] = System.nanoTime();
+							}
+							section.leave();
+						}
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			};
+		}
+		threads[0].start();
+		threads[1].start();
+		threads[0].join();
+		threads[1].join();
+		reportLatencies("handoff", name, Arrays.copyOf(nanos, count[0]));
+	}
+
+	/** Returns protocol text with the given number of messages, mostly
+	 *  sensor events with some command replies and crashes.
+	 */
+	static byte[] protocolText(int messages, int trains) {
+		StringBuilder sb = new StringBuilder();
+		Random random = new Random(1);
+		for (int i = 0; i < messages; i++) {
+			int r = random.nextInt(100);
+			if (r < 70) {
+				sb.append("Sensor ").append(1 + random.nextInt(trains)).append(' ')
+						.append(random.nextInt(20)).append(' ')
+						.append(random.nextInt(15))
+						.append(random.nextBoolean() ? " active\n" : " inactive\n");
+			} else if (r < 98) {
+				sb.append("SuccessStatus\n");
+			} else if (r < 99) {
+				sb.append("IllegalSwitchingStatus\n");
+			} else {
+				sb.append("TrainCollisionEvent ")
+						.append(1 + random.nextInt(trains)).append('\n');
+			}
+		}
+		return sb.toString().getBytes();
+	}
+
+	/** Returns sensor events for the trains, taking turns, with the given
+	 *  number of events per train.
+	 */
+	static byte[] sensorText(int trains, int perTrain) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < perTrain; i++) {
+			for (int t = 1; t <= trains; t++) {
+				sb.append("Sensor ").append(t).append(' ').append(i % 20)
+						.append(' ').append(t % 15)
+						.append((i & 1) == 0 ? " active\n" : " inactive\n");
+			}
+		}
+		return sb.toString().getBytes();
+	}
+}
@@ -0,0 +1,176 @@
+import java.awt.*;
+
+import TSim.*;
+import static TSim.SensorEvent.*;
+
+/** The sensors and switches a layout of trains is controlled by, in the
+ *  order Train expects them. A topology is never changed; a layout is
+ *  given a new one instead, which each train takes up when it next turns
+ *  around at a station, so that sensors can be moved while the trains
+ *  run. The sections are numbered the same in every topology, so what
+ *  the trains hold is kept.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class Topology {
+
+	/** A layout whose topology can be replaced while its trains run.
+	 */
+	public interface Holder {
+
+		Topology topology();
+
+		/** Replaces the topology. Each train takes up the new one when it
+		 *  next turns around at a station, and keeps the sections it holds.
+		 */
+		void reload(Topology topology);
+	}
+
+	/** The most trains a layout can run safely; a map with more trains
+	 *  needs more layouts, such as the copies placed by MapGenerator. Only the upper station
+	 *  tracks and the critical sections are guarded, so a third train can
+	 *  run into a train on a lower station track; ModelChecker finds such
+	 *  collisions on Lab1.map with three trains and none with two.
+	 */
+	public static final int MAX_TRAINS = 2;
+
+	/** The highest speed the sensors of Lab1.map were placed for, as
+	 *  capped by Lab1 and Lab2.
+	 */
+	public static final int LAB1_MAX_SPEED = 20;
+
+	/** The room of the sensors of Lab1.map, which are at least three tiles
+	 *  from the switches and crossings. */
+	public static final double LAB1_ROOM = 3 * Physics.RAIL_WIDTH
+			- Physics.RAIL_WIDTH / 2;
+
+	/** The sensors, ordered as Train.defaultStations and
+	 *  Train.defaultCriticals.
+	 */
+	final SensorEvent[] stations;
+	final SensorEvent[] criticals;
+
+	/** The switches, ordered as Train.defaultSwitches.
+	 */
+	final Dimension[] switches;
+
+	/** The distance in pixels from any critical section sensor to half a
+	 *  tile before the switch or crossing it guards.
+	 */
+	final double room;
+
+	/** Accepts the active triggers of the sensors above. */
+	final SensorSet filter;
+
+	/** Creates a topology.
+	 *
+	 *  @throws IllegalArgumentException if the number of sensors or
+	 *  		switches is not that of Lab1.map.
+	 */
+	public Topology(SensorEvent[] stations, SensorEvent[] criticals,
+			Dimension[] switches, double room) {
+		if (stations.length != Train.defaultStations.length
+				|| criticals.length != Train.defaultCriticals.length
+				|| switches.length != Train.defaultSwitches.length)
+			throw new IllegalArgumentException("expected "
+					+ Train.defaultStations.length + " station and "
+					+ Train.defaultCriticals.length + " critical sensors and "
+					+ Train.defaultSwitches.length + " switches");
+		this.stations = stations.clone();
+		this.criticals = criticals.clone();
+		this.switches = switches.clone();
+		this.room = room;
+		filter = new SensorSet(ACTIVE, stations, criticals);
+	}
+
+	/** Returns the topology of a map whose sensors may have been moved
+	 *  along their tracks, as found by SensorPlacer, with the switches of
+	 *  Lab1.map.
+	 *
+	 *  @throws IllegalArgumentException if the sensors cannot be found.
+	 */
+	public static Topology of(TrainLineMap map) {
+		return SensorPlacer.topology(map);
+	}
+
+	/** Returns the highest speed the trains may run at. On the sensors of
+	 *  Lab1.map it is LAB1_MAX_SPEED, as in the lab. Otherwise it is the
+	 *  highest speed a train can stop from within the room of the sensors,
+	 *  which is the speed SensorPlacer validates a placement at.
+	 */
+	public int maxSpeed() {
+		if (hasLab1Sensors()) return LAB1_MAX_SPEED;
+		int v = 0;
+		while (SpeedProfile.stoppingDistance(v + 1) <= room) v++;
+		return v;
+	}
+
+	/** Returns whether the sensors are those of Lab1.map, or of a copy of
+	 *  it placed elsewhere as by MapGenerator, for which the speed of the
+	 *  trains is capped at LAB1_MAX_SPEED.
+	 */
+	public boolean hasLab1Sensors() {
+		int dx = stations[0].getXpos() - Train.defaultStations[0].getXpos();
+		int dy = stations[0].getYpos() - Train.defaultStations[0].getYpos();
+		return same(stations, Train.defaultStations, dx, dy)
+				&& same(criticals, Train.defaultCriticals, dx, dy);
+	}
+
+	private static boolean same(SensorEvent[] a, SensorEvent[] b, int dx,
+			int dy) {
+		for (int i = 0; i < a.length; i++) {
+			if (a[i].getXpos() != b[i].getXpos() + dx
+					|| a[i].getYpos() != b[i].getYpos() + dy)
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the index of the sensor at the place of an event, counting
+	 *  the station sensors first and then the critical section sensors, or
+	 *  -1 if there is none.
+	 */
+	int indexOf(SensorEvent e) {
+		for (int i = 0; i < stations.length + criticals.length; i++) {
+			if (at(sensor(i), e)) return i;
+		}
+		return -1;
+	}
+
+	/** Returns the sensor with an index as given by indexOf.
+	 */
+	SensorEvent sensor(int i) {
+		return i < stations.length ? stations[i]
+				: criticals[i - stations.length];
+	}
+
+	/** Returns whether two sensor events are at the same place.
+	 */
+	static boolean at(SensorEvent a, SensorEvent b) {
+		return a.getXpos() == b.getXpos() && a.getYpos() == b.getYpos();
+	}
+
+	/** Returns the topology moved by the given number of tiles.
+	 */
+	public Topology translate(int dx, int dy) {
+		return new Topology(translate(stations, dx, dy),
+				translate(criticals, dx, dy), translate(switches, dx, dy), room);
+	}
+
+	private static SensorEvent[] translate(SensorEvent[] sensors, int dx,
+			int dy) {
+		SensorEvent[] moved = new SensorEvent[sensors.length];
+		for (int i = 0; i < sensors.length; i++) {
+			moved[i] = new SensorEvent(0, sensors[i].getXpos() + dx,
+					sensors[i].getYpos() + dy, INACTIVE);
+		}
+		return moved;
+	}
+
+	private static Dimension[] translate(Dimension[] points, int dx, int dy) {
+		Dimension[] moved = new Dimension[points.length];
+		for (int i = 0; i < points.length; i++)
+			moved[i] = new Dimension(points[i].width + dx, points[i].height + dy);
+		return moved;
+	}
+}
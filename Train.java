@@ -12,101 +12,191 @@ import static TSim.SensorEvent.*;
  *
  *  @author Dennis Bennhage & Hampus Lidin
  */
-public class Train extends Thread {
+public class Train extends TrainController {
 
-	public int simSpeed;
-
-	private int id;
-	private int speed;
-	private TSimInterface tsi;
-	private Boolean enteringStation = false;
-	private Boolean isInCritical = false;
-
-	/** The critical section semaphores.
+	/** The critical section semaphores of the layout.
 	 */
-	private static final Semaphore[] critSems = new Semaphore[]{
-		new Semaphore(1),	// Cross-section semaphore
-		new Semaphore(1),	// Station 1 merge section semaphore
-		new Semaphore(1),	// Station 2 merge section semaphore
-		new Semaphore(1)	// Two-track section semaphore
-	};
+	private final Semaphore[] critSems;
 
-	/** The station semaphores.
+	/** The station sensors of Lab1.map, two for each of station 1 and
+	 *  station 2.
 	 */
-	private static final Semaphore[] statSems = new Semaphore[]{
-		new Semaphore(0),	// Train 1 is initially at upper station 1
-		new Semaphore(0) 	// Train 2 is initially at upper station 2
-	};
-
-	/** A list of station sensors.
-	 */
-	public final SensorEvent[] stations =
+	public static final SensorEvent[] defaultStations =
 		new SensorEvent[] {
-			new SensorEvent(id,14,3,INACTIVE),
-			new SensorEvent(id,14,5,INACTIVE),
-			new SensorEvent(id,14,11,INACTIVE),
-			new SensorEvent(id,14,13,INACTIVE),
+			new SensorEvent(0,14,3,INACTIVE),
+			new SensorEvent(0,14,5,INACTIVE),
+			new SensorEvent(0,14,11,INACTIVE),
+			new SensorEvent(0,14,13,INACTIVE),
 	};
 
-	/** A list of critical section sensors.
+	/** The critical section sensors of Lab1.map, in the order that
+	 *  checkEnvironment expects: four for each of the cross-section, the
+	 *  station 1 merge and the station 2 merge.
 	 */
-	public final SensorEvent[] criticals =
+	public static final SensorEvent[] defaultCriticals =
 			new SensorEvent[] {
 				// Critical section, cross-section
-				new SensorEvent(id,6,5,INACTIVE),
-				new SensorEvent(id,9,5,INACTIVE),
-				new SensorEvent(id,12,7,INACTIVE),
-				new SensorEvent(id,11,8,INACTIVE),
+				new SensorEvent(0,6,5,INACTIVE),
+				new SensorEvent(0,9,5,INACTIVE),
+				new SensorEvent(0,12,7,INACTIVE),
+				new SensorEvent(0,11,8,INACTIVE),
 				// Critical section, station 1 merge
-				new SensorEvent(id,14,7,INACTIVE),
-				new SensorEvent(id,15,8,INACTIVE),
-				new SensorEvent(id,12,9,INACTIVE),
-				new SensorEvent(id,13,10,INACTIVE),
+				new SensorEvent(0,14,7,INACTIVE),
+				new SensorEvent(0,15,8,INACTIVE),
+				new SensorEvent(0,12,9,INACTIVE),
+				new SensorEvent(0,13,10,INACTIVE),
 				// Critical section, station 2 merge
-				new SensorEvent(id,7,9,INACTIVE),
-				new SensorEvent(id,6,10,INACTIVE),
-				new SensorEvent(id,6,11,INACTIVE),
-				new SensorEvent(id,4,13,INACTIVE)
+				new SensorEvent(0,7,9,INACTIVE),
+				new SensorEvent(0,6,10,INACTIVE),
+				new SensorEvent(0,6,11,INACTIVE),
+				new SensorEvent(0,4,13,INACTIVE)
 	};
 
-	/** A list of coordinates of the switches.
+	/** The switches of Lab1.map, from station 1 to station 2.
 	 */
-	private final Dimension[] switches = new Dimension[]{
+	public static final Dimension[] defaultSwitches = new Dimension[]{
 			new Dimension(17, 7),
 			new Dimension(15, 9),
 			new Dimension(4, 9),
 			new Dimension(3, 11)
 	};
 
+	/** The names of the critical sections, in the order of their sensors
+	 *  in defaultCriticals, followed by the two-track section.
+	 */
+	static final String[] criticalNames = {
+		"cross-section", "station 1 merge", "station 2 merge", "two-track"
+	};
+
+	/** The semaphores shared by the trains running on one simulator, one
+	 *  for each section of TrainController.Layout. The upper tracks are
+	 *  free until a train is placed on one.
+	 */
+	public static class Layout extends TrainController.Layout {
+
+		/** The critical section and station semaphores.
+		 */
+		final Semaphore[] critSems;
+		final Semaphore[] statSems;
+
+		/** Creates a layout for the sensors of Lab1.map, which are at least
+		 *  three tiles from the switches and crossings.
+		 */
+		public Layout() {
+			this(defaultStations, defaultCriticals, Topology.LAB1_ROOM);
+		}
+
+		/** Creates a layout for a map where the sensors have been moved
+		 *  along the same tracks.
+		 *
+		 *  @param stations the station sensors, ordered as defaultStations.
+		 *  @param criticals the critical section sensors, ordered as
+		 *  	   defaultCriticals.
+		 *  @param room the distance in pixels from any critical section
+		 *  	   sensor to half a tile before the point it guards.
+		 */
+		public Layout(SensorEvent[] stations, SensorEvent[] criticals,
+				double room) {
+			this(new Topology(stations, criticals, defaultSwitches, room));
+		}
+
+		/** Creates a layout for a topology.
+		 */
+		public Layout(Topology topology) {
+			super(topology);
+			critSems = new Semaphore[criticalCount];
+			statSems = new Semaphore[stationCount];
+			for (int i = 0; i < critSems.length; i++)
+				critSems[i] = new Semaphore(1);
+			for (int i = 0; i < statSems.length; i++)
+				statSems[i] = new Semaphore(1);
+		}
+
+		/** Returns a layout with the same sensors and switches moved by the
+		 *  given number of tiles, for a copy of the map placed elsewhere in
+		 *  a larger map. The new layout has semaphores of its own.
+		 */
+		public Layout translate(int dx, int dy) {
+			Layout l = new Layout(topology().translate(dx, dy));
+			l.adaptive = adaptive;
+			return l;
+		}
+
+		public Layout remote(SectionLockClient locks, String name) {
+			Layout l = new Layout(topology());
+			l.lockOn(this, locks, name);
+			for (int i = 0; i < critSems.length; i++)
+				l.critSems[i] = locks.semaphore(name + "/" + i);
+			for (int i = 0; i < statSems.length; i++)
+				l.statSems[i] = locks.semaphore(name + "/" + (critSems.length + i));
+			return l;
+		}
+
+		boolean tryTake(int section) {
+			return semaphore(section).tryAcquire();
+		}
+
+		boolean tryTake(int section, long millis)
+				throws InterruptedException {
+			return semaphore(section).tryAcquire(millis, TimeUnit.MILLISECONDS);
+		}
+
+		void take(int section) throws InterruptedException {
+			semaphore(section).acquire();
+		}
+
+		void give(int section) {
+			semaphore(section).release();
+		}
+
+		private Semaphore semaphore(int section) {
+			return section < critSems.length ? critSems[section]
+					: statSems[section - critSems.length];
+		}
+	}
+
+	/** The layout of the trains controlled through tsim.
+	 */
+	private static final Layout defaultLayout = new Layout();
+
 	/** Creates a new instance of a train.
 	 *
 	 *  @param id the train id.
 	 *  @param speed the speed in which the train will be traveling in.
 	 */
 	public Train(int id, int speed, int simSpeed) {
-		tsi = TSimInterface.getInstance();
-		this.id = id;
-		this.speed = speed;
-		this.simSpeed = simSpeed;
+		this(id, speed, simSpeed, TSimInterface.getInstance(), defaultLayout);
 	}
 
-	/** Starts the train with its specified speed.
+	/** Creates a new instance of a train running on a given simulator.
+	 *
+	 *  @param id the train id.
+	 *  @param speed the speed in which the train will be traveling in.
+	 *  @param tsi the interface to the simulator.
+	 *  @param layout the semaphores shared with the other trains on the same
+	 *  	   simulator.
 	 */
-	public void run() {
-		try {
-			tsi.setSpeed(id, speed);
-		} catch (CommandException e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
-		while (true) {
-			try {
-				checkEnvironment();
-			} catch (CommandException | InterruptedException e) {
-				e.printStackTrace();
-				System.exit(1);
-			}
-		}
+	public Train(int id, int speed, int simSpeed, TSimInterface tsi,
+			Layout layout) {
+		// Train n initially holds upper station n.
+		this(id, speed, simSpeed, tsi, layout,
+				id >= 1 && id <= layout.stationCount() ? id - 1 : -1);
+	}
+
+	/** Creates a new instance of a train starting at a given station.
+	 *
+	 *  @param id the train id.
+	 *  @param speed the speed in which the train will be traveling in.
+	 *  @param tsi the interface to the simulator.
+	 *  @param layout the semaphores shared with the other trains on the same
+	 *  	   simulator.
+	 *  @param startStation the index of the station whose upper track the
+	 *  	   train starts on, or -1 if it starts somewhere else.
+	 */
+	public Train(int id, int speed, int simSpeed, TSimInterface tsi,
+			Layout layout, int startStation) {
+		super(id, speed, simSpeed, tsi, layout, startStation);
+		this.critSems = layout.critSems;
 	}
 
 	/** Returns the critical section index.
@@ -137,8 +227,7 @@ public class Train extends Thread {
 	 *  @return The station index if 'e' is in 'stations', otherwise -1.
 	 */
 	private int getStationIndex(SensorEvent e) {
-		// The number of stations is 4.
-		for (int i = 0; i < 4; i++) {
+		for (int i = 0; i < stations.length; i++) {
 			if (sensorEqual(e,stations[i])) return i;
 		}
 		return -1;	// Returns -1 if 'e' isn't in 'stations'.
@@ -167,31 +256,6 @@ public class Train extends Thread {
 		return e1.getXpos() == e2.getXpos() && e1.getYpos() == e2.getYpos();
 	}
 
-	/** Requests to pass through a critical section by asking the semaphore of
-	 *  that section for a permit.
-	 *
-	 *  @param sectionNumber the number associated with the critical
-	 *  	   section.
-	 * @throws CommandException
-	 * @throws InterruptedException
-	 */
-	private void request(int sectionNumber)
-			throws CommandException, InterruptedException {
-		tsi.setSpeed(id, 0);
-		critSems[sectionNumber].acquire();
-		tsi.setSpeed(id, speed);
-	}
-
-	/** Releases the permit for the train from the semaphore of a particular
-	 *  critical section
-	 *
-	 *  @param sectionNumber the number associated with the critical
-	 *  	   section.
-	 */
-	private void signal(int sectionNumber) {
-		critSems[sectionNumber].release();
-	}
-
 	/** Sets the two track section switches based on the vacancy of the track
 	 *  and in which direction the train is coming from.
 	 *
@@ -209,7 +273,8 @@ public class Train extends Thread {
 		if (!(direction == 0 || direction == 1))
 			throw new IllegalArgumentException();
 
-		if (critSems[3].tryAcquire()) {
+		if ((held & 1 << 3) != 0 || critSems[3].tryAcquire()) {
+			if ((held & 1 << 3) == 0) acquired(3);
 //			System.err.println("Permit acquired! " + critSems[3].availablePermits() + " left.");
 			if (direction == 1)
 				tsi.setSwitch(switches[1].width, switches[1].height, swR);
@@ -227,22 +292,47 @@ public class Train extends Thread {
 	 *  @throws CommandException
 	 *  @throws InterruptedException
 	 */
-	private void checkEnvironment()
+	void checkEnvironment()
+			throws CommandException, InterruptedException {
+		handle(tsi.getSensor(id));
+	}
+
+	/** Acts on a sensor. The sensor is checkpointed while it is acted upon,
+	 *  so that a restored train acts on it again; the steps taken before
+	 *  the checkpoint then change nothing.
+	 *
+	 *  @throws CommandException
+	 *  @throws InterruptedException
+	 */
+	void handle(SensorEvent sensor)
+			throws CommandException, InterruptedException {
+		pending = sensorIndex(sensor);
+		// A sensor that was moved away by a reload, or was already acted
+		// on at its other place.
+		if (pending < 0) return;
+		save();
+		act(sensor(pending));
+		pending = -1;
+		save();
+	}
+
+	/** Acts on a sensor, as described for checkEnvironment.
+	 *
+	 *  @throws CommandException
+	 *  @throws InterruptedException
+	 */
+	private void act(SensorEvent sensor)
 			throws CommandException, InterruptedException {
 		int swL = TSimInterface.SWITCH_LEFT;
 		int swR = TSimInterface.SWITCH_RIGHT;
 
-		SensorEvent sensor = tsi.getSensor(id);
 		// A station sensor triggered.
 		if (isStation(sensor)) {
 			if (enteringStation) {
 //				System.err.println("Train " + id +" entering station "
 //						+ (getStationIndex(sensor) + 1));
 				enteringStation = false;
-				tsi.setSpeed(id, 0);
-				sleep(2000 + 2 * simSpeed * Math.abs(speed));
-				speed = -speed;
-				tsi.setSpeed(id, speed);
+				turnAround();
 			}
 		}
 		// We only check critical sections on active sensor triggers.
@@ -254,34 +344,34 @@ public class Train extends Thread {
 						sensorEqual(sensor, criticals[1]) ||
 						sensorEqual(sensor, criticals[2]) ||
 						sensorEqual(sensor, criticals[3])) {
-					request(0);	// Requesting pass-through for cross-section
+					if (!request(0)) return;	// Requesting pass-through for cross-section
 				}
 				// Exiting upper station 1 and entering station 1 merge section
 				else if (sensorEqual(sensor, criticals[4])) {
-					request(1);	// Requesting pass-through for station 1 merge
+					if (!request(1)) return;	// Requesting pass-through for station 1 merge
 					tsi.setSwitch(switches[0].width, switches[0].height, swR);
 					setTwoTrackSwitches(1);
-					statSems[0].release();
+					leaveStation(0);
 //					System.err.println("Upper station 1 is now vacant.");
 				}
 				// Exiting lower station 1 and entering station 1 merge section
 				else if (sensorEqual(sensor, criticals[5])) {
-					request(1);	// Requesting pass-through for station 1 merge
+					if (!request(1)) return;	// Requesting pass-through for station 1 merge
 					tsi.setSwitch(switches[0].width, switches[0].height, swL);
 					setTwoTrackSwitches(1);
 //					System.err.println("Lower station 1 is now vacant.");
 				}
 				// Exiting upper station 2 and entering station 2 merge section
 				else if (sensorEqual(sensor, criticals[10])) {
-					request(2);	// Requesting pass-through for station 2 merge
+					if (!request(2)) return;	// Requesting pass-through for station 2 merge
 					tsi.setSwitch(switches[3].width, switches[3].height, swL);
 					setTwoTrackSwitches(0);
-					statSems[1].release();
+					leaveStation(1);
 //					System.err.println("Upper station 2 is now vacant.");
 				}
 				// Exiting lower station 2 and entering station 2 merge section
 				else if (sensorEqual(sensor, criticals[11])) {
-					request(2);	// Requesting pass-through for station 2 merge
+					if (!request(2)) return;	// Requesting pass-through for station 2 merge
 					tsi.setSwitch(switches[3].width, switches[3].height, swR);
 					setTwoTrackSwitches(0);
 //					System.err.println("Lower station 2 is now vacant.");
@@ -289,15 +379,15 @@ public class Train extends Thread {
 				// Entering station 1 merge section and heading towards station
 				else if (sensorEqual(sensor, criticals[6]) ||
 						sensorEqual(sensor, criticals[7])) {
-					request(1);	// Requesting pass-through for station 1 merge
+					if (!request(1)) return;	// Requesting pass-through for station 1 merge
 					if (sensorEqual(sensor, criticals[6])) {
-						critSems[3].release();
+						signal(3);
 //						System.err.println("Permit released! " + critSems[3].availablePermits() + " left.");
 						tsi.setSwitch(switches[1].width, switches[1].height, swR);
 					} else {
 						tsi.setSwitch(switches[1].width, switches[1].height, swL);
 					}
-					if (statSems[0].tryAcquire()) {
+					if (tryEnterStation(0)) {
 						tsi.setSwitch(switches[0].width, switches[0].height, swR);
 					} else {
 						tsi.setSwitch(switches[0].width, switches[0].height, swL);
@@ -307,15 +397,15 @@ public class Train extends Thread {
 				// Entering station 2 merge section and heading towards station
 				else if (sensorEqual(sensor, criticals[8]) ||
 						sensorEqual(sensor, criticals[9])) {
-					request(2);	// Requesting pass-through for station 1 merge
+					if (!request(2)) return;	// Requesting pass-through for station 1 merge
 					if (sensorEqual(sensor, criticals[8])) {
-						critSems[3].release();
+						signal(3);
 //						System.err.println("Permit released! " + critSems[3].availablePermits() + " left.");
 						tsi.setSwitch(switches[2].width, switches[2].height, swL);
 					} else {
 						tsi.setSwitch(switches[2].width, switches[2].height, swR);
 					}
-					if (statSems[1].tryAcquire()) {
+					if (tryEnterStation(1)) {
 						tsi.setSwitch(switches[3].width, switches[3].height, swL);
 					} else {
 						tsi.setSwitch(switches[3].width, switches[3].height, swR);
@@ -1,4 +1,5 @@
 import java.awt.*;
+import java.util.concurrent.*;
 
 import TSim.*;
 import static TSim.SensorEvent.*;
@@ -11,101 +12,134 @@ import static TSim.SensorEvent.*;
  * 
  *  @author Dennis Bennhage & Hampus Lidin
  */
-public class Train2 extends Thread {
+public class Train2 extends TrainController {
 
-	public int simSpeed;
-	
-	private int id;
-	private int speed;
-	private TSimInterface tsi;
-	private Boolean enteringStation = false;
-	private Boolean isInCritical = false;
-	
-	/** The critical section monitors.
+	/** The critical section monitors of the layout.
 	 */
-	private static final TrainMonitor[] critiMons = new TrainMonitor[]{
-		new TrainMonitor(),	// Cross-section monitor
-		new TrainMonitor(),	// Station 1 merge section monitor
-		new TrainMonitor(),	// Station 2 merge section monitor
-		new TrainMonitor()	// Two-track section monitor
-	};
-	
-	/** The station monitors.
-	 */
-	private static final TrainMonitor[] statMons = new TrainMonitor[]{
-		new TrainMonitor(0),	// Train 1 is initially at upper station 1
-		new TrainMonitor(0) 	// Train 2 is initially at upper station 2
-	};
-	
-	/** A list of station sensors.
-	 */
-	public final SensorEvent[] stations = 
-		new SensorEvent[] {
-			new SensorEvent(id,14,3,INACTIVE),
-			new SensorEvent(id,14,5,INACTIVE),
-			new SensorEvent(id,14,11,INACTIVE),
-			new SensorEvent(id,14,13,INACTIVE),
-	};
-	
-	/** A list of critical section sensors.
+	private final TrainMonitor[] critiMons;
+
+	/** The monitors shared by the trains running on one simulator, one for
+	 *  each section of TrainController.Layout.
 	 */
-	public final SensorEvent[] criticals =
-			new SensorEvent[] {
-				// Critical section, cross-section
-				new SensorEvent(id,6,5,INACTIVE),
-				new SensorEvent(id,9,5,INACTIVE),
-				new SensorEvent(id,12,7,INACTIVE),
-				new SensorEvent(id,11,8,INACTIVE),
-				// Critical section, station 1 merge					
-				new SensorEvent(id,14,7,INACTIVE),	
-				new SensorEvent(id,15,8,INACTIVE),			 
-				new SensorEvent(id,12,9,INACTIVE),			 
-				new SensorEvent(id,13,10,INACTIVE),	
-				// Critical section, station 2 merge
-				new SensorEvent(id,7,9,INACTIVE),	
-				new SensorEvent(id,6,10,INACTIVE),	
-				new SensorEvent(id,6,11,INACTIVE),		
-				new SensorEvent(id,4,13,INACTIVE)
-	};
-	
-	/** A list of coordinates of the switches.
+	public static class Layout extends TrainController.Layout {
+
+		/** The critical section and station monitors.
+		 */
+		final TrainMonitor[] critiMons;
+		final TrainMonitor[] statMons;
+
+		/** Creates a layout for the sensors of Lab1.map.
+		 */
+		public Layout() {
+			this(Train.defaultStations, Train.defaultCriticals,
+					Topology.LAB1_ROOM);
+		}
+
+		/** Creates a layout for a map where the sensors have been moved
+		 *  along the same tracks. The room is that of the moved sensors,
+		 *  as found by SensorPlacer, not that of Lab1.map; a map can also
+		 *  be given as Topology.of(map).
+		 *
+		 *  @param stations the station sensors, ordered as
+		 *  	   Train.defaultStations.
+		 *  @param criticals the critical section sensors, ordered as
+		 *  	   Train.defaultCriticals.
+		 *  @param room the distance in pixels from any critical section
+		 *  	   sensor to half a tile before the point it guards.
+		 */
+		public Layout(SensorEvent[] stations, SensorEvent[] criticals,
+				double room) {
+			this(new Topology(stations, criticals, Train.defaultSwitches,
+					room));
+		}
+
+		/** Creates a layout for a topology.
+		 */
+		public Layout(Topology topology) {
+			super(topology);
+			critiMons = new TrainMonitor[criticalCount];
+			statMons = new TrainMonitor[stationCount];
+			for (int i = 0; i < critiMons.length; i++)
+				critiMons[i] = new TrainMonitor();
+			for (int i = 0; i < statMons.length; i++)
+				statMons[i] = new TrainMonitor();
+		}
+
+		public Layout remote(SectionLockClient locks, String name) {
+			Layout l = new Layout(topology());
+			l.lockOn(this, locks, name);
+			for (int i = 0; i < critiMons.length; i++)
+				l.critiMons[i] = locks.monitor(name + "/" + i);
+			for (int i = 0; i < statMons.length; i++)
+				l.statMons[i] = locks.monitor(name + "/" + (critiMons.length + i));
+			return l;
+		}
+
+		boolean tryTake(int section) {
+			return monitor(section).tryEnter();
+		}
+
+		boolean tryTake(int section, long millis)
+				throws InterruptedException {
+			return monitor(section).tryEnter(millis, TimeUnit.MILLISECONDS);
+		}
+
+		void take(int section) throws InterruptedException {
+			monitor(section).enter();
+		}
+
+		void give(int section) {
+			monitor(section).leave();
+		}
+
+		private TrainMonitor monitor(int section) {
+			return section < critiMons.length ? critiMons[section]
+					: statMons[section - critiMons.length];
+		}
+	}
+
+	/** The layout of the trains controlled through tsim.
 	 */
-	private final Dimension[] switches = new Dimension[]{
-			new Dimension(17, 7),
-			new Dimension(15, 9),
-			new Dimension(4, 9),
-			new Dimension(3, 11)
-	};
-	
+	private static final Layout defaultLayout = new Layout();
+
 	/** Creates a new instance of a train.
 	 * 
 	 *  @param id the train id. 
 	 *  @param speed the speed in which the train will be traveling in.
 	 */
 	public Train2(int id, int speed, int simSpeed) {
-		tsi = TSimInterface.getInstance();
-		this.id = id;
-		this.speed = speed;
-		this.simSpeed = simSpeed;
+		this(id, speed, simSpeed, TSimInterface.getInstance(), defaultLayout);
 	}
-	
-	/** Starts the train with its specified speed.
+
+	/** Creates a new instance of a train running on a given simulator.
+	 * 
+	 *  @param id the train id. 
+	 *  @param speed the speed in which the train will be traveling in.
+	 *  @param tsi the interface to the simulator.
+	 *  @param layout the monitors shared with the other trains on the same
+	 *  	   simulator.
 	 */
-	public void run() {
-		try {
-			tsi.setSpeed(id, speed);
-		} catch (CommandException e) {
-			e.printStackTrace();
-			System.exit(1);
-		}
-		while (true) {
-			try {
-				checkEnvironment();
-			} catch (CommandException | InterruptedException e) {
-				e.printStackTrace();
-				System.exit(1);
-			}
-		}
+	public Train2(int id, int speed, int simSpeed, TSimInterface tsi,
+			Layout layout) {
+		// Train n initially holds upper station n.
+		this(id, speed, simSpeed, tsi, layout,
+				id >= 1 && id <= layout.stationCount() ? id - 1 : -1);
+	}
+
+	/** Creates a new instance of a train starting at a given station.
+	 * 
+	 *  @param id the train id. 
+	 *  @param speed the speed in which the train will be traveling in.
+	 *  @param tsi the interface to the simulator.
+	 *  @param layout the monitors shared with the other trains on the same
+	 *  	   simulator.
+	 *  @param startStation the index of the station whose upper track the
+	 *  	   train starts on, or -1 if it starts somewhere else.
+	 */
+	public Train2(int id, int speed, int simSpeed, TSimInterface tsi,
+			Layout layout, int startStation) {
+		super(id, speed, simSpeed, tsi, layout, startStation);
+		this.critiMons = layout.critiMons;
 	}
 	
 	/** Returns the critical section index.
@@ -153,31 +187,6 @@ public class Train2 extends Thread {
 		return e1.getXpos() == e2.getXpos() && e1.getYpos() == e2.getYpos();
 	}
 	
-	/** Requests to pass through a critical section by asking the monitor of
-	 *  that section for a permit.
-	 *  
-	 *  @param sectionNumber the number associated with the critical
-	 *  	   section.
-	 * @throws CommandException 
-	 * @throws InterruptedException 
-	 */
-	private void request(int sectionNumber)
-			throws CommandException, InterruptedException {
-		tsi.setSpeed(id, 0);		
-		critiMons[sectionNumber].enter();
-		tsi.setSpeed(id, speed);
-	}
-	
-	/** Releases the permit for the train from the monitor of a particular
-	 *  critical section
-	 *  
-	 *  @param sectionNumber the number associated with the critical
-	 *  	   section.
-	 */
-	private void signal(int sectionNumber) {
-		critiMons[sectionNumber].leave();
-	}
-	
 	/** Sets the two track section switches based on the vacancy of the track
 	 *  and in which direction the train is coming from.
 	 * 
@@ -195,7 +204,8 @@ public class Train2 extends Thread {
 		if (!(direction == 0 || direction == 1))
 			throw new IllegalArgumentException();
 		
-		if (critiMons[3].tryEnter()) {
+		if ((held & 1 << 3) != 0 || critiMons[3].tryEnter()) {
+			if ((held & 1 << 3) == 0) acquired(3);
 //			System.err.println("Permit acquired! " + critSems[3].availablePermits() + " left.");
 			if (direction == 1)
 				tsi.setSwitch(switches[1].width, switches[1].height, swR);
@@ -213,20 +223,43 @@ public class Train2 extends Thread {
 	 *  @throws CommandException
 	 *  @throws InterruptedException
 	 */
-	private void checkEnvironment()
+	void checkEnvironment()
+			throws CommandException, InterruptedException {
+		handle(tsi.getSensor(id));
+	}
+
+	/** Acts on a sensor, checkpointing it meanwhile, as in Train.
+	 *
+	 *  @throws CommandException
+	 *  @throws InterruptedException
+	 */
+	void handle(SensorEvent sensor)
+			throws CommandException, InterruptedException {
+		pending = sensorIndex(sensor);
+		// A sensor that was moved away by a reload, or was already acted
+		// on at its other place.
+		if (pending < 0) return;
+		save();
+		act(sensor(pending));
+		pending = -1;
+		save();
+	}
+
+	/** Acts on a sensor, as described for checkEnvironment.
+	 *
+	 *  @throws CommandException
+	 *  @throws InterruptedException
+	 */
+	private void act(SensorEvent sensor)
 			throws CommandException, InterruptedException {
 		int swL = TSimInterface.SWITCH_LEFT;
 		int swR = TSimInterface.SWITCH_RIGHT;
 		
-		SensorEvent sensor = tsi.getSensor(id);
 		// A station sensor triggered.
 		if (isStation(sensor)) {
 			if (enteringStation) {
 				enteringStation = false;
-				tsi.setSpeed(id, 0);
-				sleep(2000 + 2 * simSpeed * Math.abs(speed));
-				speed = -speed;
-				tsi.setSpeed(id, speed);
+				turnAround();
 			}
 		}
 		// We only check critical sections on active sensor triggers.
@@ -238,45 +271,45 @@ public class Train2 extends Thread {
 						sensorEqual(sensor, criticals[1]) ||
 						sensorEqual(sensor, criticals[2]) ||
 						sensorEqual(sensor, criticals[3])) {
-					request(0);	// Requesting pass-through for cross-section
+					if (!request(0)) return;	// Requesting pass-through for cross-section
 				}
 				// Exiting upper station 1 and entering station 1 merge section
 				else if (sensorEqual(sensor, criticals[4])) {
-					request(1);	// Requesting pass-through for station 1 merge
+					if (!request(1)) return;	// Requesting pass-through for station 1 merge
 					tsi.setSwitch(switches[0].width, switches[0].height, swR);
 					setTwoTrackSwitches(1);
-					statMons[0].leave();
+					leaveStation(0);
 				}
 				// Exiting lower station 1 and entering station 1 merge section
 				else if (sensorEqual(sensor, criticals[5])) {
-					request(1);	// Requesting pass-through for station 1 merge
+					if (!request(1)) return;	// Requesting pass-through for station 1 merge
 					tsi.setSwitch(switches[0].width, switches[0].height, swL);
 					setTwoTrackSwitches(1);
 				}
 				// Exiting upper station 2 and entering station 2 merge section
 				else if (sensorEqual(sensor, criticals[10])) {
-					request(2);	// Requesting pass-through for station 2 merge
+					if (!request(2)) return;	// Requesting pass-through for station 2 merge
 					tsi.setSwitch(switches[3].width, switches[3].height, swL);
 					setTwoTrackSwitches(0);
-					statMons[1].leave();
+					leaveStation(1);
 				}
 				// Exiting lower station 2 and entering station 2 merge section
 				else if (sensorEqual(sensor, criticals[11])) {
-					request(2);	// Requesting pass-through for station 2 merge
+					if (!request(2)) return;	// Requesting pass-through for station 2 merge
 					tsi.setSwitch(switches[3].width, switches[3].height, swR);
 					setTwoTrackSwitches(0);
 				}
 				// Entering station 1 merge section and heading towards station
 				else if (sensorEqual(sensor, criticals[6]) ||
 						sensorEqual(sensor, criticals[7])) {
-					request(1);	// Requesting pass-through for station 1 merge
+					if (!request(1)) return;	// Requesting pass-through for station 1 merge
 					if (sensorEqual(sensor, criticals[6])) {
-						critiMons[3].leave();
+						signal(3);
 						tsi.setSwitch(switches[1].width, switches[1].height, swR);
 					} else {
 						tsi.setSwitch(switches[1].width, switches[1].height, swL);
 					}
-					if (statMons[0].tryEnter()) {
+					if (tryEnterStation(0)) {
 						tsi.setSwitch(switches[0].width, switches[0].height, swR);
 					} else {
 						tsi.setSwitch(switches[0].width, switches[0].height, swL);
@@ -286,14 +319,14 @@ public class Train2 extends Thread {
 				// Entering station 2 merge section and heading towards station
 				else if (sensorEqual(sensor, criticals[8]) ||
 						sensorEqual(sensor, criticals[9])) {
-					request(2);	// Requesting pass-through for station 1 merge
+					if (!request(2)) return;	// Requesting pass-through for station 1 merge
 					if (sensorEqual(sensor, criticals[8])) {
-						critiMons[3].leave();
+						signal(3);
 						tsi.setSwitch(switches[2].width, switches[2].height, swL);
 					} else {
 						tsi.setSwitch(switches[2].width, switches[2].height, swR);
 					}
-					if (statMons[1].tryEnter()) {
+					if (tryEnterStation(1)) {
 						tsi.setSwitch(switches[3].width, switches[3].height, swL);
 					} else {
 						tsi.setSwitch(switches[3].width, switches[3].height, swR);
@@ -0,0 +1,581 @@
+import java.awt.*;
+
+import TSim.*;
+import static TSim.SensorEvent.*;
+
+/** What Train and Train2 have in common: the state they checkpoint, the
+ *  sections they take and release, and how they slow down for, back off
+ *  from and give up on a section. Train locks the sections with semaphores
+ *  and Train2 with monitors, through their layouts; what a train does at
+ *  each sensor is up to the subclass.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public abstract class TrainController extends Thread
+		implements WatchedTrain, Checkpoint.Restorable {
+
+	public int simSpeed;
+
+	final int id;
+	/** Read by the watchdog on the simulator reader thread. */
+	volatile int speed;
+	final TSimInterface tsi;
+	Boolean enteringStation = false;
+	Boolean isInCritical = false;
+	private volatile boolean halted = false;
+	private volatile Thread runner;
+	private int backOffs = 0;
+
+	/** The sections held, one bit each, as in the section table; read by
+	 *  the lock client when a lease is lost. */
+	volatile int held = 0;
+	/** The section whose lease was lost, or null. */
+	private volatile String lostLease;
+	/** The index of the sensor being handled, as for Checkpoint.pack. */
+	int pending = -1;
+	private boolean backingOff = false;
+	private Checkpoint checkpoint;
+	private int slot;
+
+	/** The speed a train backs off from a section at. */
+	private static final int BACK_OFF_SPEED = 5;
+
+	final SectionTable sections;
+	private final Layout layout;
+	private SpeedProfile profile;
+
+	/** The topology the train has taken up, and its station sensors,
+	 *  critical section sensors and switches. The topology is read by the
+	 *  simulator reader thread to filter the sensors.
+	 */
+	volatile Topology topology;
+	SensorEvent[] stations;
+	SensorEvent[] criticals;
+	Dimension[] switches;
+
+	/** The index of the moved sensor last acted on before the train takes
+	 *  up a reload, and the place it was acted on at, or -1.
+	 */
+	private int lastMoved = -1;
+	private SensorEvent lastMovedAt;
+
+	/** The sections and sensors shared by the trains running on one
+	 *  simulator. There is a section for each group of four critical
+	 *  section sensors, one for the two-track section, and one for the
+	 *  upper track of each station, whose two sensors come in turn. The
+	 *  critical sections are numbered first, followed by the upper station
+	 *  tracks, both here and in the section table.
+	 */
+	public abstract static class Layout implements Topology.Holder {
+
+		/** The sensors and switches, replaced as a whole by reload.
+		 */
+		private volatile Topology topology;
+
+		/** Whether trains slow down for taken sections rather than stop.
+		 */
+		volatile boolean adaptive = true;
+
+		/** The client and name the sections are locked under, for a remote
+		 *  layout, or null.
+		 */
+		SectionLockClient locks;
+		String lockName;
+
+		/** The numbers of critical sections and of stations.
+		 */
+		final int criticalCount;
+		final int stationCount;
+
+		/** The record of which train holds and waits for which section.
+		 */
+		final SectionTable sections;
+
+		/** Creates a layout for a topology, with its sections named.
+		 */
+		Layout(Topology topology) {
+			this.topology = topology;
+			criticalCount = topology.criticals.length / 4 + 1;
+			stationCount = topology.stations.length / 2;
+			String[] names = new String[criticalCount + stationCount];
+			for (int i = 0; i < criticalCount; i++)
+				names[i] = Train.criticalNames[i];
+			for (int i = 0; i < stationCount; i++)
+				names[criticalCount + i] = "upper station " + (i + 1);
+			sections = new SectionTable(names);
+		}
+
+		/** Takes a section if it is free.
+		 */
+		abstract boolean tryTake(int section);
+
+		/** Takes a section, waiting at most the given time for it.
+		 */
+		abstract boolean tryTake(int section, long millis)
+				throws InterruptedException;
+
+		/** Takes a section, waiting for as long as it is taken.
+		 */
+		abstract void take(int section) throws InterruptedException;
+
+		/** Gives up a section.
+		 */
+		abstract void give(int section);
+
+		/** Places a train on the upper track of a station before the
+		 *  trains are started.
+		 *
+		 *  @param trainId the train id.
+		 *  @param station the station index.
+		 *  @throws IllegalStateException if another train is there.
+		 */
+		public void startAt(int trainId, int station) {
+			if (!tryTake(criticalCount + station))
+				throw new IllegalStateException("upper station "
+						+ (station + 1) + " already has a train");
+			sections.acquired(trainId, criticalCount + station);
+		}
+
+		/** Returns the number of stations.
+		 */
+		public int stationCount() {
+			return stationCount;
+		}
+
+		/** Returns the sensors and switches the trains are controlled by.
+		 */
+		public Topology topology() {
+			return topology;
+		}
+
+		/** Replaces the sensors and switches while the trains run. Each
+		 *  train takes up the new ones when it next turns around at a
+		 *  station, having passed the old place of every moved sensor on
+		 *  its way, and keeps the sections it holds, since they are
+		 *  numbered the same. Until then a train acts on a moved sensor at
+		 *  whichever of its old and new places it comes to first, so that
+		 *  a train between the two still finds it.
+		 */
+		public void reload(Topology topology) {
+			this.topology = topology;
+		}
+
+		/** Sets whether trains finding a section taken slow down to arrive
+		 *  when it is expected to be free, or stop at once. They always
+		 *  stop if the section is not free in time.
+		 */
+		public void setAdaptive(boolean adaptive) {
+			this.adaptive = adaptive;
+		}
+
+		/** Returns a layout with the same sensors and switches whose
+		 *  sections are locked on a SectionLockServer, so that it can be
+		 *  shared by trains in other processes. Its sections are named
+		 *  after the layout and numbered as in the section table. A train
+		 *  that loses the lease on a section it holds is stopped for good,
+		 *  since the section may have been given to another process.
+		 *
+		 *  @param name the name of the layout, the same in every process.
+		 */
+		public abstract Layout remote(SectionLockClient locks, String name);
+
+		/** Takes the settings of the layout this one is a remote copy of,
+		 *  and the client and name its sections are locked under.
+		 */
+		void lockOn(Layout local, SectionLockClient locks, String name) {
+			adaptive = local.adaptive;
+			this.locks = locks;
+			lockName = name;
+		}
+	}
+
+	/** Creates a train starting at a given station.
+	 *
+	 *  @param id the train id.
+	 *  @param speed the speed in which the train will be traveling in.
+	 *  @param tsi the interface to the simulator.
+	 *  @param layout the sections shared with the other trains on the same
+	 *  	   simulator.
+	 *  @param startStation the index of the station whose upper track the
+	 *  	   train starts on, or -1 if it starts somewhere else.
+	 */
+	TrainController(int id, int speed, int simSpeed, TSimInterface tsi,
+			Layout layout, int startStation) {
+		this.tsi = tsi;
+		this.id = id;
+		this.speed = speed;
+		this.simSpeed = simSpeed;
+		this.sections = layout.sections;
+		this.layout = layout;
+		refresh();
+		// Only active triggers of our own sensors are acted upon, as they
+		// are when the event arrives, including those of a reload not yet
+		// taken up.
+		tsi.subscribe(id, new SensorFilter() {
+			public boolean accept(SensorEvent e) {
+				return TrainController.this.topology.filter.accept(e)
+						|| TrainController.this.layout.topology().filter
+								.accept(e);
+			}
+		});
+		if (startStation >= 0) {
+			layout.startAt(id, startStation);
+			held |= 1 << layout.criticalCount + startStation;
+		}
+		if (layout.locks != null) watchLeases(layout.locks, layout.lockName);
+	}
+
+	/** Stops the train for good if the lease on a section it holds is
+	 *  lost. The train is stopped at once by the lock client, and again
+	 *  by the train thread as it ends, after any command of its own.
+	 */
+	private void watchLeases(SectionLockClient locks, final String name) {
+		locks.addLossListener(new SectionLockClient.LossListener() {
+			public void lost(String section) {
+				if (!section.startsWith(name + "/")) return;
+				int s = Integer.parseInt(section.substring(name.length() + 1));
+				if ((held & 1 << s) == 0) return;
+				stopForGood("the lease on " + section);
+			}
+
+			public void disconnected() {
+				stopForGood("the section lock server");
+			}
+		});
+	}
+
+	/** Stops controlling the train and stops the train, whatever it was
+	 *  doing.
+	 */
+	private void stopForGood(String lost) {
+		lostLease = lost;
+		halt();
+		try {
+			tsi.setSpeed(id, 0);
+		} catch (CommandException e) {}
+	}
+
+	/** Takes up the state saved in a checkpoint, instead of starting at a
+	 *  station. The sections the train held are taken again, and the
+	 *  sensor event it was handling is handled again when it starts.
+	 */
+	public void restore(long state) {
+		for (int s = 0; s < sections.size(); s++) {
+			if ((Checkpoint.held(state) & 1 << s) == 0) continue;
+			if (!layout.tryTake(s))
+				throw new IllegalStateException("train " + id + ": "
+						+ sections.name(s) + " is already held");
+			sections.acquired(id, s);
+			held |= 1 << s;
+		}
+		int flags = Checkpoint.flags(state);
+		speed = Checkpoint.speed(state);
+		enteringStation = (flags & Checkpoint.ENTERING) != 0;
+		isInCritical = (flags & Checkpoint.IN_CRITICAL) != 0;
+		// A train backing off passes the sensor again anyway.
+		if ((flags & Checkpoint.BACKING_OFF) == 0)
+			pending = Checkpoint.pending(state);
+	}
+
+	public void checkpointTo(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+		slot = checkpoint.slot(id);
+		save();
+	}
+
+	/** Takes up the topology of the layout, if it has been reloaded.
+	 */
+	private void refresh() {
+		Topology t = layout.topology();
+		if (t == topology) return;
+		topology = t;
+		lastMoved = -1;
+		stations = t.stations;
+		criticals = t.criticals;
+		switches = t.switches;
+		profile = new SpeedProfile(t.room);
+	}
+
+	/** Returns the index of the sensor an event is acted on as, counted as
+	 *  by Topology.indexOf, or -1 if it is not acted on. Until the train
+	 *  takes up a reload, a moved sensor is found at both its old and its
+	 *  new place; as tsim may have both while the sensor is being moved,
+	 *  it is acted on only at the first of the two the train comes to.
+	 */
+	int sensorIndex(SensorEvent e) {
+		Topology next = layout.topology();
+		int i = topology.indexOf(e);
+		if (next == topology) return i;
+		if (i < 0) i = next.indexOf(e);
+		if (i < 0 || Topology.at(topology.sensor(i), next.sensor(i))) {
+			lastMoved = -1;
+			return i;
+		}
+		// The other place of the moved sensor just acted on.
+		if (i == lastMoved && !Topology.at(e, lastMovedAt)) {
+			lastMoved = -1;
+			return -1;
+		}
+		lastMoved = i;
+		lastMovedAt = e;
+		return i;
+	}
+
+	/** Returns an active trigger of the sensor of the train's topology
+	 *  with an index as given by sensorIndex.
+	 */
+	SensorEvent sensor(int index) {
+		SensorEvent s = topology.sensor(index);
+		return new SensorEvent(id, s.getXpos(), s.getYpos(), ACTIVE);
+	}
+
+	/** Saves the state of the train to its checkpoint, if any.
+	 */
+	void save() {
+		if (checkpoint == null) return;
+		int flags = (enteringStation ? Checkpoint.ENTERING : 0)
+				| (isInCritical ? Checkpoint.IN_CRITICAL : 0)
+				| (backingOff ? Checkpoint.BACKING_OFF : 0);
+		checkpoint.save(slot, Checkpoint.pack(speed, held, flags, pending));
+	}
+
+	/** Starts the train with its specified speed.
+	 */
+	public void run() {
+		// The train may be run by an executor rather than as a thread.
+		runner = Thread.currentThread();
+		try {
+			// Finish what the train was doing when it was checkpointed.
+			if (pending >= 0) handle(sensor(pending));
+			tsi.setSpeed(id, speed);
+			while (!halted) {
+				checkEnvironment();
+			}
+		} catch (CommandException | InterruptedException e) {
+			if (!halted) failed(e);
+		} finally {
+			// Stopped again after any command of the train's own.
+			if (lostLease != null) {
+				Thread.interrupted();
+				try {
+					tsi.setSpeed(id, 0);
+				} catch (CommandException e) {}
+				System.err.println("train " + id + " stopped: lost "
+						+ lostLease);
+			}
+		}
+	}
+
+	/** Stops controlling the train. The train thread ends without calling
+	 *  failed, and the train itself is left as it is.
+	 */
+	public void halt() {
+		halted = true;
+		Thread r = runner;
+		(r != null ? r : this).interrupt();
+	}
+
+	/** Called when the train has crashed or a command has failed. The train
+	 *  thread ends afterwards. By default the whole program exits.
+	 *
+	 *  @param e the exception that stopped the train.
+	 */
+	protected void failed(Exception e) {
+		e.printStackTrace();
+		System.exit(1);
+	}
+
+	/** Waits for the next sensor of the train and acts on it.
+	 *
+	 *  @throws CommandException
+	 *  @throws InterruptedException
+	 */
+	abstract void checkEnvironment()
+			throws CommandException, InterruptedException;
+
+	/** Acts on a sensor, checkpointing it meanwhile.
+	 *
+	 *  @throws CommandException
+	 *  @throws InterruptedException
+	 */
+	abstract void handle(SensorEvent sensor)
+			throws CommandException, InterruptedException;
+
+	/** Requests to pass through a critical section by asking the layout
+	 *  for it. A train finding the section taken slows down so that it
+	 *  arrives about when the section is expected to be free, and stops
+	 *  only if it is not free in time.
+	 *
+	 *  @param sectionNumber the number associated with the critical
+	 *  	   section.
+	 *  @return 'true' if the section was acquired, 'false' if the train
+	 *  		backed off instead and will ask again at the same sensor.
+	 * @throws CommandException
+	 * @throws InterruptedException
+	 */
+	boolean request(int sectionNumber)
+			throws CommandException, InterruptedException {
+		// Taken before the event was checkpointed.
+		if ((held & 1 << sectionNumber) != 0) return true;
+		if (!sections.waiting(id, sectionNumber)) {
+			backOff(sectionNumber);
+			return false;
+		}
+		backOffs = 0;
+		if (layout.tryTake(sectionNumber)) {
+			acquired(sectionNumber);
+			return true;
+		}
+		if (!approach(sectionNumber)) {
+			// Not free in time, so stop before the section and wait.
+			tsi.setSpeed(id, 0);
+			layout.take(sectionNumber);
+		}
+		acquired(sectionNumber);
+		tsi.setSpeed(id, speed);
+		return true;
+	}
+
+	/** Backs the train off from a section that it may not wait for, since
+	 *  the trains holding it wait for a section that this train holds. The
+	 *  train stops, reverses until it is behind the sensor it came past,
+	 *  waits for longer each time it has to back off, and comes forward
+	 *  again, so that the sensor asks for the section once more.
+	 *
+	 *  @param sectionNumber the number associated with the critical
+	 *  	   section.
+	 * @throws CommandException
+	 * @throws InterruptedException
+	 */
+	private void backOff(int sectionNumber)
+			throws CommandException, InterruptedException {
+		double msPerSecond = SpeedProfile.msPerSecond(simSpeed);
+		int current = Math.abs(speed);
+		int crawl = Math.min(current, BACK_OFF_SPEED);
+		backingOff = true;
+		save();
+		tsi.setSpeed(id, 0);
+		sleep((long) ((current / SpeedProfile.ACCELERATION
+				+ SpeedProfile.REACTION) * msPerSecond));
+		// The train stopped past the sensor by at most its stopping distance.
+		double distance = SpeedProfile.stoppingDistance(current)
+				+ Physics.RAIL_WIDTH;
+		tsi.setSpeed(id, -Integer.signum(speed) * crawl);
+		sleep((long) (distance / crawl * msPerSecond));
+		tsi.setSpeed(id, 0);
+		sleep((long) ((crawl / SpeedProfile.ACCELERATION
+				+ SpeedProfile.REACTION) * msPerSecond));
+		double clear = Math.max(sections.expectedRelease(sectionNumber),
+				msPerSecond);
+		backOffs = Math.min(backOffs + 1, 4);
+		sleep((long) (clear * (1 << backOffs) * (0.5 + Math.random())));
+		tsi.setSpeed(id, speed);
+		backingOff = false;
+	}
+
+	/** Slows the train down for a taken section, so that it arrives about
+	 *  when the section is expected to be free, and waits for the section
+	 *  for as long as the train can still stop before it.
+	 *
+	 *  @param sectionNumber the number associated with the critical
+	 *  	   section.
+	 *  @return 'true' if the section was acquired, 'false' if the train
+	 *  		must stop.
+	 * @throws CommandException
+	 * @throws InterruptedException
+	 */
+	private boolean approach(int sectionNumber)
+			throws CommandException, InterruptedException {
+		double clear = sections.expectedRelease(sectionNumber);
+		if (!layout.adaptive || clear < 0) return false;
+		double msPerSecond = SpeedProfile.msPerSecond(simSpeed);
+		int current = Math.abs(speed);
+		int approach = profile.approachSpeed(current, clear / msPerSecond);
+		if (approach == 0) return false;
+		if (approach != current)
+			tsi.setSpeed(id, Integer.signum(speed) * approach);
+		double wait = profile.deadline(current, approach, clear / msPerSecond);
+		return layout.tryTake(sectionNumber, (long) (wait * msPerSecond));
+	}
+
+	/** Releases a critical section held by the train.
+	 *
+	 *  @param sectionNumber the number associated with the critical
+	 *  	   section.
+	 */
+	void signal(int sectionNumber) {
+		// Released before the event was checkpointed.
+		if ((held & 1 << sectionNumber) == 0) return;
+		layout.give(sectionNumber);
+		released(sectionNumber);
+	}
+
+	/** Tries to take the upper track of a station.
+	 *
+	 *  @param station the station index.
+	 *  @return 'true' if the upper track was free, 'false' otherwise.
+	 */
+	boolean tryEnterStation(int station) {
+		int s = layout.criticalCount + station;
+		if ((held & 1 << s) != 0) return true;
+		if (!layout.tryTake(s)) return false;
+		acquired(s);
+		return true;
+	}
+
+	/** Leaves the upper track of a station.
+	 *
+	 *  @param station the station index.
+	 */
+	void leaveStation(int station) {
+		int s = layout.criticalCount + station;
+		if ((held & 1 << s) == 0) return;
+		layout.give(s);
+		released(s);
+	}
+
+	/** Stops the train at a station for 2 simulated seconds once it has
+	 *  stopped, and sends it back the way it came, on the topology of the
+	 *  layout.
+	 *
+	 *  @throws CommandException
+	 *  @throws InterruptedException
+	 */
+	void turnAround() throws CommandException, InterruptedException {
+		tsi.setSpeed(id, 0);
+		sleep((long) (2 * SpeedProfile.msPerSecond(simSpeed))
+				+ 2 * simSpeed * Math.abs(speed));
+		refresh();
+		speed = -speed;
+		tsi.setSpeed(id, speed);
+	}
+
+	/** Records that the train holds a section, in the section table and
+	 *  the checkpoint.
+	 */
+	void acquired(int section) {
+		sections.acquired(id, section);
+		held |= 1 << section;
+		save();
+	}
+
+	/** Records that the train has released a section.
+	 */
+	void released(int section) {
+		sections.released(id, section);
+		held &= ~(1 << section);
+		save();
+	}
+
+	public int getTrainId() {
+		return id;
+	}
+
+	public int getCurrentSpeed() {
+		return speed;
+	}
+
+	public String describeSections() {
+		return sections.describe(id);
+	}
+}
@@ -0,0 +1,374 @@
+import java.io.*;
+import java.util.*;
+
+/** A railroad map in the TrainLineFile format read by tsim, such as
+ *  Lab1.map. Each tile holds up to two rail types, a switch position and
+ *  possibly a sensor; the trains are listed with the position of their
+ *  engine, their number of cars and their direction.
+ *
+ *  The rail types and directions are numbered as in tsim, and the helpers
+ *  for following a rail through a tile work as in tsim's train.c.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class TrainLineMap {
+
+	public static final int NO_RAIL = 0;
+	public static final int HORIZONTAL = 1;
+	public static final int VERTICAL = 2;
+	public static final int UP_LEFT = 3;
+	public static final int UP_RIGHT = 4;
+	public static final int DOWN_LEFT = 5;
+	public static final int DOWN_RIGHT = 6;
+	public static final int UP_STOP = 7;
+	public static final int RIGHT_STOP = 8;
+	public static final int DOWN_STOP = 9;
+	public static final int LEFT_STOP = 10;
+
+	public static final String[] RAIL_NAMES = {
+		"NoRail", "HorizontalRail", "VerticalRail", "UpLeftRail",
+		"UpRightRail", "DownLeftRail", "DownRightRail", "UpStopRail",
+		"RightStopRail", "DownStopRail", "LeftStopRail"
+	};
+
+	public static final int NO_DIR = 0;
+	public static final int UP = 1;
+	public static final int RIGHT = 2;
+	public static final int DOWN = 3;
+	public static final int LEFT = 4;
+
+	public static final String[] DIRECTION_NAMES = {
+		"NoDir", "Up", "Right", "Down", "Left"
+	};
+
+	/** The switch positions, indexing the two rail types of a tile.
+	 */
+	public static final int LEFT_SWITCH = 0;
+	public static final int RIGHT_SWITCH = 1;
+
+	/** The direction a train leaves a rail in, indexed by rail type and the
+	 *  direction it entered in.
+	 */
+	private static final int[][] NEW_DIRS = {
+		//	NoDir	Up		Right	Down	Left
+		{ NO_DIR, NO_DIR, NO_DIR, NO_DIR, NO_DIR },	// NoRail
+		{ NO_DIR, NO_DIR, RIGHT, NO_DIR, LEFT },	// HorizontalRail
+		{ NO_DIR, UP, NO_DIR, DOWN, NO_DIR },		// VerticalRail
+		{ NO_DIR, NO_DIR, UP, LEFT, NO_DIR },		// UpLeftRail
+		{ NO_DIR, NO_DIR, NO_DIR, RIGHT, UP },		// UpRightRail
+		{ NO_DIR, LEFT, DOWN, NO_DIR, NO_DIR },		// DownLeftRail
+		{ NO_DIR, RIGHT, NO_DIR, NO_DIR, DOWN },	// DownRightRail
+		{ NO_DIR, NO_DIR, NO_DIR, NO_DIR, NO_DIR },	// Stop rails
+		{ NO_DIR, NO_DIR, NO_DIR, NO_DIR, NO_DIR },
+		{ NO_DIR, NO_DIR, NO_DIR, NO_DIR, NO_DIR },
+		{ NO_DIR, NO_DIR, NO_DIR, NO_DIR, NO_DIR }
+	};
+
+	/** A train as placed in the map.
+	 */
+	public static class TrainSpec {
+		public final int x, y, cars, direction;
+
+		public TrainSpec(int x, int y, int cars, int direction) {
+			this.x = x;
+			this.y = y;
+			this.cars = cars;
+			this.direction = direction;
+		}
+	}
+
+	public final int width;
+	public final int height;
+
+	private final int[][][] rails;
+	private final boolean[][] sensors;
+	private final String[][] custom;
+	private final List<TrainSpec> trains = new ArrayList<TrainSpec>();
+
+	/** Creates an empty map.
+	 */
+	public TrainLineMap(int width, int height) {
+		this.width = width;
+		this.height = height;
+		rails = new int[width][height][2];
+		sensors = new boolean[width][height];
+		custom = new String[width][height];
+	}
+
+	/** Reads a map from a file.
+	 *
+	 *  @throws IOException if the file could not be read or is not a map.
+	 */
+	public static TrainLineMap load(File file) throws IOException {
+		Reader in = new BufferedReader(new FileReader(file));
+		try {
+			return read(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Reads a map.
+	 *
+	 *  @throws IOException if the text could not be read or is not a map.
+	 */
+	public static TrainLineMap read(Reader in) throws IOException {
+		StreamTokenizer st = new StreamTokenizer(in);
+		st.resetSyntax();
+		st.wordChars(33, 126);
+		st.whitespaceChars(0, 32);
+
+		if (!"TrainLineFile".equalsIgnoreCase(word(st)))
+			throw new IOException("not a TrainLineFile");
+		if (number(st) > 2)
+			throw new IOException("unknown TrainLineFile version");
+		TrainLineMap map = new TrainLineMap(number(st), number(st));
+
+		while (true) {
+			String c = word(st);
+			if (c.equals(".")) return map;
+			if (c.equals("R")) {
+				int x = number(st), y = number(st);
+				String t = word(st);
+				if (t.equalsIgnoreCase("Custom")) {
+					map.custom[x][y] = word(st);
+				} else {
+					int n = Integer.parseInt(t);
+					for (int i = 0; i < n; i++)
+						map.setRailType(x, y, lookup(RAIL_NAMES, word(st)));
+					map.setSensor(x, y, word(st).equalsIgnoreCase("Sensor"));
+				}
+			} else if (c.equals("T")) {
+				int x = number(st), y = number(st), cars = number(st);
+				map.trains.add(new TrainSpec(x, y, cars,
+						lookup(DIRECTION_NAMES, word(st))));
+			} else {
+				throw new IOException("unexpected '" + c + "' in map");
+			}
+		}
+	}
+
+	/** Writes the map in the format read by tsim.
+	 */
+	public void write(Writer out) throws IOException {
+		PrintWriter pw = new PrintWriter(out);
+		pw.println("TrainLineFile 2");
+		pw.println(width + " " + height);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				if (custom[x][y] != null) {
+					pw.println("R " + x + " " + y + " Custom " + custom[x][y]);
+				} else if (rails[x][y][LEFT_SWITCH] != NO_RAIL) {
+					int[] r = rails[x][y];
+					pw.print("R " + x + " " + y + " "
+							+ (r[RIGHT_SWITCH] == NO_RAIL ? 1 : 2) + " "
+							+ RAIL_NAMES[r[LEFT_SWITCH]] + " ");
+					if (r[RIGHT_SWITCH] != NO_RAIL)
+						pw.print(RAIL_NAMES[r[RIGHT_SWITCH]] + " ");
+					pw.println(sensors[x][y] ? "Sensor" : "NoSensor");
+				}
+			}
+		}
+		for (TrainSpec t : trains) {
+			pw.println("T " + t.x + " " + t.y + " " + t.cars + " "
+					+ DIRECTION_NAMES[t.direction]);
+		}
+		pw.println(".");
+		pw.flush();
+	}
+
+	/** Returns a copy of the map that can be changed on its own.
+	 */
+	public TrainLineMap copy() {
+		TrainLineMap map = new TrainLineMap(width, height);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				map.rails[x][y] = rails[x][y].clone();
+				map.sensors[x][y] = sensors[x][y];
+				map.custom[x][y] = custom[x][y];
+			}
+		}
+		map.trains.addAll(trains);
+		return map;
+	}
+
+	/** Adds a rail type to a tile, the way tsim does when loading a map:
+	 *  two compatible types make a switch or a crossing, anything else
+	 *  replaces what was there.
+	 */
+	public void setRailType(int x, int y, int type) {
+		int[] r = rails[x][y];
+		int current = r[LEFT_SWITCH];
+		custom[x][y] = null;
+		if (isStop(type) || type == NO_RAIL || isStop(current)
+				|| current == NO_RAIL || r[RIGHT_SWITCH] != NO_RAIL
+				|| current == type
+				|| (current == UP_LEFT && type == DOWN_RIGHT)
+				|| (current == UP_RIGHT && type == DOWN_LEFT)
+				|| (current == DOWN_LEFT && type == UP_RIGHT)
+				|| (current == DOWN_RIGHT && type == UP_LEFT)) {
+			r[LEFT_SWITCH] = type;
+			r[RIGHT_SWITCH] = NO_RAIL;
+			sensors[x][y] = false;
+		} else {
+			r[RIGHT_SWITCH] = type;
+			if (!isCrossing(x, y)) sortSwitch(r);
+		}
+	}
+
+	/** Adds or removes a sensor. Switches, crossings and stop rails cannot
+	 *  have sensors.
+	 */
+	public void setSensor(int x, int y, boolean sensor) {
+		int[] r = rails[x][y];
+		if (!sensor || (r[LEFT_SWITCH] != NO_RAIL && r[RIGHT_SWITCH] == NO_RAIL
+				&& !isStop(r[LEFT_SWITCH]))) {
+			sensors[x][y] = sensor;
+		}
+	}
+
+	/** Adds a train.
+	 */
+	public void addTrain(TrainSpec train) {
+		trains.add(train);
+	}
+
+	/** Returns the trains, in the order tsim numbers them from 1.
+	 */
+	public List<TrainSpec> getTrains() {
+		return Collections.unmodifiableList(trains);
+	}
+
+	/** Returns the name of the picture on a tile, such as "station", or
+	 *  null if the tile has rails or nothing.
+	 */
+	public String getCustom(int x, int y) {
+		return custom[x][y];
+	}
+
+	/** Puts a picture on a tile, replacing any rails.
+	 */
+	public void setCustom(int x, int y, String name) {
+		setRailType(x, y, NO_RAIL);
+		custom[x][y] = name;
+	}
+
+	public int railType(int x, int y, int sw) {
+		return rails[x][y][sw];
+	}
+
+	public boolean isSensor(int x, int y) {
+		return sensors[x][y];
+	}
+
+	public boolean isInside(int x, int y) {
+		return x >= 0 && y >= 0 && x < width && y < height;
+	}
+
+	public boolean isStop(int x, int y) {
+		return isStop(rails[x][y][LEFT_SWITCH]);
+	}
+
+	public boolean isCrossing(int x, int y) {
+		int[] r = rails[x][y];
+		return (r[LEFT_SWITCH] == HORIZONTAL && r[RIGHT_SWITCH] == VERTICAL)
+				|| (r[LEFT_SWITCH] == VERTICAL && r[RIGHT_SWITCH] == HORIZONTAL);
+	}
+
+	public boolean isSwitch(int x, int y) {
+		return rails[x][y][RIGHT_SWITCH] != NO_RAIL && !isCrossing(x, y);
+	}
+
+	/** Returns the direction a train leaves a tile in, given the direction
+	 *  it entered in and the position of the switch, or NO_DIR if it
+	 *  derails. On a crossing the rail that fits is taken.
+	 */
+	public int newDirection(int x, int y, int sw, int direction) {
+		int d = NEW_DIRS[rails[x][y][sw]][direction];
+		if (d == NO_DIR && isCrossing(x, y))
+			d = NEW_DIRS[rails[x][y][1 - sw]][direction];
+		return d;
+	}
+
+	public static int opposite(int direction) {
+		switch (direction) {
+		case UP:	return DOWN;
+		case RIGHT:	return LEFT;
+		case DOWN:	return UP;
+		case LEFT:	return RIGHT;
+		default:	return NO_DIR;
+		}
+	}
+
+	public static int clockwise(int direction) {
+		return direction == NO_DIR ? NO_DIR : direction % 4 + 1;
+	}
+
+	public static int dx(int direction) {
+		return direction == RIGHT ? 1 : direction == LEFT ? -1 : 0;
+	}
+
+	public static int dy(int direction) {
+		return direction == DOWN ? 1 : direction == UP ? -1 : 0;
+	}
+
+	/** Returns the direction of travel in which both rails of a switch can
+	 *  be entered.
+	 */
+	public int commonEntry(int x, int y) {
+		return commonEntry(rails[x][y]);
+	}
+
+	private static int commonEntry(int[] r) {
+		for (int d = UP; d <= LEFT; d++) {
+			if (NEW_DIRS[r[LEFT_SWITCH]][d] != NO_DIR
+					&& NEW_DIRS[r[RIGHT_SWITCH]][d] != NO_DIR)
+				return d;
+		}
+		return NO_DIR;
+	}
+
+	/** Orders the rails of a switch so that the left switch position takes
+	 *  a train entering through the common end to the left.
+	 */
+	private static void sortSwitch(int[] r) {
+		int in = commonEntry(r);
+		int start = clockwise(opposite(in));
+		int d = start;
+		do {
+			if (NEW_DIRS[r[LEFT_SWITCH]][in] == d) return;
+			if (NEW_DIRS[r[RIGHT_SWITCH]][in] == d) {
+				int t = r[LEFT_SWITCH];
+				r[LEFT_SWITCH] = r[RIGHT_SWITCH];
+				r[RIGHT_SWITCH] = t;
+				return;
+			}
+			d = clockwise(d);
+		} while (d != start);
+	}
+
+	private static boolean isStop(int type) {
+		return type >= UP_STOP && type <= LEFT_STOP;
+	}
+
+	private static String word(StreamTokenizer st) throws IOException {
+		if (st.nextToken() != StreamTokenizer.TT_WORD)
+			throw new IOException("unexpected end of map");
+		return st.sval;
+	}
+
+	private static int number(StreamTokenizer st) throws IOException {
+		try {
+			return Integer.parseInt(word(st));
+		} catch (NumberFormatException e) {
+			throw new IOException("number expected in map");
+		}
+	}
+
+	private static int lookup(String[] names, String name) throws IOException {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(name)) return i;
+		}
+		throw new IOException("unknown name '" + name + "' in map");
+	}
+}
@@ -1,3 +1,4 @@
+import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 
 public class TrainMonitor {
@@ -21,13 +22,37 @@ public class TrainMonitor {
 	public void enter() throws InterruptedException {
 		lock.lock();
 		try {
-			if (permits == 0) notOccupied.await();
-		} finally {
+			// The permit may be gone again by the time we are woken.
+			while (permits == 0) notOccupied.await();
 			permits--;
+		} finally {
 			lock.unlock();	
 		}
 	}
 	
+	/** Tries to enter a critical section, waiting at most the given time
+	 *  for a permit.
+	 *
+	 *  @return 'true' if entering the critical section was successful, 'false'
+	 *  if the time ran out.
+	 *  @throws InterruptedException
+	 */
+	public boolean tryEnter(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (permits == 0) {
+				if (nanos <= 0) return false;
+				nanos = notOccupied.awaitNanos(nanos);
+			}
+			permits--;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
 	/** Exits a critical section.
 	 */
 	public void leave() {
@@ -44,9 +69,8 @@ public class TrainMonitor {
 	 * 
 	 *  @return 'true' if entering the critical section was successful, 'false'
 	 *  otherwise
-	 *  @throws InterruptedException 
 	 */
-	public Boolean tryEnter() throws InterruptedException {
+	public Boolean tryEnter() {
 		lock.lock();
 		if (permits == 0) {
 			lock.unlock();
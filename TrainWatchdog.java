@@ -0,0 +1,197 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+import TSim.*;
+import static TSim.SensorEvent.*;
+
+/** Watches the trains for stalls. The watchdog learns how long each train
+ *  usually takes from one sensor to the next at a given speed, and reports
+ *  a train that has not reached a new sensor within a multiple of that
+ *  time, along with the sections it holds and waits for.
+ *
+ *  Sensor events are taken on the simulator reader thread and cost a
+ *  couple of hash lookups each; the checks run on a single timer thread.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public class TrainWatchdog implements SensorListener {
+
+	/** The number of transits seen before a segment is checked. */
+	private static final int MIN_SAMPLES = 2;
+
+	private final TSimInterface tsi;
+	private final double factor;
+	private final long periodMillis;
+
+	private final Map<Integer, WatchedTrain> trains =
+			new HashMap<Integer, WatchedTrain>();
+	private final Map<Integer, Progress> progress =
+			new HashMap<Integer, Progress>();
+	private final Map<Segment, Estimate> estimates =
+			new HashMap<Segment, Estimate>();
+
+	private ScheduledExecutorService timer;
+
+	/** Creates a watchdog.
+	 *
+	 *  @param tsi the interface the sensor events are read from.
+	 *  @param factor how many times the expected transit time a train may
+	 *  	   take before it is reported.
+	 *  @param periodMillis how often the trains are checked.
+	 */
+	public TrainWatchdog(TSimInterface tsi, double factor, long periodMillis) {
+		if (factor <= 1 || periodMillis <= 0)
+			throw new IllegalArgumentException();
+		this.tsi = tsi;
+		this.factor = factor;
+		this.periodMillis = periodMillis;
+	}
+
+	/** Adds a train to be watched.
+	 */
+	public synchronized void watch(WatchedTrain train) {
+		trains.put(train.getTrainId(), train);
+		progress.put(train.getTrainId(), new Progress());
+	}
+
+	/** Starts listening for sensor events and checking the trains.
+	 */
+	public synchronized void start() {
+		if (timer != null) return;
+		timer = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "watchdog");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		tsi.addSensorListener(this);
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				check(System.nanoTime());
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops the watchdog.
+	 */
+	public synchronized void stop() {
+		if (timer == null) return;
+		tsi.removeSensorListener(this);
+		timer.shutdownNow();
+		timer = null;
+	}
+
+	public synchronized void sensorEvent(SensorEvent e, long time) {
+		if (e.getStatus() != ACTIVE) return;
+		WatchedTrain train = trains.get(e.getTrainId());
+		if (train == null) return;
+
+		Progress p = progress.get(e.getTrainId());
+		if (p.segment != null) {
+			Estimate est = estimates.get(p.segment);
+			if (est == null) estimates.put(p.segment, new Estimate(time - p.since));
+			else est.add(time - p.since);
+		}
+		p.segment = new Segment(e.getTrainId(),
+				Position.key(e.getXpos(), e.getYpos()), train.getCurrentSpeed());
+		p.since = time;
+		p.reported = false;
+	}
+
+	/** Reports every train that has been on its current segment for too
+	 *  long. Each stall is reported once. The stalled trains are found with
+	 *  the watchdog locked, and reported after it is unlocked, so that a
+	 *  slow report never holds up the sensor events.
+	 *
+	 *  @param now the current time, from System.nanoTime().
+	 */
+	void check(long now) {
+		List<WatchedTrain> stalled = new ArrayList<WatchedTrain>();
+		List<String> reports = new ArrayList<String>();
+		synchronized (this) {
+			for (Map.Entry<Integer, Progress> entry : progress.entrySet()) {
+				Progress p = entry.getValue();
+				if (p.segment == null || p.reported) continue;
+				Estimate est = estimates.get(p.segment);
+				if (est == null || est.samples < MIN_SAMPLES) continue;
+				if (now - p.since > factor * est.mean) {
+					p.reported = true;
+					stalled.add(trains.get(entry.getKey()));
+					reports.add(" stalled " + millis(now - p.since)
+							+ " ms after sensor ("
+							+ Position.x(p.segment.position) + ","
+							+ Position.y(p.segment.position)
+							+ "), expected " + millis(est.mean) + " ms; ");
+				}
+			}
+		}
+		for (int i = 0; i < stalled.size(); i++) {
+			WatchedTrain train = stalled.get(i);
+			stalled(train, "Train " + train.getTrainId() + reports.get(i)
+					+ train.describeSections());
+		}
+	}
+
+	/** Called on the timer thread when a train has stalled. The default
+	 *  prints the report to System.err.
+	 *
+	 *  @param train the stalled train.
+	 *  @param report a description of the stall.
+	 */
+	protected void stalled(WatchedTrain train, String report) {
+		System.err.println(report);
+	}
+
+	private static long millis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+
+	/** Where a train was last seen. */
+	private static final class Progress {
+		Segment segment;
+		long since;
+		boolean reported;
+	}
+
+	/** A train leaving a sensor at a speed, whose transit times are
+	 *  averaged together. The sensor is given by its Position key.
+	 */
+	private static final class Segment {
+		final int train, speed;
+		final long position;
+
+		Segment(int train, long position, int speed) {
+			this.train = train;
+			this.position = position;
+			this.speed = speed;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Segment)) return false;
+			Segment s = (Segment) o;
+			return train == s.train && position == s.position
+					&& speed == s.speed;
+		}
+
+		public int hashCode() {
+			return (31 * train + Long.hashCode(position)) * 31 + speed;
+		}
+	}
+
+	/** A moving average of the transit times of a segment. */
+	private static final class Estimate {
+		long mean;
+		int samples = 1;
+
+		Estimate(long first) {
+			mean = first;
+		}
+
+		void add(long sample) {
+			mean += (sample - mean) / 8;
+			samples++;
+		}
+	}
+}
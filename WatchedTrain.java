@@ -0,0 +1,18 @@
+/** A train controller that can be watched by a TrainWatchdog.
+ *
+ *  @author Dennis Bennhage & Hampus Lidin
+ */
+public interface WatchedTrain {
+
+	/** Returns the id of the train in the simulator.
+	 */
+	int getTrainId();
+
+	/** Returns the speed the train is meant to travel in.
+	 */
+	int getCurrentSpeed();
+
+	/** Describes the sections the train holds and waits for.
+	 */
+	String describeSections();
+}